@@ -1,16 +1,14 @@
 package starbook.common;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.DatagramPacket;
 import java.net.Socket;
 
 /**
  * Implements most of a command handler, minus the actual command processing. A network listener
- * (either TCP or UDP) will call the setter methods of this class to assign a packet or socket.
- * This class will extract the Command object from the data and process it (the processing is
- * defined in the subclass).
+ * (either TCP or UDP) will call the setter methods of this class to assign a packet or socket, or
+ * an already-decoded command when it arrived over a pooled connection. This class will extract the
+ * Command object from the data and process it (the processing is defined in the subclass).
  *
  * @author Josh Endries (josh@endries.org)
  *
@@ -18,6 +16,7 @@ import java.net.Socket;
 public abstract class BaseCommandHandler implements CommandHandler {
 	protected Socket socket = null;
 	protected DatagramPacket packet = null;
+	protected Command command = null;
 	
 	@Override
 	public final void setSocket(Socket socket) {
@@ -29,11 +28,18 @@ public abstract class BaseCommandHandler implements CommandHandler {
 		this.packet = packet;
 	}
 	
+	@Override
+	public final void setCommand(Command command) {
+		this.command = command;
+	}
+	
 	@Override
 	public final void run() {
 		try {
 			Command command = getCommand();
+			if (RequestTracker.Instance.isDuplicate(command)) return;
 			processCommand(command);
+			RequestTracker.Instance.complete(command);
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
@@ -49,30 +55,16 @@ public abstract class BaseCommandHandler implements CommandHandler {
 	
 	private Command getCommand() throws IOException {
 		/*
-		 * Extract the command.
+		 * Extract the command. The codec determines the encoding from the data itself.
 		 */
-		ObjectInputStream ois;
-		if (packet != null) {
-			ByteArrayInputStream bais = new ByteArrayInputStream(packet.getData());
-			ois = new ObjectInputStream(bais);
+		if (command != null) {
+			return command;
+		} else if (packet != null) {
+			return CommandCodec.decode(packet.getData(), packet.getOffset(), packet.getLength());
 		} else if (socket != null) {
-			ois = new ObjectInputStream(socket.getInputStream());
+			return CommandCodec.decode(socket.getInputStream());
 		} else {
-			throw new IOException("Both packet and socket are null.");
-		}
-		
-		/*
-		 * Extract the command.
-		 */
-		try {
-			Object o = ois.readObject();
-			if (o instanceof Command) {
-				return (Command) o;
-			} else {
-				throw new IOException("Received data is not a command.");
-			}
-		} catch (ClassNotFoundException e) {
-			throw new IOException(e);
+			throw new IOException("Command, packet and socket are all null.");
 		}
 	}
 }
@@ -150,6 +150,14 @@ public abstract class BaseDiscoverableNode extends BaseNode implements Discovera
 		throw new IOException("Unable to retrieve a random node.");
 	}
 
+	@Override
+	public Type getNeighborType(InetAddress address) {
+		for (Map.Entry<TCPAddress, NodeInfo> e : neighbors.entrySet()) {
+			if (e.getKey().getInetAddressAddress().equals(address)) return e.getValue().getType();
+		}
+		return null;
+	}
+
 	@Override
 	public TCPAddress getRandomNeighbor(boolean self) throws IOException {
 		TCPAddress[] addresses = Util.copyCCCHM(neighbors).keySet().toArray(new TCPAddress[0]);
@@ -235,7 +243,7 @@ public abstract class BaseDiscoverableNode extends BaseNode implements Discovera
 		 * Start the node pruner.
 		 */
 		NodePruner np = new NodePruner(this);
-		Thread npt = new Thread(np, "Node Pruner");
+		Thread npt = Threads.newThread(np, "Node Pruner");
 		addThread(npt);
 //		npt.start();
 	}
@@ -1,5 +1,8 @@
 package starbook.common;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Comparator;
 
@@ -10,7 +13,7 @@ public class BaseMessage implements Message, Comparable<Message> {
 	private static final long serialVersionUID = 468622942495322655L;
 	private final String content;
 	private final DateTime creationDate;
-	private final String GUID;
+	private transient MessageKey key;
 	private final InetAddress sourceAddress;
 	private final int ID;
 	private final String topic;
@@ -32,7 +35,7 @@ public class BaseMessage implements Message, Comparable<Message> {
 		this.ID = id;
 		this.sourceAddress = sourceAddress;
 		this.topic = topic;
-		this.GUID = String.format("%s-%s-%s|%s", sourceAddress.getHostAddress(), creationDate.toString("yyyyMMddHHmmss"), id, topic);
+		this.key = MessageKey.of(sourceAddress, creationDate, id, topic);
 	}
 
 	/**
@@ -64,17 +67,19 @@ public class BaseMessage implements Message, Comparable<Message> {
 		this(new String(m.getContent()), new DateTime(m.getCreationDate()), Util.copy(m.getSourceAddress()), m.getID(), new String(m.getTopic()));
 	}
 	
+	/**
+	 * Messages are ordered by their keys, i.e. by creation time and then by source, ID and topic.
+	 */
 	@Override
 	public int compareTo(Message m) {
-		return creationDate.compareTo(m.getCreationDate());
-//		return getGUID().compareTo(m.getGUID());
+		return key.compareTo(m.getKey());
 	}
 	
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof Message) {
 			Message m = (Message) obj;
-			return m.getGUID().equals(getGUID());
+			return m.getKey().equals(key);
 		}
 		return false;
 	}
@@ -100,7 +105,12 @@ public class BaseMessage implements Message, Comparable<Message> {
 
 	@Override
 	public String getGUID() {
-		return GUID;
+		return key.toString();
+	}
+
+	@Override
+	public MessageKey getKey() {
+		return key;
 	}
 
 	@Override
@@ -120,7 +130,12 @@ public class BaseMessage implements Message, Comparable<Message> {
 	
 	@Override
 	public int hashCode() {
-		return getGUID().hashCode();
+		return key.hashCode();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		key = MessageKey.of(sourceAddress, creationDate, ID, topic);
 	}
 	
 	@Override
@@ -135,6 +150,22 @@ public class BaseMessage implements Message, Comparable<Message> {
 		}
 	}
 	
+	/**
+	 * Orders messages by creation time and then key, so messages created in the same millisecond
+	 * are still distinct. Message stores use this for their timelines.
+	 */
+	public static class timelineComparator implements Comparator<Message>, Serializable {
+		private static final long serialVersionUID = -4719032851385417264L;
+
+		@Override
+		public int compare(Message o1, Message o2) {
+			long t1 = o1.getCreationDate().getMillis();
+			long t2 = o2.getCreationDate().getMillis();
+			if (t1 != t2) return (t1 < t2) ? -1 : 1;
+			return o1.getKey().compareTo(o2.getKey());
+		}
+	}
+	
 	public static class contentSizeComparator implements Comparator<Message> {
 		@Override
 		public int compare(Message o1, Message o2) {
@@ -1,14 +1,39 @@
 package starbook.common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 
 
 /**
@@ -17,102 +42,161 @@ import org.apache.log4j.Logger;
  * 
  * @author Josh Endries <josh@endries.org>
  */
-public class BaseMessageStore implements MessageStore {
+public class BaseMessageStore implements MessageStore, Snapshottable {
 	private static final long serialVersionUID = 2980172550137448784L;
 	private final static Logger log = Logger.getLogger(BaseMessageStore.class);
 	
+	/**
+	 * The number of messages written per chunk when the store is serialized.
+	 */
+	private static final int ChunkMessages = 16384;
+
+	/**
+	 * The number of key locks and topic locks. Must be a power of two.
+	 */
+	private static final int LockStripes = 64;
+
 	/**
 	 * The "actual" Message object store.
 	 */
-	private final ConcurrentSkipListSet<Message> messages = new ConcurrentSkipListSet<Message>();
+	private transient ConcurrentSkipListSet<Message> messages = newTimeline();
 
 	/**
-	 * A map of download counts, indexed by GUID.
+	 * A map of download counts, indexed by key. Counts are incremented in place, so concurrent
+	 * downloads are all counted.
 	 */
-	private final ConcurrentHashMap<String, Integer> downloadCounts = new ConcurrentHashMap<String, Integer>();
+	private transient ConcurrentHashMap<MessageKey, AtomicInteger> downloadCounts = new ConcurrentHashMap<MessageKey, AtomicInteger>();
 	
 	/**
-	 * A message list indexed by the message's GUIDs.
+	 * A message list indexed by the message's keys. This and the download counts are all that is
+	 * written when the store is serialized; the other lists are rebuilt from it when the store is
+	 * read.
+	 */
+	private transient ConcurrentHashMap<MessageKey, Message> messagesByKey = new ConcurrentHashMap<MessageKey, Message>();
+
+	/**
+	 * A message list indexed by topic. Each topic's messages are ordered by creation time and key
+	 * so they can be read in time ranges.
+	 */
+	private transient ConcurrentHashMap<String, ConcurrentSkipListSet<Message>> messagesByTopic = new ConcurrentHashMap<String, ConcurrentSkipListSet<Message>>();
+
+	/**
+	 * The messages again, for random sampling.
+	 */
+	private transient SamplingIndex samplingIndex = new SamplingIndex();
+
+	/**
+	 * The hash tree of each topic's keys, for anti-entropy between replicas.
+	 */
+	private transient KeyTree keyTree = new KeyTree();
+
+	/**
+	 * The keys of the messages added, downloaded or removed since the last delta was taken, or null
+	 * if changes aren't tracked yet.
+	 */
+	private transient volatile ConcurrentHashMap<MessageKey, Boolean> changedKeys = null;
+
+	/**
+	 * Released once the message list, topic lists and sampling index have been built after the
+	 * store is read. Until then, messages can be added, removed and downloaded by key, and the
+	 * sampling index samples from the messages indexed so far.
+	 */
+	private transient CountDownLatch indexed = new CountDownLatch(0);
+
+	/**
+	 * The keys of the messages read with the store that the index builder hasn't indexed yet. A
+	 * message is indexed either by the builder or by {@link #addMessage(Message)}, never both:
+	 * whoever takes its key out of here under the key lock owns it, and removing a message whose key
+	 * is still here takes it out of nothing but the key list.
+	 */
+	private transient Set<MessageKey> unindexed = newKeySet();
+
+	/**
+	 * Locks striped by message key. A message is added to or removed from all of the lists while its
+	 * key's lock is held, so nobody sees it in some lists and not others for long, and an add and a
+	 * remove of the same message can't interleave. Messages with different keys don't contend.
 	 */
-	private final ConcurrentHashMap<String, Message> messagesByGUID = new ConcurrentHashMap<String, Message>();
+	private transient Object[] keyLocks = newKeyLocks();
 
 	/**
-	 * A message list indexed by topic.
+	 * Locks striped by topic. Adding to a topic list takes the read lock, so adds to a topic run
+	 * concurrently; dropping an emptied topic list takes the write lock, so nothing is added to a
+	 * list as it is dropped. Always taken after the key lock, never before.
 	 */
-	private final ConcurrentHashMap<String, ConcurrentSkipListSet<Message>> messagesByTopic = new ConcurrentHashMap<String, ConcurrentSkipListSet<Message>>();
+	private transient ReadWriteLock[] topicLocks = newTopicLocks();
 
 	@Override
 	public void addMessage(Message m) {
 		/*
-		 * Make a copy of the incoming message.
-		 */
-		Message message = new BaseMessage(m);
-
-		/*
-		 * Add the message to the "actual" message list.
+		 * BaseMessages are immutable, so they can be stored as they are. Anything else is copied.
 		 */
-		messages.add(message);
+		Message message = (m.getClass() == BaseMessage.class) ? m : new BaseMessage(m);
+		MessageKey key = message.getKey();
 
-		/*
-		 * Add the message to the GUID list.
-		 */
-		messagesByGUID.put(message.getGUID(), message);
-		
-		/*
-		 * Add the message to the download count map.
-		 */
-		downloadCounts.put(message.getGUID(), 0);
+		synchronized (getKeyLock(key)) {
+			/*
+			 * A duplicate keeps the message and download count it has.
+			 */
+			if (messagesByKey.containsKey(key)) return;
 
-		/*
-		 * Add the message to the topic list. Since we need to do two calls
-		 * here, we synchronize on the list...
-		 */
-		synchronized (messagesByTopic) {
-			if (messagesByTopic.containsKey(message.getTopic())) {
-				messagesByTopic.get(message.getTopic()).add(message);
-			} else {
-				ConcurrentSkipListSet<Message> list = new ConcurrentSkipListSet<Message>();
-				list.add(message);
-				messagesByTopic.put(message.getTopic(), list);
-			}
+			/*
+			 * Add the message to the download count map first, so anyone who finds the message by key
+			 * also finds its count, and to the key list last, so anyone who finds it by key finds it
+			 * everywhere else too.
+			 */
+			downloadCounts.put(key, new AtomicInteger());
+			messages.add(message);
+			addToTimeline(message);
+			samplingIndex.add(message);
+			keyTree.add(message.getTopic(), key);
+			messagesByKey.put(key, message);
 		}
+		markChanged(key);
 	}
 
 	@Override
-	public Message downloadMessage(String guid, int downloadLimit) {
-		Message message = messagesByGUID.get(guid);
+	public Message downloadMessage(MessageKey key, int downloadLimit) {
+		Message message = messagesByKey.get(key);
 		if (message == null) return null;
-		Integer currentCount = downloadCounts.get(guid);
-		if (currentCount == null) {
-			log.warn(String.format("Non-existent download count for existing message %s.", guid));
-			currentCount = 0;
-		}
-		currentCount++;
-		downloadCounts.put(guid, currentCount);
-		if (currentCount >= downloadLimit) {
-			log.debug(String.format("Message %s has been downloaded %s times, removing it.", guid, downloadLimit));
+		AtomicInteger count = downloadCounts.get(key);
+		int currentCount = (count == null) ? Integer.MAX_VALUE : count.incrementAndGet();
+
+		/*
+		 * A limit below one still lets the first download have the message, and removes it.
+		 */
+		int limit = Math.max(1, downloadLimit);
+		if (currentCount > limit) {
+			/*
+			 * The message was used up (and removed) by other downloads after we found it.
+			 */
+			return null;
+		}
+		markChanged(key);
+		if (currentCount >= limit) {
+			log.debug(String.format("Message %s has been downloaded %s times, removing it.", key, downloadLimit));
 			removeMessage(message);
 		}
 		return message;
 	}
 
 	@Override
-	public Message getMessageByGUID(String guid) {
-		return messagesByGUID.get(guid);
+	public Message getMessageByKey(MessageKey key) {
+		return messagesByKey.get(key);
 	}
 	
 	@Override
-	public Set<String> getMessageGUIDs() {
-		Set<String> s = new HashSet<String>();
-		Iterator<String> i = messagesByGUID.keySet().iterator();
-		while (i.hasNext()) {
-			s.add(new String(i.next()));
-		}
-		return s;
+	public Set<MessageKey> getMessageKeys() {
+		return new HashSet<MessageKey>(messagesByKey.keySet());
+	}
+	
+	@Override
+	public int size() {
+		return messagesByKey.size();
 	}
 	
 	@Override
 	public Set<Message> getMessages() {
+		awaitIndexes();
 		Set<Message> set = new HashSet<Message>();
 		Iterator<Message> i = messages.iterator();
 		while (i.hasNext()) set.add(new BaseMessage(i.next()));
@@ -121,77 +205,467 @@ public class BaseMessageStore implements MessageStore {
 
 	@Override
 	public ConcurrentSkipListSet<Message> getMessagesByTopic(String topic) {
+		awaitIndexes();
 		ConcurrentSkipListSet<Message> m = messagesByTopic.get(topic);
 		if (m == null) {
-			return new ConcurrentSkipListSet<Message>();
+			return newTimeline();
 		} else {
 			return m;
 		}		
 	}
 
+	@Override
+	public NavigableSet<Message> range(String topic, DateTime from, DateTime to) {
+		ConcurrentSkipListSet<Message> timeline = getMessagesByTopic(topic);
+		if (from == null && to == null) return timeline;
+		if (from == null) return timeline.headSet(new Probe(to), false);
+		if (to == null) return timeline.tailSet(new Probe(from), true);
+		if (!to.isAfter(from)) return newTimeline();
+		return timeline.subSet(new Probe(from), true, new Probe(to), false);
+	}
+
+	@Override
+	public List<Message> latest(String topic, int count) {
+		List<Message> list = new ArrayList<Message>();
+		Iterator<Message> i = getMessagesByTopic(topic).descendingIterator();
+		while (list.size() < count && i.hasNext()) list.add(i.next());
+		return list;
+	}
+
+	@Override
+	public NavigableSet<Message> since(String topic, Message cursor) {
+		ConcurrentSkipListSet<Message> timeline = getMessagesByTopic(topic);
+		if (cursor == null) return timeline;
+		return timeline.tailSet(cursor, false);
+	}
+
 	@Override
 	public void removeMessage(Message m) {
+		MessageKey key = m.getKey();
+		synchronized (getKeyLock(key)) {
+			/*
+			 * Take the message out of the key list first, so nobody finds it by key while it is
+			 * being taken out of the others.
+			 */
+			Message message = messagesByKey.remove(key);
+			if (message == null) return;
+			downloadCounts.remove(key);
+			if (unindexed.remove(key)) {
+				/*
+				 * Read with the store and not indexed yet, so there's nothing else to take it out of.
+				 */
+				markChanged(key);
+				return;
+			}
+			samplingIndex.remove(key);
+			keyTree.remove(message.getTopic(), key);
+			messages.remove(message);
+			removeFromTimeline(message);
+		}
+		markChanged(key);
+	}
+
+	/**
+	 * Add a message to its topic's list, creating the list if there isn't one.
+	 */
+	private void addToTimeline(Message m) {
+		String topic = m.getTopic();
+		Lock lock = getTopicLock(topic).readLock();
+		lock.lock();
+		try {
+			ConcurrentSkipListSet<Message> timeline = messagesByTopic.get(topic);
+			if (timeline == null) {
+				ConcurrentSkipListSet<Message> created = newTimeline();
+				timeline = messagesByTopic.putIfAbsent(topic, created);
+				if (timeline == null) timeline = created;
+			}
+			timeline.add(m);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a message from its topic's list, and drop the list if that emptied it.
+	 */
+	private void removeFromTimeline(Message m) {
 		String topic = m.getTopic();
-		messages.remove(m);
-		messagesByGUID.remove(m.getGUID());
-		messagesByTopic.get(topic).remove(m);
-		downloadCounts.remove(m);
+		ConcurrentSkipListSet<Message> timeline = messagesByTopic.get(topic);
+		if (timeline == null) return;
+		timeline.remove(m);
+		if (!timeline.isEmpty()) return;
 
 		/*
-		 * This should be synchronized somehow.
+		 * Check again with adds held off, in case a message was added since.
 		 */
-		if (messagesByTopic.containsKey(topic) && messagesByTopic.get(topic).size() < 1) {
-			messagesByTopic.remove(topic);
+		Lock lock = getTopicLock(topic).writeLock();
+		lock.lock();
+		try {
+			if (timeline.isEmpty()) messagesByTopic.remove(topic, timeline);
+		} finally {
+			lock.unlock();
 		}
 	}
+
+	private Object getKeyLock(MessageKey key) {
+		return keyLocks[getStripe(key.hashCode())];
+	}
+
+	private ReadWriteLock getTopicLock(String topic) {
+		return topicLocks[getStripe(topic.hashCode())];
+	}
+
+	private static int getStripe(int hash) {
+		return (hash ^ (hash >>> 16)) & (LockStripes - 1);
+	}
+
+	private static Object[] newKeyLocks() {
+		Object[] locks = new Object[LockStripes];
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		return locks;
+	}
+
+	private static ReadWriteLock[] newTopicLocks() {
+		ReadWriteLock[] locks = new ReadWriteLock[LockStripes];
+		for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantReadWriteLock();
+		return locks;
+	}
 	
+	/**
+	 * Retrieves random keys from the sampling index, visiting only as many messages as it takes to
+	 * fill the budget.
+	 * 
+	 * @see MessageStore#getRandomKeysByByte(int)
+	 */
 	@Override
-	public HashSet<String> getRandomGUIDsByByte(int maxSize) {
-		HashSet<String> GUIDs = new HashSet<String>();
-		if (this.messages.size() < 1) return GUIDs;
-		ArrayList<Integer> indices = new ArrayList<Integer>(this.messages.size());
-		for (int i=0; i<this.messages.size(); i++) indices.add(i);
-		Collections.shuffle(indices);
-		int size = 0;
-		Iterator<Integer> i = indices.iterator();
-		while (i.hasNext() && size < maxSize) {
-			int index = i.next();
-			Iterator<Message> mi = this.messages.iterator();
-			Message message = mi.next();
-			for (int x=0; x<index; x++) if (mi.hasNext()) message = mi.next();
-			int messageSize = (message.getContent().length()*2); // Java uses 16-bit chars by default.
-			if ((messageSize+size) < maxSize) {
-				size += messageSize;
-				GUIDs.add(message.getGUID());
-			}
-		}
-		
-		return GUIDs;
+	public HashSet<MessageKey> getRandomKeysByByte(int maxSize) {
+		return samplingIndex.sampleByBytes(maxSize);
+	}
+
+	/**
+	 * Retrieves a uniformly random subset of message keys from the sampling index.
+	 * 
+	 * @see MessageStore#getRandomKeys(int)
+	 */
+	@Override
+	public ArrayList<MessageKey> getRandomKeys(int resultSize) {
+		return new ArrayList<MessageKey>(samplingIndex.sample(resultSize));
+	}
+
+	/**
+	 * Waits for the indexes built after the store was read, so a sync never compares a tree that is
+	 * still being built.
+	 */
+	@Override
+	public KeyTree getKeyTree() {
+		awaitIndexes();
+		return keyTree;
+	}
+
+	private void markChanged(MessageKey key) {
+		ConcurrentHashMap<MessageKey, Boolean> c = changedKeys;
+		if (c != null) c.put(key, Boolean.TRUE);
 	}
 
 	/**
-	 * Retrieves a random subset of message GUIDs by copying the first N GUIDs where N is
-	 * resultSize, then iterates through the GUIDs randomly replacing elements in the result list.
+	 * The delta is a {@link Delta} of the changed messages and their download counts, and the keys
+	 * of the removed messages.
 	 * 
-	 * @see MessageStore#getRandomGUIDs(int)
+	 * @see Snapshottable#takeDelta()
 	 */
 	@Override
-	public ArrayList<String> getRandomGUIDs(int resultSize) {
-		ArrayList<String> s = new ArrayList<String>();
-		
-		int count = 0;
-		for (String guid: messagesByGUID.keySet()) {
-			count++;
-			if (count <= resultSize) {
-				s.add(guid);
+	public Serializable takeDelta() {
+		ConcurrentHashMap<MessageKey, Boolean> c = changedKeys;
+		if (c == null) {
+			changedKeys = new ConcurrentHashMap<MessageKey, Boolean>();
+			return null;
+		}
+		Delta delta = new Delta();
+		Iterator<MessageKey> i = c.keySet().iterator();
+		while (i.hasNext()) {
+			MessageKey key = i.next();
+			i.remove();
+			Message m = messagesByKey.get(key);
+			if (m == null) {
+				delta.removed.add(key);
 			} else {
-				int r = Configuration.rng.nextInt(count);
-				if (r < resultSize) {
-					s.set(r, guid);
+				delta.messages.add(m);
+				AtomicInteger count = downloadCounts.get(key);
+				delta.downloadCounts.put(key, (count == null) ? 0 : count.get());
+			}
+		}
+		return (delta.messages.isEmpty() && delta.removed.isEmpty()) ? null : delta;
+	}
+
+	@Override
+	public void applyDelta(Serializable delta) {
+		Delta d = (Delta) delta;
+		for (MessageKey key : d.removed) {
+			Message m = messagesByKey.get(key);
+			if (m != null) removeMessage(m);
+		}
+		for (Message m : d.messages) {
+			if (!messagesByKey.containsKey(m.getKey())) addMessage(m);
+			downloadCounts.put(m.getKey(), new AtomicInteger(d.downloadCounts.get(m.getKey())));
+		}
+	}
+
+	/**
+	 * Write the messages and their download counts in chunks of encoded {@link MessageRecords
+	 * records}, each record followed by its message's download count, so they can be decoded in
+	 * parallel when the store is read.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		List<Message> all = new ArrayList<Message>(messagesByKey.values());
+		out.writeInt((all.size() + ChunkMessages - 1) / ChunkMessages);
+		for (int from = 0; from < all.size(); from += ChunkMessages) {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(chunk);
+			for (Message m : all.subList(from, Math.min(from + ChunkMessages, all.size()))) {
+				AtomicInteger count = downloadCounts.get(m.getKey());
+				dos.write(MessageRecords.encode(m));
+				dos.writeInt((count == null) ? 0 : count.get());
+			}
+			out.writeInt(chunk.size());
+			chunk.writeTo(out);
+		}
+	}
+
+	/**
+	 * Read the messages and download counts, then build the other lists in the background. The
+	 * chunks are decoded in parallel.
+	 * <p>
+	 * Stores written before messages were written in chunks serialized the message list and download
+	 * counts as fields. Stores written before messages had keys also contain a map of messages by
+	 * GUID string (from which messages created in the same second, which could collapse in the old
+	 * message list, are recovered) and download counts by GUID string, which are reset.
+	 * </p>
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		messagesByKey = new ConcurrentHashMap<MessageKey, Message>();
+		downloadCounts = new ConcurrentHashMap<MessageKey, AtomicInteger>();
+		long start = System.currentTimeMillis();
+
+		if (fields.getObjectStreamClass().getField("messages") == null) {
+			int chunkCount = in.readInt();
+			List<byte[]> chunks = new ArrayList<byte[]>(chunkCount);
+			long bytes = 0;
+			for (int i = 0; i < chunkCount; i++) {
+				byte[] chunk = new byte[in.readInt()];
+				in.readFully(chunk);
+				chunks.add(chunk);
+				bytes += chunk.length;
+			}
+			long read = System.currentTimeMillis();
+			int threads = decode(chunks);
+			log.info(String.format("Read %s message chunks (%s bytes) in %sms and decoded %s messages on %s threads in %sms.", chunkCount, bytes,
+					read - start, messagesByKey.size(), threads, System.currentTimeMillis() - read));
+		} else {
+			Set<Message> all = new HashSet<Message>();
+			Object o = fields.get("messages", null);
+			if (o != null) all.addAll((Collection<Message>) o);
+			o = getLegacyField(fields, "messagesByGUID");
+			if (o != null) all.addAll(((Map<?, Message>) o).values());
+			for (Message m : all) messagesByKey.put(m.getKey(), m);
+
+			o = fields.get("downloadCounts", null);
+			if (o != null) {
+				for (Map.Entry<?, Integer> e : ((Map<?, Integer>) o).entrySet()) {
+					if (e.getKey() instanceof MessageKey && messagesByKey.containsKey(e.getKey()))
+						downloadCounts.put((MessageKey) e.getKey(), new AtomicInteger(e.getValue()));
 				}
 			}
+			for (MessageKey key : messagesByKey.keySet()) {
+				if (!downloadCounts.containsKey(key)) downloadCounts.put(key, new AtomicInteger());
+			}
+			log.info(String.format("Read %s messages in %sms.", messagesByKey.size(), System.currentTimeMillis() - start));
+		}
+
+		messages = newTimeline();
+		messagesByTopic = new ConcurrentHashMap<String, ConcurrentSkipListSet<Message>>();
+		samplingIndex = new SamplingIndex();
+		keyTree = new KeyTree();
+		keyLocks = newKeyLocks();
+		topicLocks = newTopicLocks();
+		unindexed = newKeySet();
+		unindexed.addAll(messagesByKey.keySet());
+		indexed = new CountDownLatch(1);
+		Thread t = Threads.newThread(new IndexBuilder(), "Message Index Builder");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Decode chunks of records into the key list and download counts, one chunk per task.
+	 * 
+	 * @return The number of threads used.
+	 */
+	private int decode(List<byte[]> chunks) throws IOException {
+		int threads = Math.max(1, Math.min(chunks.size(), java.lang.Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final byte[] chunk : chunks) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						ByteBuffer b = ByteBuffer.wrap(chunk);
+						int offset = 0;
+						while (offset < chunk.length) {
+							Message m = MessageRecords.read(b, offset);
+							offset += MessageRecords.getLength(b, offset);
+							messagesByKey.put(m.getKey(), m);
+							downloadCounts.put(m.getKey(), new AtomicInteger(b.getInt(offset)));
+							offset += 4;
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Unable to decode messages.", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while decoding messages.");
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return threads;
+	}
+
+	/**
+	 * Wait until the indexes built after the store was read are complete.
+	 */
+	private void awaitIndexes() {
+		try {
+			indexed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Object getLegacyField(ObjectInputStream.GetField fields, String name) throws IOException {
+		try {
+			return fields.get(name, null);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static Set<MessageKey> newKeySet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<MessageKey, Boolean>());
+	}
+
+	private static ConcurrentSkipListSet<Message> newTimeline() {
+		return new ConcurrentSkipListSet<Message>(new BaseMessage.timelineComparator());
+	}
+
+
+
+	/**
+	 * Builds the message list, topic lists and sampling index from the key list after the store is
+	 * read.
+	 */
+	private class IndexBuilder implements Runnable {
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			int count = 0;
+			for (Message m : messagesByKey.values()) {
+				/*
+				 * Index each message under its key lock, and only if it's still ours to index: one
+				 * removed meanwhile, even if it has been added again since, was indexed (or not) by
+				 * whoever did that, and the key tree must count it exactly once.
+				 */
+				synchronized (getKeyLock(m.getKey())) {
+					if (!unindexed.remove(m.getKey())) continue;
+					messages.add(m);
+					samplingIndex.add(m);
+					keyTree.add(m.getTopic(), m.getKey());
+					addToTimeline(m);
+				}
+				count++;
+			}
+			indexed.countDown();
+			log.info(String.format("Built topic and sampling indexes for %s messages in %sms.", count, System.currentTimeMillis() - start));
+		}
+	}
+
+
+
+	/**
+	 * The changes made to a store between two snapshots.
+	 */
+	private static class Delta implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final List<Message> messages = new ArrayList<Message>();
+		private final HashMap<MessageKey, Integer> downloadCounts = new HashMap<MessageKey, Integer>();
+		private final HashSet<MessageKey> removed = new HashSet<MessageKey>();
+	}
+
+
+
+	/**
+	 * A stand-in for a message at a given time, used as a bound when slicing a timeline. Its key has
+	 * the lowest possible source, sequence and topic, so it sorts before every real message created
+	 * in the same millisecond.
+	 */
+	private static class Probe implements Message {
+		private static final long serialVersionUID = 1L;
+		private final DateTime creationDate;
+		private final MessageKey key;
+
+		public Probe(DateTime creationDate) {
+			this.creationDate = creationDate;
+			this.key = new MessageKey(Long.MIN_VALUE, creationDate.getMillis(), Integer.MIN_VALUE, Integer.MIN_VALUE);
+		}
+
+		@Override
+		public String getContent() {
+			return "";
+		}
+
+		@Override
+		public DateTime getCreationDate() {
+			return creationDate;
+		}
+
+		@Override
+		public String getDisplayDate() {
+			return creationDate.toString();
+		}
+
+		@Override
+		public String getGUID() {
+			return key.toString();
+		}
+
+		@Override
+		public MessageKey getKey() {
+			return key;
+		}
+
+		@Override
+		public int getID() {
+			return 0;
+		}
+
+		@Override
+		public InetAddress getSourceAddress() {
+			return null;
+		}
+
+		@Override
+		public String getTopic() {
+			return "";
 		}
-		
-		return s;
 	}
 }
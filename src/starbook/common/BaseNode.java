@@ -16,6 +16,11 @@ public abstract class BaseNode extends BaseThreadedObject implements Discoverabl
 	private final Type type;
 	private InetAddress monitorAddress;
 
+	/**
+	 * The node's UDP command listener, once it has been started.
+	 */
+	private volatile Runnable udpCommandListener = null;
+
 	/**
 	 * Creates a BaseNode object.
 	 * 
@@ -52,12 +57,29 @@ public abstract class BaseNode extends BaseThreadedObject implements Discoverabl
 		monitorAddress = address;
 	}
 	
+	/**
+	 * Remember the node's UDP command listener, so its counters can be shown.
+	 */
+	protected void setUDPCommandListener(Runnable listener) {
+		udpCommandListener = listener;
+	}
+
+	/**
+	 * Retrieve the counters of the node's UDP command listener.
+	 * 
+	 * @return The counters, or null if the listener doesn't keep any.
+	 */
+	public String getUDPCommandMetrics() {
+		Runnable l = udpCommandListener;
+		return (l instanceof ChannelUDPCommandListener) ? l.toString() : null;
+	}
+
 	@Override
 	public void start() throws IOException {
 		try {
 			InetSocketAddress monitorAddress = new InetSocketAddress(InetAddress.getByName(Configuration.getStr(CK.MonitorIP)), Configuration.getInt(CK.CommandPort));
 			Pinger monitorPinger = new MonitorPinger(this, monitorAddress, 5000);
-			Thread monitorPingerThread = new Thread(monitorPinger, "Monitor Pinger");
+			Thread monitorPingerThread = Threads.newThread(monitorPinger, "Monitor Pinger");
 			addThread(monitorPingerThread);
 			log.debug("Starting monitor pinger.");
 			monitorPingerThread.start();
@@ -0,0 +1,66 @@
+package starbook.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally-sized direct byte buffers. Buffers are allocated lazily, up to the
+ * pool's limit, and reused after being released, so the network code doesn't allocate a new
+ * buffer for every datagram.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class BufferPool {
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final int bufferSize;
+	private final int maxBuffers;
+
+	/**
+	 * Create a new, empty pool.
+	 *
+	 * @param bufferSize The capacity of each buffer, in bytes.
+	 * @param maxBuffers The maximum number of buffers that may be allocated.
+	 */
+	public BufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * Retrieve a cleared buffer from the pool, allocating one if none are free.
+	 *
+	 * @return The buffer, or null if every buffer is in use and the limit has been reached.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer b = buffers.poll();
+		if (b == null) {
+			if (allocated.incrementAndGet() > maxBuffers) {
+				allocated.decrementAndGet();
+				return null;
+			}
+			b = ByteBuffer.allocateDirect(bufferSize);
+		}
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 *
+	 * @param b A buffer previously retrieved with {@link #acquire()}.
+	 */
+	public void release(ByteBuffer b) {
+		buffers.offer(b);
+	}
+
+	public int getAllocated() {
+		return allocated.get();
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -8,8 +8,25 @@ package starbook.common;
  * 
  */
 public final class CK {
+	public static final String AntiEntropySeconds = "starbook.nodes.worker.antiEntropySeconds";
 	public static final String CloudFrontURL = "starbook.nodes.web.cloudFrontURL";
+	public static final String CommandEncoding = "starbook.common.net.services.commands.encoding";
+	public static final String CommandIOThreads = "starbook.common.net.services.commands.ioThreads";
+	public static final String CommandLaneSize = "starbook.common.net.services.commands.laneSize";
+	public static final String CommandLaneWorkers = "starbook.common.net.services.commands.laneWorkers";
+	public static final String CommandLanes = "starbook.common.net.services.commands.lanes";
 	public static final String CommandPort = "starbook.common.net.services.commands.port";
+	public static final String CommandTCPConnectionsPerPeer = "starbook.common.net.services.commands.tcpConnectionsPerPeer";
+	public static final String CommandTCPIdleSeconds = "starbook.common.net.services.commands.tcpIdleSeconds";
+	public static final String CommandTCPListener = "starbook.common.net.services.commands.tcpListener";
+	public static final String CommandTCPPooling = "starbook.common.net.services.commands.tcpPooling";
+	public static final String CommandUDPFlushMillis = "starbook.common.net.services.commands.udpFlushMillis";
+	public static final String CommandUDPListener = "starbook.common.net.services.commands.udpListener";
+	public static final String CommandUDPMaxSize = "starbook.common.net.services.commands.udpMaxSize";
+	public static final String CommandUDPPackSize = "starbook.common.net.services.commands.udpPackSize";
+	public static final String CommandUDPPacking = "starbook.common.net.services.commands.udpPacking";
+	public static final String CommandUDPQueueSize = "starbook.common.net.services.commands.udpQueueSize";
+	public static final String CommandUDPWorkers = "starbook.common.net.services.commands.udpWorkers";
 	public static final String DataDirectory = "starbook.common.dataDirectory";
 	public static final String DownloadCount = "starbook.nodes.web.downloadCount";
 	public static final String IndexBaseHost = "starbook.nodes.index.base_host";
@@ -19,8 +36,32 @@ public final class CK {
 	public static final String IRPPort = "starbook.common.net.services.indexReplication.port";
 	public static final String NodeDiscoveryPort = "starbook.common.net.services.nodeDiscovery.port";
 	public static final String NDPCutoffSeconds = "starbook.common.cutoffSeconds";
+	public static final String MessageCacheDays = "starbook.nodes.web.messageCache.days";
+	public static final String MessageCacheMegabytes = "starbook.nodes.web.messageCache.megabytes";
+	public static final String MessageCacheTopicMessages = "starbook.nodes.web.messageCache.topicMessages";
+	public static final String MessageLog = "starbook.nodes.worker.messageLog";
+	public static final String MessageLogCompactSeconds = "starbook.nodes.worker.messageLogCompactSeconds";
+	public static final String MessageLogSegmentBytes = "starbook.nodes.worker.messageLogSegmentBytes";
+	public static final String MessageLogSync = "starbook.nodes.worker.messageLogSync";
+	public static final String MessageSegmentBytes = "starbook.nodes.worker.messageSegmentBytes";
+	public static final String MessagePush = "starbook.nodes.web.messagePush";
+	public static final String MessagePushLingerMillis = "starbook.nodes.web.messagePushLingerMillis";
+	public static final String MessageStore = "starbook.nodes.worker.messageStore";
+	public static final String MessageDownloadBatchMinimum = "starbook.common.net.services.messageDownload.batchMinimum";
 	public static final String MessageDownloadPort = "starbook.common.net.services.messageDownload.port";
+	public static final String MessageDownloadReconcile = "starbook.common.net.services.messageDownload.reconcile";
+	public static final String MessageDownloadReconcileSeconds = "starbook.common.net.services.messageDownload.reconcileSeconds";
 	public static final String MonitorIP = "starbook.monitor.ip";
+	public static final String PublishedMessageMaxAgeSeconds = "starbook.nodes.web.publishedMessageMaxAgeSeconds";
+	public static final String ReplicationConfirmations = "starbook.nodes.web.replicationConfirmations";
+	public static final String RequestRetries = "starbook.common.net.services.commands.requestRetries";
+	public static final String RequestTimeoutMillis = "starbook.common.net.services.commands.requestTimeoutMillis";
+	public static final String SnapshotMergeRounds = "starbook.common.snapshotMergeRounds";
+	public static final String Telemetry = "starbook.common.telemetry.enabled";
+	public static final String TelemetryBatching = "starbook.common.telemetry.batching";
+	public static final String TelemetryFlushMillis = "starbook.common.telemetry.flushMillis";
+	public static final String TelemetrySampleRate = "starbook.common.telemetry.sampleRate";
+	public static final String ThreadMode = "starbook.common.threads.mode";
 	public static final String WorkerIP = "starbook.nodes.worker.ip";
 	public static final String UDPPort = "starbook.common.net.services.userDiscovery.port";
 	public static final String WebIP = "starbook.nodes.web.ip";
@@ -0,0 +1,416 @@
+package starbook.common;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * <p>
+ * A message store that caches messages in another store within a memory budget. Messages are
+ * evicted when:
+ * </p>
+ * <ul>
+ * <li>their topic holds more than {@link CK#MessageCacheTopicMessages} messages (oldest first),</li>
+ * <li>they are older than {@link CK#MessageCacheDays} days,</li>
+ * <li>nobody here subscribes to their topic any more (see {@link #retainTopics(Collection)}), or</li>
+ * <li>the cache is over {@link CK#MessageCacheMegabytes}, in which case whole topics are evicted,
+ * least recently read first, so the topics of users who haven't been around in a while go first.</li>
+ * </ul>
+ * <p>
+ * Sizes are estimates of the heap used by a message and its index entries, not exact figures. The
+ * keys of messages recently evicted for being beyond a topic's limits are remembered so that
+ * {@link #accepts(MessageKey)} can keep them from being downloaded again straight away. Messages
+ * evicted with their whole topic aren't remembered, so the topic can be filled again when it is
+ * next wanted.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class CachedMessageStore implements MessageStore {
+	private static final long serialVersionUID = -1528036941905541375L;
+	private static final Logger log = Logger.getLogger(CachedMessageStore.class);
+
+	/**
+	 * The estimated heap used by a message apart from its content and topic: the message, its date
+	 * and key, and its entries in the store's indexes.
+	 */
+	private static final int MessageOverhead = 400;
+	private static final int RememberedEvictions = 16384;
+	public static enum Reason { Retention, Unsubscribed, Budget; }
+
+	private final MessageStore store;
+	private final long budget;
+	private final int topicMessages;
+	private final int days;
+
+	/**
+	 * The topics in the cache, mapped to when each was last read (or first written), in ticks of
+	 * {@link #clock}.
+	 */
+	private final ConcurrentHashMap<String, Long> topicAccess = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong clock = new AtomicLong();
+	private final Map<MessageKey, Boolean> evictedKeys = new LinkedHashMap<MessageKey, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<MessageKey, Boolean> eldest) {
+			return size() > RememberedEvictions;
+		}
+	};
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong[] evictions = new AtomicLong[Reason.values().length];
+	private final AtomicLong evictedBytes = new AtomicLong();
+
+	/**
+	 * Create a cache with the configured limits.
+	 *
+	 * @param store The store to hold the cached messages.
+	 */
+	public CachedMessageStore(MessageStore store) {
+		this(store, getConfiguredBudget(), Configuration.getInt(CK.MessageCacheTopicMessages, 0), Configuration.getInt(CK.MessageCacheDays, 0));
+	}
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param store The store to hold the cached messages.
+	 * @param budget The approximate number of bytes the messages may use.
+	 * @param topicMessages The number of messages to keep per topic, or 0 for no limit.
+	 * @param days The number of days to keep messages, or 0 for no limit.
+	 */
+	public CachedMessageStore(MessageStore store, long budget, int topicMessages, int days) {
+		this.store = store;
+		this.budget = budget;
+		this.topicMessages = topicMessages;
+		this.days = days;
+		for (int i = 0; i < evictions.length; i++) evictions[i] = new AtomicLong();
+	}
+
+	/**
+	 * The configured budget defaults to a quarter of the maximum heap.
+	 */
+	private static long getConfiguredBudget() {
+		int mb = Configuration.getInt(CK.MessageCacheMegabytes, 0);
+		return (mb > 0) ? mb * 1024L * 1024L : java.lang.Runtime.getRuntime().maxMemory() / 4;
+	}
+
+
+
+	/**
+	 * Estimate the heap used by a cached message.
+	 */
+	public static int getSize(Message m) {
+		return (m.getContent().length() + m.getTopic().length()) * 2 + MessageOverhead;
+	}
+
+	/**
+	 * Determine if a message should be cached. Messages too old to keep, and messages evicted
+	 * recently, are not worth downloading.
+	 *
+	 * @param key The message's key.
+	 * @return True if the message would be kept.
+	 */
+	public boolean accepts(MessageKey key) {
+		if (days > 0 && key.getTime() < getCutoff()) return false;
+		synchronized (evictedKeys) {
+			return !evictedKeys.containsKey(key);
+		}
+	}
+
+	/**
+	 * Evict every topic not in the given list, and any messages that have outlived the retention
+	 * period. Topics are compared without regard to case.
+	 *
+	 * @param topics The topics to keep.
+	 */
+	public synchronized void retainTopics(Collection<String> topics) {
+		Set<String> retained = new HashSet<String>();
+		for (String t : topics) retained.add(t.toLowerCase());
+		for (String topic : new ArrayList<String>(topicAccess.keySet())) {
+			if (!retained.contains(topic.toLowerCase())) {
+				evictTopic(topic, Reason.Unsubscribed);
+			} else {
+				trim(topic);
+			}
+		}
+	}
+
+
+
+	@Override
+	public synchronized void addMessage(Message m) {
+		if (store.getMessageByKey(m.getKey()) != null) return;
+		store.addMessage(m);
+		bytes.addAndGet(getSize(m));
+		String topic = m.getTopic();
+		if (!topicAccess.containsKey(topic)) topicAccess.put(topic, clock.incrementAndGet());
+		trim(topic);
+		while (bytes.get() > budget && !topicAccess.isEmpty()) evictLeastRecent(topic);
+	}
+
+	@Override
+	public synchronized Message downloadMessage(MessageKey key, int downloadLimit) {
+		Message m = store.downloadMessage(key, downloadLimit);
+		if (m != null && store.getMessageByKey(key) == null) removed(m);
+		return m;
+	}
+
+	@Override
+	public synchronized void removeMessage(Message m) {
+		Message cached = store.getMessageByKey(m.getKey());
+		if (cached == null) return;
+		store.removeMessage(cached);
+		removed(cached);
+	}
+
+	private void removed(Message m) {
+		bytes.addAndGet(-getSize(m));
+		if (store.getMessagesByTopic(m.getTopic()).isEmpty()) topicAccess.remove(m.getTopic());
+	}
+
+	private void evict(Message m, Reason reason) {
+		store.removeMessage(m);
+		removed(m);
+		evictions[reason.ordinal()].incrementAndGet();
+		evictedBytes.addAndGet(getSize(m));
+		if (reason == Reason.Retention) {
+			synchronized (evictedKeys) {
+				evictedKeys.put(m.getKey(), Boolean.TRUE);
+			}
+		}
+	}
+
+	private void evictTopic(String topic, Reason reason) {
+		List<Message> messages = new ArrayList<Message>(store.getMessagesByTopic(topic));
+		for (Message m : messages) evict(m, reason);
+		topicAccess.remove(topic);
+		forgetEvictions(topic);
+		log.debug(String.format("Evicted %s messages of topic %s (%s).", messages.size(), topic, reason));
+	}
+
+	/**
+	 * Forget the remembered evictions of a topic that is no longer cached at all, since what was
+	 * beyond its limits then may well be within them once it is filled again.
+	 */
+	private void forgetEvictions(String topic) {
+		int id = MessageKey.getTopicID(topic);
+		synchronized (evictedKeys) {
+			Iterator<MessageKey> i = evictedKeys.keySet().iterator();
+			while (i.hasNext()) {
+				if (i.next().getTopicID() == id) i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Evict the topic read least recently. If that is the topic just written to, only its oldest
+	 * message is evicted, so a single topic larger than the budget keeps its newest messages.
+	 */
+	private void evictLeastRecent(String current) {
+		String oldest = null;
+		long oldestAccess = Long.MAX_VALUE;
+		for (Map.Entry<String, Long> e : topicAccess.entrySet()) {
+			if (e.getValue() < oldestAccess && (!e.getKey().equals(current) || topicAccess.size() == 1)) {
+				oldest = e.getKey();
+				oldestAccess = e.getValue();
+			}
+		}
+		if (oldest == null) return;
+		if (oldest.equals(current)) {
+			evict(store.getMessagesByTopic(current).first(), Reason.Budget);
+		} else {
+			evictTopic(oldest, Reason.Budget);
+		}
+	}
+
+	/**
+	 * Evict the messages of a topic beyond the per-topic limit and the retention period.
+	 */
+	private void trim(String topic) {
+		ConcurrentSkipListSet<Message> timeline = store.getMessagesByTopic(topic);
+		while (topicMessages > 0 && timeline.size() > topicMessages) evict(timeline.first(), Reason.Retention);
+		if (days > 0) {
+			long cutoff = getCutoff();
+			while (!timeline.isEmpty() && timeline.first().getCreationDate().getMillis() < cutoff) evict(timeline.first(), Reason.Retention);
+		}
+	}
+
+	/**
+	 * Retrieve the creation time before which messages of the given topic aren't wanted: the
+	 * retention cutoff, or the oldest cached message if the topic is at its message limit. Messages
+	 * older than this would only be evicted again.
+	 *
+	 * @param topic The topic.
+	 * @return The time in milliseconds, or 0 if every message of the topic is wanted.
+	 */
+	public long getHorizon(String topic) {
+		long horizon = (days > 0) ? getCutoff() : 0;
+		ConcurrentSkipListSet<Message> timeline = store.getMessagesByTopic(topic);
+		if (topicMessages > 0 && timeline.size() >= topicMessages) {
+			try {
+				horizon = Math.max(horizon, timeline.first().getCreationDate().getMillis());
+			} catch (NoSuchElementException e) {
+				/*
+				 * The topic was evicted meanwhile.
+				 */
+			}
+		}
+		return horizon;
+	}
+
+	private long getCutoff() {
+		return DateTime.now().minusDays(days).getMillis();
+	}
+
+	/**
+	 * Note a read of a topic, and expire its old messages if there are any.
+	 */
+	private void touch(String topic) {
+		if (topicAccess.replace(topic, clock.incrementAndGet()) == null) {
+			misses.incrementAndGet();
+			return;
+		}
+		hits.incrementAndGet();
+		if (days > 0) {
+			ConcurrentSkipListSet<Message> timeline = store.getMessagesByTopic(topic);
+			if (!timeline.isEmpty() && timeline.first().getCreationDate().getMillis() < getCutoff()) {
+				synchronized (this) {
+					trim(topic);
+				}
+			}
+		}
+	}
+
+
+
+	@Override
+	public ConcurrentSkipListSet<Message> getMessagesByTopic(String topic) {
+		touch(topic);
+		return store.getMessagesByTopic(topic);
+	}
+
+	@Override
+	public NavigableSet<Message> range(String topic, DateTime from, DateTime to) {
+		touch(topic);
+		return store.range(topic, from, to);
+	}
+
+	@Override
+	public List<Message> latest(String topic, int count) {
+		touch(topic);
+		return store.latest(topic, count);
+	}
+
+	@Override
+	public NavigableSet<Message> since(String topic, Message cursor) {
+		touch(topic);
+		return store.since(topic, cursor);
+	}
+
+	@Override
+	public Message getMessageByKey(MessageKey key) {
+		return store.getMessageByKey(key);
+	}
+
+	@Override
+	public Set<MessageKey> getMessageKeys() {
+		return store.getMessageKeys();
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public Set<Message> getMessages() {
+		return store.getMessages();
+	}
+
+	@Override
+	public ArrayList<MessageKey> getRandomKeys(int resultSize) {
+		return store.getRandomKeys(resultSize);
+	}
+
+	@Override
+	public HashSet<MessageKey> getRandomKeysByByte(int maxSize) {
+		return store.getRandomKeysByByte(maxSize);
+	}
+
+	@Override
+	public KeyTree getKeyTree() {
+		return store.getKeyTree();
+	}
+
+
+
+	/**
+	 * Retrieve the store holding the cached messages. Reading it directly doesn't count as a read
+	 * of the cache, so it leaves the eviction order alone.
+	 */
+	public MessageStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Retrieve the estimated number of bytes used by the cached messages.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Retrieve the number of topic reads that found the topic in the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Retrieve the number of topic reads that found nothing cached for the topic.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions(Reason reason) {
+		return evictions[reason.ordinal()].get();
+	}
+
+	public long getEvictedBytes() {
+		return evictedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[messages=%s, topics=%s, bytes=%s, budget=%s, hits=%s, misses=%s, evictedRetention=%s, evictedUnsubscribed=%s, evictedBudget=%s, evictedBytes=%s]",
+				getClass().getSimpleName(), store.size(), topicAccess.size(), bytes.get(), budget, hits.get(), misses.get(), getEvictions(Reason.Retention),
+				getEvictions(Reason.Unsubscribed), getEvictions(Reason.Budget), evictedBytes.get());
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return store;
+	}
+}
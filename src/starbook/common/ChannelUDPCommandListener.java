@@ -0,0 +1,244 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Listen on the network for UDP packets using a non-blocking {@link DatagramChannel}. Each time
+ * the channel becomes readable, up to {@link #BatchSize} datagrams are drained into direct buffers
+ * from a {@link BufferPool} and put on a bounded queue. A fixed set of worker threads (see
+ * {@link CK#CommandUDPWorkers}) takes datagrams off the queue, decodes them and runs a handler from
+ * the specified factory, so neither buffers nor threads are created per packet.
+ * </p>
+ * <p>
+ * Buffers are sized by {@link UDPCommandListener#getBufferSize()}, so a datagram that fills one
+ * was truncated, and is dropped. If the queue is full, or every buffer is in use, datagrams are
+ * read and dropped too. The number of received, dropped, truncated and undecodable datagrams, along
+ * with the current and peak queue depth, are kept as counters and shown on the node pages.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class ChannelUDPCommandListener implements Runnable, Stoppable {
+	private static final Logger log = Logger.getLogger(ChannelUDPCommandListener.class);
+	public static final int DefaultQueueSize = 1024;
+	public static final int DefaultWorkers = 8;
+	public static final int BatchSize = 64;
+	private static final int ReceiveBufferSize = 1024 * 1024;
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final CommandHandlerFactory factory;
+	private final BufferPool pool;
+	private final BlockingQueue<ByteBuffer> queue;
+	private final Thread[] workers;
+	private final int bufferSize;
+	private final ByteBuffer discard;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong truncated = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile int peakQueueDepth = 0;
+	private volatile boolean running = true;
+
+	public ChannelUDPCommandListener(InetSocketAddress address, CommandHandlerFactory factory) throws IOException {
+		super();
+		this.factory = factory;
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, ReceiveBufferSize);
+		channel.bind(address);
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		int queueSize = Configuration.getInt(CK.CommandUDPQueueSize, DefaultQueueSize);
+		queue = new ArrayBlockingQueue<ByteBuffer>(queueSize);
+
+		/*
+		 * Every queued datagram holds a buffer, and each worker holds one while decoding, so there
+		 * is never a need for more buffers than that.
+		 */
+		workers = new Thread[Math.max(1, Configuration.getInt(CK.CommandUDPWorkers, DefaultWorkers))];
+		bufferSize = UDPCommandListener.getBufferSize();
+		pool = new BufferPool(bufferSize, queueSize + workers.length);
+		discard = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	@Override
+	public void run() {
+		log.debug("Waiting for packets on " + channel.socket().getLocalSocketAddress() + " with " + workers.length + " worker(s)");
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Worker(), "UDP Command Worker " + i);
+			workers[i].start();
+		}
+
+		while (running && !Thread.currentThread().isInterrupted()) {
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+				drain();
+			} catch (IOException e) {
+				/*
+				 * Log the error and continue listening. Hopefully.
+				 */
+				e.printStackTrace();
+			}
+		}
+
+		/*
+		 * Clear the interrupt so we can wait for the workers to finish.
+		 */
+		Thread.interrupted();
+		stopThreads();
+	}
+
+	/**
+	 * Receive up to BatchSize datagrams, queueing them for the workers.
+	 */
+	private void drain() throws IOException {
+		for (int i = 0; i < BatchSize; i++) {
+			ByteBuffer b = pool.acquire();
+			if (b == null) {
+				/*
+				 * Every buffer is queued or being decoded. Read the datagram anyway so the socket
+				 * buffer doesn't fill up, and drop it.
+				 */
+				discard.clear();
+				if (channel.receive(discard) == null) return;
+				received.incrementAndGet();
+				drop();
+				continue;
+			}
+
+			if (channel.receive(b) == null) {
+				pool.release(b);
+				return;
+			}
+			received.incrementAndGet();
+			if (!b.hasRemaining()) {
+				/*
+				 * Senders keep UDP commands under the configured size, so a full buffer means the
+				 * datagram was truncated and can't be decoded.
+				 */
+				pool.release(b);
+				long t = truncated.incrementAndGet();
+				if (t % 100 == 1) log.warn(String.format("Dropping truncated datagrams: %s", this));
+				continue;
+			}
+			b.flip();
+
+			if (queue.offer(b)) {
+				int depth = queue.size();
+				if (depth > peakQueueDepth) peakQueueDepth = depth;
+			} else {
+				pool.release(b);
+				drop();
+			}
+		}
+	}
+
+	private void drop() {
+		long d = dropped.incrementAndGet();
+		if (d % 100 == 1) log.warn(String.format("Dropping datagrams: %s", this));
+	}
+
+	@Override
+	public void stopThreads() {
+		running = false;
+		selector.wakeup();
+		for (Thread t : workers) {
+			if (t == null) continue;
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		log.debug("Stopped: " + this);
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getTruncated() {
+		return truncated.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getPeakQueueDepth() {
+		return peakQueueDepth;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[received=%s, dropped=%s, truncated=%s, failed=%s, queue=%s, peakQueue=%s, buffers=%s]", getClass().getSimpleName(),
+				received.get(), dropped.get(), truncated.get(), failed.get(), queue.size(), peakQueueDepth, pool.getAllocated());
+	}
+
+
+
+	/**
+	 * Takes datagrams off the queue, decodes them and processes the commands.
+	 */
+	private class Worker implements Runnable {
+		private final byte[] scratch = new byte[bufferSize];
+
+		@Override
+		public void run() {
+			while (running) {
+				ByteBuffer b;
+				try {
+					b = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				int length = b.remaining();
+				b.get(scratch, 0, length);
+				pool.release(b);
+
+				try {
+					for (Command c : CommandCodec.decodeAll(scratch, 0, length)) CommandScheduler.Instance.process(factory, c);
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					e.printStackTrace();
+				} catch (RuntimeException e) {
+					/*
+					 * Don't let a misbehaving handler take the worker down with it.
+					 */
+					log.error("Command handler failed.", e);
+				}
+			}
+		}
+	}
+}
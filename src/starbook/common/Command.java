@@ -1,11 +1,8 @@
 package starbook.common;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
@@ -28,6 +25,12 @@ public class Command implements Serializable {
 	protected final Type type;
 	private static final long serialVersionUID = 2952924549166796494L;
 
+	/**
+	 * The default for {@link CK#CommandUDPMaxSize}, small enough to avoid IP fragmentation on a
+	 * typical network.
+	 */
+	public static final int DefaultMaxUDPSize = 1400;
+
 	/**
 	 * Create a new command of the specified type and with the specified data map.
 	 * 
@@ -89,7 +92,7 @@ public class Command implements Serializable {
 		 * Data map:
 		 * </p>
 		 * <ul>
-		 * <li>"guid" (String): The GUID of the message to download.</li>
+		 * <li>"key" (MessageKey): The key of the message to download.</li>
 		 * <li>"source" (InetAddress): The sender.</li>
 		 * </ul>
 		 */
@@ -214,37 +217,164 @@ public class Command implements Serializable {
 		 * <li>"user" (User): The user that was requested.</li>
 		 * </ul>
 		 */
-		UserUpload
+		UserUpload,
+
+		/**
+		 * <p>
+		 * Several edges for the monitor to display at once, sent by a node's {@link Telemetry}
+		 * instead of one ToggleEdge command per edge.
+		 * </p>
+		 * <p>
+		 * Data map:
+		 * </p>
+		 * <ul>
+		 * <li>"edges" (List&lt;Edge&gt;): The edges.</li>
+		 * <li>"source" (InetAddress): The sender.</li>
+		 * </ul>
+		 */
+		EdgeBatch,
+
+		/**
+		 * <p>
+		 * Sent by a worker node to the node it got messages from (or saw them advertised by) to
+		 * confirm that it has stored them. Web nodes stop publishing a message once enough workers
+		 * have confirmed it.
+		 * </p>
+		 * <p>
+		 * Data map:
+		 * </p>
+		 * <ul>
+		 * <li>"keys" (List&lt;MessageKey&gt;): The keys of the stored messages.</li>
+		 * <li>"source" (InetAddress): The sender.</li>
+		 * </ul>
+		 */
+		MessageStored,
+
+		/**
+		 * <p>
+		 * A MessageRequest for many messages at once. This is only sent at the start of a
+		 * {@link MessageStream}, which the receiving node answers with the messages on the same
+		 * connection.
+		 * </p>
+		 * <p>
+		 * Data map:
+		 * </p>
+		 * <ul>
+		 * <li>"keys" (List&lt;MessageKey&gt;): The keys of the messages to download.</li>
+		 * <li>"source" (InetAddress): The sender.</li>
+		 * </ul>
+		 */
+		MessageBatchRequest,
+
+		/**
+		 * <p>
+		 * The MessagePush command is sent by a web node to the neighbors that subscribe to the
+		 * topics of messages just posted there, so they have them without waiting for the
+		 * MessageDownloadProtocol to come across them. See {@link starbook.nodes.web.MessagePusher}.
+		 * </p>
+		 * <p>
+		 * Data map:
+		 * </p>
+		 * <ul>
+		 * <li>"messages" (List&lt;Message&gt;): The new messages.</li>
+		 * <li>"source" (InetAddress): The sender.</li>
+		 * </ul>
+		 */
+		MessagePush
 	}
 	
+	/**
+	 * Mark this command as the response to the given request, so the requesting node's
+	 * {@link RequestTracker} can match them up. The request's "requestId" entry, if any, becomes
+	 * this command's "replyTo" entry; a "requestId" entry copied along with the request's data is
+	 * removed.
+	 * 
+	 * @param request The command being answered.
+	 * @return This command.
+	 */
+	public Command inReplyTo(Command request) {
+		Object id = request.getData().get("requestId");
+		data.remove("requestId");
+		if (id != null) data.put("replyTo", id);
+		return this;
+	}
+
+	/**
+	 * Encode this command using the configured encoding.
+	 * 
+	 * @return The encoded command.
+	 * @throws IOException If the command cannot be encoded.
+	 * @see CommandCodec#encode(Command)
+	 */
+	public byte[] encode() throws IOException {
+		return CommandCodec.encode(this);
+	}
+
+	/**
+	 * Send the Command to a remote host over UDP if its encoded form is small enough to arrive in
+	 * one datagram (see {@link CK#CommandUDPMaxSize}), or over TCP otherwise. Commands whose size
+	 * depends on their contents, such as those carrying a Message or User, should be sent this way.
+	 * 
+	 * @param isa The address and port to which the Command will be sent.
+	 * @throws IOException If there are problems encoding or sending the command.
+	 */
+	public void send(InetSocketAddress isa) throws IOException {
+		byte[] buffer = encode();
+		if (buffer.length <= getMaxUDPSize()) {
+			log.debug(String.format("Sending %s to %s via UDP (%d bytes)", this, isa, buffer.length));
+			UDPSender.Instance.send(isa, buffer);
+		} else {
+			sendViaTCP(isa, buffer);
+		}
+	}
+
+	/**
+	 * Retrieve the largest encoded command that will be sent over UDP by
+	 * {@link #send(InetSocketAddress)}.
+	 * 
+	 * @return The size in bytes.
+	 */
+	public static int getMaxUDPSize() {
+		return Configuration.getInt(CK.CommandUDPMaxSize, DefaultMaxUDPSize);
+	}
+
+	/**
+	 * Send the Command to a remote host over TCP. If connection pooling is enabled, the command is
+	 * written to a long-lived connection from the {@link TCPConnectionPool}; otherwise a new
+	 * connection is opened just for this command.
+	 * 
+	 * @param isa The address and port to which the Command will be sent.
+	 * @throws IOException If there are problems writing to or opening the socket.
+	 */
 	public void sendViaTCP(InetSocketAddress isa) throws IOException {
+		sendViaTCP(isa, encode());
+	}
+
+	private void sendViaTCP(InetSocketAddress isa, byte[] buffer) throws IOException {
+		if (TCPConnectionPool.isEnabled()) {
+			TCPConnectionPool.Instance.send(isa, buffer);
+			log.debug(String.format("Sending %s to %s (pooled, %d bytes)", this, isa, buffer.length));
+			return;
+		}
 		Socket socket = new Socket(isa.getAddress(), isa.getPort());
-		ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-		oos.writeObject(this);
-		oos.flush();
-		oos.close();
-		log.debug(String.format("Sending %s to %s", this, isa));
+		OutputStream os = socket.getOutputStream();
+		os.write(buffer);
+		os.flush();
+		os.close();
+		log.debug(String.format("Sending %s to %s (%d bytes)", this, isa, buffer.length));
 	}
 
 	/**
-	 * The sendTo method will send the Command to a remote host over UDP.
+	 * The sendTo method will send the Command to a remote host over UDP, using the node's shared
+	 * {@link UDPSender}.
 	 * 
 	 * @param isa The address and port to which the Command will be sent.
-	 * @throws IOException If there are problems writing to or opening the socket.
+	 * @throws IOException If there are problems encoding or sending the command.
 	 */
 	public void sendViaUDP(SocketAddress isa) throws IOException {
-		DatagramSocket s = new DatagramSocket();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos;
-		oos = new ObjectOutputStream(baos);
-		oos.writeObject(this);
-		oos.flush();
-		byte[] buffer = baos.toByteArray();
-		DatagramPacket p = new DatagramPacket(buffer, buffer.length, isa);
-		oos.close();
-		baos.close();
+		byte[] buffer = encode();
 		log.debug(String.format("Sending %s to %s (%d bytes)", this, isa, buffer.length));
-		s.send(p);
+		UDPSender.Instance.send(isa, buffer);
 	}
 
 	@Override
@@ -0,0 +1,727 @@
+package starbook.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import starbook.common.BaseNode.Type;
+
+/**
+ * <p>
+ * Encodes and decodes {@link Command}s. Two encodings are supported: plain Java serialization (the
+ * original format) and a compact binary format with a fixed schema for each {@link Command.Type}.
+ * The encoding used for outgoing commands is selected with the {@link CK#CommandEncoding}
+ * parameter; incoming commands are always decoded by looking at the first byte, so nodes using
+ * different encodings can still talk to each other.
+ * </p>
+ * <p>
+ * A binary frame is laid out as follows:
+ * </p>
+ * <ul>
+ * <li>The magic byte (0xB5) and the format version.</li>
+ * <li>The length of the body as a varint.</li>
+ * <li>The body: the command type's ordinal as a varint, followed by the fields present in the data
+ * map. Each field is a varint key (the field tag shifted left three bits, plus the wire type) and
+ * either a varint or a length-prefixed value. Strings are UTF-8 and addresses are their raw 4 or
+ * 16 bytes. Unknown fields are skipped, so fields can be added without bumping the version.</li>
+ * </ul>
+ * <p>
+ * Since binary frames carry their own length, several of them can be sent in one datagram. Such a
+ * packed datagram starts with the pack byte (0xB6) followed by the frames back to back; see
+ * {@link #decodeAll(byte[], int, int)}.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public final class CommandCodec {
+	public static enum Encoding { Java, Binary; }
+
+	public static final int Magic = 0xB5;
+	public static final int Version = 1;
+	public static final int PackMagic = 0xB6;
+	private static final int JavaMagic = 0xAC;
+	private static final int WireVarint = 0;
+	private static final int WireBytes = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The data map fields known to the binary encoding. The tag of a field must never change once it
+	 * has been used on the wire.
+	 */
+	private static enum Field {
+		Source("source", 1, Kind.Address),
+		Name("name", 2, Kind.String),
+		GUID("guid", 3, Kind.String),
+		Edge("edge", 4, Kind.Edge),
+		Message("message", 5, Kind.Message),
+		User("user", 6, Kind.User),
+		Node("node", 7, Kind.Address),
+		NodeType("type", 8, Kind.NodeType),
+		Leader("leader", 9, Kind.Boolean),
+		Edges("edges", 10, Kind.Edges),
+		RequestID("requestId", 11, Kind.Long),
+		ReplyTo("replyTo", 12, Kind.Long),
+		Key("key", 13, Kind.Key),
+		Keys("keys", 14, Kind.Keys),
+		Messages("messages", 15, Kind.Messages);
+
+		private final String key;
+		private final int tag;
+		private final Kind kind;
+
+		private Field(String key, int tag, Kind kind) {
+			this.key = key;
+			this.tag = tag;
+			this.kind = kind;
+		}
+	}
+
+	private static enum Kind { Address, Boolean, Edge, Edges, Key, Keys, Long, Message, Messages, NodeType, String, User; }
+
+	/**
+	 * The fields that may appear in the data map of each command type. These mirror the data maps
+	 * documented in {@link Command.Type}.
+	 */
+	private static final Map<Command.Type, Field[]> schema = new EnumMap<Command.Type, Field[]>(Command.Type.class);
+	static {
+		schema.put(Command.Type.UserRequest, new Field[] { Field.Source, Field.Name, Field.RequestID });
+		schema.put(Command.Type.MessageRequest, new Field[] { Field.Source, Field.Key, Field.RequestID });
+		schema.put(Command.Type.Ping, new Field[] { Field.Source, Field.NodeType, Field.Leader });
+		schema.put(Command.Type.ToggleEdge, new Field[] { Field.Source, Field.Edge });
+		schema.put(Command.Type.MessageUpload, new Field[] { Field.Source, Field.Message, Field.ReplyTo });
+		schema.put(Command.Type.AddTopic, new Field[] { Field.Source, Field.User });
+		schema.put(Command.Type.AddUser, new Field[] { Field.Source, Field.User, Field.RequestID });
+		schema.put(Command.Type.AddedUser, new Field[] { Field.Source, Field.User, Field.Node, Field.ReplyTo });
+		schema.put(Command.Type.CreateUser, new Field[] { Field.Source, Field.Node, Field.User, Field.RequestID });
+		schema.put(Command.Type.UserUpload, new Field[] { Field.Source, Field.User, Field.ReplyTo });
+		schema.put(Command.Type.EdgeBatch, new Field[] { Field.Source, Field.Edges });
+		schema.put(Command.Type.MessageStored, new Field[] { Field.Source, Field.Keys });
+		schema.put(Command.Type.MessageBatchRequest, new Field[] { Field.Source, Field.Keys });
+		schema.put(Command.Type.MessagePush, new Field[] { Field.Source, Field.Messages });
+	}
+
+	/**
+	 * This is a static class.
+	 */
+	private CommandCodec() {}
+
+
+
+	/**
+	 * Retrieve the encoding configured for outgoing commands. Java serialization is used unless the
+	 * {@link CK#CommandEncoding} parameter is set to "binary".
+	 *
+	 * @return The configured encoding.
+	 */
+	public static Encoding getConfiguredEncoding() {
+		String s = Configuration.getStr(CK.CommandEncoding);
+		if (s != null && s.equalsIgnoreCase("binary")) return Encoding.Binary;
+		return Encoding.Java;
+	}
+
+
+
+	/**
+	 * Encode the given command using the configured encoding.
+	 *
+	 * @see CommandCodec#encode(Command, Encoding)
+	 */
+	public static byte[] encode(Command command) throws IOException {
+		return encode(command, getConfiguredEncoding());
+	}
+
+
+
+	/**
+	 * Encode the given command using the given encoding. If the binary encoding is requested but the
+	 * command's data map contains something the binary schema doesn't know about, the command is
+	 * encoded with Java serialization instead so nothing is lost.
+	 *
+	 * @param command The command to encode.
+	 * @param encoding The encoding to use.
+	 * @return The encoded command.
+	 * @throws IOException If the command cannot be encoded.
+	 */
+	public static byte[] encode(Command command, Encoding encoding) throws IOException {
+		if (encoding == Encoding.Binary && isEncodable(command)) {
+			return encodeBinary(command);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(command);
+		oos.close();
+		return baos.toByteArray();
+	}
+
+
+
+	/**
+	 * Determine if every entry in the command's data map has a binary representation.
+	 *
+	 * @param command The command to check.
+	 * @return True if the command can be encoded with the binary encoding.
+	 */
+	public static boolean isEncodable(Command command) {
+		Field[] fields = schema.get(command.getType());
+		if (fields == null) return false;
+		for (Map.Entry<String, Object> e : command.getData().entrySet()) {
+			Field f = getField(fields, e.getKey());
+			if (f == null || !isKind(f.kind, e.getValue())) return false;
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Decode a command from the given bytes, which may be in either encoding.
+	 *
+	 * @param b The buffer containing the command.
+	 * @param offset The offset of the command within the buffer.
+	 * @param length The number of bytes available.
+	 * @return The decoded command.
+	 * @throws IOException If the data is not a valid command.
+	 */
+	public static Command decode(byte[] b, int offset, int length) throws IOException {
+		if (length < 1) throw new EOFException("Empty command.");
+		if ((b[offset] & 0xFF) == Magic) {
+			Reader r = new Reader(b, offset + 1, offset + length);
+			int version = r.readByte();
+			if (version != Version) throw new IOException(String.format("Unsupported command version %s.", version));
+			int bodyLength = r.readVarint();
+			int start = r.position;
+			return decodeBody(new Reader(b, start, r.sub(bodyLength)));
+		} else if ((b[offset] & 0xFF) == JavaMagic) {
+			return readObject(new ByteArrayInputStream(b, offset, length));
+		}
+		throw new IOException("Received data is not a command.");
+	}
+
+
+
+	/**
+	 * Determine if the given encoded command uses the binary encoding, and so can be packed with
+	 * others into one datagram.
+	 *
+	 * @param b An encoded command.
+	 * @return True if the command is a binary frame.
+	 */
+	public static boolean isBinary(byte[] b) {
+		return b.length > 0 && (b[0] & 0xFF) == Magic;
+	}
+
+
+
+	/**
+	 * Decode every command in the given bytes. This is either a packed datagram of binary frames or
+	 * a single command in either encoding.
+	 *
+	 * @param b The buffer containing the commands.
+	 * @param offset The offset of the first command within the buffer.
+	 * @param length The number of bytes available.
+	 * @return The decoded commands, in the order they were packed.
+	 * @throws IOException If the data is not a valid command or packed datagram.
+	 */
+	public static List<Command> decodeAll(byte[] b, int offset, int length) throws IOException {
+		List<Command> commands = new ArrayList<Command>();
+		if (length < 1 || (b[offset] & 0xFF) != PackMagic) {
+			commands.add(decode(b, offset, length));
+			return commands;
+		}
+		Reader r = new Reader(b, offset + 1, offset + length);
+		while (r.hasRemaining()) {
+			if (r.readByte() != Magic) throw new IOException("Packed datagram contains a non-binary command.");
+			int version = r.readByte();
+			if (version != Version) throw new IOException(String.format("Unsupported command version %s.", version));
+			int bodyLength = r.readVarint();
+			int start = r.position;
+			commands.add(decodeBody(new Reader(b, start, r.sub(bodyLength))));
+		}
+		return commands;
+	}
+
+
+
+	/**
+	 * Decode a single command from the given stream, which may be in either encoding. A binary
+	 * command is read exactly, leaving the stream positioned after it.
+	 *
+	 * @param in The stream from which to read.
+	 * @return The decoded command.
+	 * @throws IOException If the data is not a valid command.
+	 */
+	public static Command decode(InputStream in) throws IOException {
+		PushbackInputStream pis = new PushbackInputStream(in, 1);
+		int first = pis.read();
+		if (first < 0) throw new EOFException("End of stream before command.");
+		if (first == Magic) {
+			DataInputStream dis = new DataInputStream(pis);
+			int version = dis.readUnsignedByte();
+			if (version != Version) throw new IOException(String.format("Unsupported command version %s.", version));
+			int bodyLength = readVarint(dis);
+			if (bodyLength < 0) throw new IOException(String.format("Invalid command length %s.", bodyLength));
+			byte[] body = new byte[bodyLength];
+			dis.readFully(body);
+			return decodeBody(new Reader(body, 0, body.length));
+		} else if (first == JavaMagic) {
+			pis.unread(first);
+			return readObject(pis);
+		}
+		throw new IOException("Received data is not a command.");
+	}
+
+
+
+	private static Command readObject(InputStream in) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(in);
+		try {
+			Object o = ois.readObject();
+			if (o instanceof Command) {
+				return (Command) o;
+			} else {
+				throw new IOException("Received data is not a command.");
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+
+
+	private static byte[] encodeBinary(Command command) throws IOException {
+		Writer body = new Writer();
+		body.writeVarint(command.getType().ordinal());
+		for (Field f : schema.get(command.getType())) {
+			Object value = command.getData().get(f.key);
+			if (value != null) writeField(body, f.tag, f.kind, value);
+		}
+		Writer frame = new Writer();
+		frame.write(Magic);
+		frame.write(Version);
+		frame.writeVarint(body.size());
+		body.writeTo(frame);
+		return frame.toByteArray();
+	}
+
+
+
+	private static Command decodeBody(Reader r) throws IOException {
+		int ordinal = r.readVarint();
+		Command.Type[] types = Command.Type.values();
+		if (ordinal < 0 || ordinal >= types.length) throw new IOException(String.format("Unknown command type %s.", ordinal));
+		Command.Type type = types[ordinal];
+		Field[] fields = schema.get(type);
+		Map<String, Object> data = new HashMap<String, Object>();
+		while (r.hasRemaining()) {
+			int key = r.readVarint();
+			Field f = getField(fields, key >>> 3);
+			if (f == null) {
+				r.skip(key & 0x7);
+			} else {
+				data.put(f.key, readField(r, f.kind, key & 0x7));
+			}
+		}
+		return new Command(type, data);
+	}
+
+
+
+	private static Field getField(Field[] fields, String key) {
+		for (Field f : fields) if (f.key.equals(key)) return f;
+		return null;
+	}
+
+	private static Field getField(Field[] fields, int tag) {
+		for (Field f : fields) if (f.tag == tag) return f;
+		return null;
+	}
+
+	private static boolean isKind(Kind kind, Object value) {
+		switch (kind) {
+			case Address: return value instanceof InetAddress;
+			case Boolean: return value instanceof Boolean;
+			case Edge: return value instanceof Edge;
+			case Edges: {
+				if (!(value instanceof List)) return false;
+				for (Object o : (List<?>) value) {
+					if (!(o instanceof Edge)) return false;
+				}
+				return true;
+			}
+			case Key: return value instanceof MessageKey;
+			case Keys: {
+				if (!(value instanceof List)) return false;
+				for (Object o : (List<?>) value) {
+					if (!(o instanceof MessageKey)) return false;
+				}
+				return true;
+			}
+			case Long: return value instanceof Long;
+			case Message: return value instanceof Message;
+			case Messages: {
+				if (!(value instanceof List)) return false;
+				for (Object o : (List<?>) value) {
+					if (!(o instanceof Message)) return false;
+				}
+				return true;
+			}
+			case NodeType: return value instanceof Type;
+			case String: return value instanceof String;
+			case User: return value instanceof User;
+		}
+		return false;
+	}
+
+
+
+	private static void writeField(Writer w, int tag, Kind kind, Object value) {
+		switch (kind) {
+			case Address:
+				w.writeBytes(tag, ((InetAddress) value).getAddress());
+				break;
+			case Boolean:
+				w.writeVarint(tag, ((Boolean) value) ? 1 : 0);
+				break;
+			case Edge: {
+				Edge e = (Edge) value;
+				Writer n = new Writer();
+				n.writeString(1, e.getName());
+				n.writeString(2, e.getA());
+				n.writeString(3, e.getB());
+				w.writeBytes(tag, n.toByteArray());
+				break;
+			}
+			case Edges: {
+				Writer n = new Writer();
+				for (Object e : (List<?>) value) writeField(n, 1, Kind.Edge, e);
+				w.writeBytes(tag, n.toByteArray());
+				break;
+			}
+			case Key:
+				w.writeBytes(tag, ((MessageKey) value).toBytes());
+				break;
+			case Keys: {
+				List<?> keys = new ArrayList<Object>((List<?>) value);
+				byte[] b = new byte[keys.size() * MessageKey.Size];
+				for (int i = 0; i < keys.size(); i++) ((MessageKey) keys.get(i)).toBytes(b, i * MessageKey.Size);
+				w.writeBytes(tag, b);
+				break;
+			}
+			case Long:
+				w.writeVarint(tag, (Long) value);
+				break;
+			case Message: {
+				Message m = (Message) value;
+				Writer n = new Writer();
+				n.writeString(1, m.getContent());
+				n.writeVarint(2, m.getCreationDate().getMillis());
+				n.writeString(3, m.getCreationDate().getZone().getID());
+				n.writeBytes(4, m.getSourceAddress().getAddress());
+				n.writeVarint(5, m.getID());
+				n.writeString(6, m.getTopic());
+				w.writeBytes(tag, n.toByteArray());
+				break;
+			}
+			case Messages: {
+				Writer n = new Writer();
+				for (Object m : (List<?>) value) writeField(n, 1, Kind.Message, m);
+				w.writeBytes(tag, n.toByteArray());
+				break;
+			}
+			case NodeType:
+				w.writeVarint(tag, ((Type) value).ordinal());
+				break;
+			case String:
+				w.writeString(tag, (String) value);
+				break;
+			case User: {
+				User u = (User) value;
+				Writer n = new Writer();
+				n.writeString(1, u.getName());
+				n.writeVarint(2, u.getLatestActivity().getMillis());
+				n.writeString(3, u.getLatestActivity().getZone().getID());
+				for (String s : u.getSubscriptions()) n.writeString(4, s);
+				w.writeBytes(tag, n.toByteArray());
+				break;
+			}
+		}
+	}
+
+
+
+	private static Object readField(Reader r, Kind kind, int wire) throws IOException {
+		switch (kind) {
+			case Address:
+				return InetAddress.getByAddress(r.readBytes());
+			case Boolean:
+				return r.readVarint() != 0;
+			case Edge: {
+				Reader n = r.readNested();
+				String name = null, a = null, b = null;
+				while (n.hasRemaining()) {
+					int key = n.readVarint();
+					switch (key >>> 3) {
+						case 1: name = n.readString(); break;
+						case 2: a = n.readString(); break;
+						case 3: b = n.readString(); break;
+						default: n.skip(key & 0x7);
+					}
+				}
+				return new Edge(name, a, b);
+			}
+			case Edges: {
+				Reader n = r.readNested();
+				ArrayList<Edge> edges = new ArrayList<Edge>();
+				while (n.hasRemaining()) {
+					int key = n.readVarint();
+					if (key >>> 3 == 1) {
+						edges.add((Edge) readField(n, Kind.Edge, key & 0x7));
+					} else {
+						n.skip(key & 0x7);
+					}
+				}
+				return edges;
+			}
+			case Key: {
+				byte[] b = r.readBytes();
+				if (b.length != MessageKey.Size) throw new IOException(String.format("Message key is %s bytes.", b.length));
+				return MessageKey.fromBytes(b, 0);
+			}
+			case Keys: {
+				byte[] b = r.readBytes();
+				if (b.length % MessageKey.Size != 0) throw new IOException(String.format("Message key list is %s bytes.", b.length));
+				ArrayList<MessageKey> keys = new ArrayList<MessageKey>(b.length / MessageKey.Size);
+				for (int i = 0; i < b.length; i += MessageKey.Size) keys.add(MessageKey.fromBytes(b, i));
+				return keys;
+			}
+			case Long:
+				return r.readVarlong();
+			case Message: {
+				Reader n = r.readNested();
+				String content = null, zone = null, topic = null;
+				long millis = 0;
+				InetAddress source = null;
+				int id = 0;
+				while (n.hasRemaining()) {
+					int key = n.readVarint();
+					switch (key >>> 3) {
+						case 1: content = n.readString(); break;
+						case 2: millis = n.readVarlong(); break;
+						case 3: zone = n.readString(); break;
+						case 4: source = InetAddress.getByAddress(n.readBytes()); break;
+						case 5: id = n.readVarint(); break;
+						case 6: topic = n.readString(); break;
+						default: n.skip(key & 0x7);
+					}
+				}
+				if (source == null || topic == null || topic.isEmpty()) throw new IOException("Message is missing its source or topic.");
+				return new BaseMessage(content, new DateTime(millis, getZone(zone)), source, id, topic);
+			}
+			case Messages: {
+				Reader n = r.readNested();
+				ArrayList<Message> messages = new ArrayList<Message>();
+				while (n.hasRemaining()) {
+					int key = n.readVarint();
+					if (key >>> 3 == 1) {
+						messages.add((Message) readField(n, Kind.Message, key & 0x7));
+					} else {
+						n.skip(key & 0x7);
+					}
+				}
+				return messages;
+			}
+			case NodeType: {
+				int ordinal = r.readVarint();
+				if (ordinal < 0 || ordinal >= Type.values().length) throw new IOException(String.format("Unknown node type %s.", ordinal));
+				return Type.values()[ordinal];
+			}
+			case String:
+				return r.readString();
+			case User: {
+				Reader n = r.readNested();
+				String name = null, zone = null;
+				long millis = 0;
+				List<String> subscriptions = new ArrayList<String>();
+				while (n.hasRemaining()) {
+					int key = n.readVarint();
+					switch (key >>> 3) {
+						case 1: name = n.readString(); break;
+						case 2: millis = n.readVarlong(); break;
+						case 3: zone = n.readString(); break;
+						case 4: subscriptions.add(n.readString()); break;
+						default: n.skip(key & 0x7);
+					}
+				}
+				if (name == null) throw new IOException("User is missing its name.");
+				User u;
+				try {
+					u = new BaseUser(name);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(String.format("Invalid user name \"%s\".", name), e);
+				}
+				u.getSubscriptions().addAll(subscriptions);
+				u.setLatestActivity(new DateTime(millis, getZone(zone)));
+				return u;
+			}
+		}
+		throw new IOException(String.format("Unknown field kind %s.", kind));
+	}
+
+	private static DateTimeZone getZone(String id) {
+		if (id == null) return DateTimeZone.getDefault();
+		try {
+			return DateTimeZone.forID(id);
+		} catch (IllegalArgumentException e) {
+			return DateTimeZone.getDefault();
+		}
+	}
+
+
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed varint.");
+	}
+
+
+
+	/**
+	 * A growable output buffer with helpers for writing keyed fields.
+	 */
+	private static final class Writer extends ByteArrayOutputStream {
+		Writer() {
+			super(64);
+		}
+
+		void writeVarint(long v) {
+			while ((v & ~0x7FL) != 0) {
+				write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		void writeVarint(int tag, long v) {
+			writeVarint((tag << 3) | WireVarint);
+			writeVarint(v);
+		}
+
+		void writeBytes(int tag, byte[] b) {
+			writeVarint((tag << 3) | WireBytes);
+			writeVarint(b.length);
+			write(b, 0, b.length);
+		}
+
+		void writeString(int tag, String s) {
+			if (s != null) writeBytes(tag, s.getBytes(UTF8));
+		}
+
+		void writeTo(Writer w) {
+			w.write(buf, 0, count);
+		}
+	}
+
+
+
+	/**
+	 * A bounds-checked cursor over a region of a byte array.
+	 */
+	private static final class Reader {
+		private final byte[] buffer;
+		private final int limit;
+		private int position;
+
+		Reader(byte[] buffer, int position, int limit) {
+			this.buffer = buffer;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		boolean hasRemaining() {
+			return position < limit;
+		}
+
+		int readByte() throws IOException {
+			if (position >= limit) throw new EOFException("Truncated command.");
+			return buffer[position++] & 0xFF;
+		}
+
+		long readVarlong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IOException("Malformed varint.");
+		}
+
+		int readVarint() throws IOException {
+			return (int) readVarlong();
+		}
+
+		/**
+		 * Reserve the next length bytes for a nested reader, returning the nested reader's limit.
+		 */
+		int sub(int length) throws IOException {
+			if (length < 0 || position + length > limit) throw new EOFException("Truncated command.");
+			int end = position + length;
+			position = end;
+			return end;
+		}
+
+		Reader readNested() throws IOException {
+			int length = readVarint();
+			int start = position;
+			return new Reader(buffer, start, sub(length));
+		}
+
+		byte[] readBytes() throws IOException {
+			int length = readVarint();
+			int start = position;
+			sub(length);
+			byte[] b = new byte[length];
+			System.arraycopy(buffer, start, b, 0, length);
+			return b;
+		}
+
+		String readString() throws IOException {
+			int length = readVarint();
+			int start = position;
+			sub(length);
+			return new String(buffer, start, length, UTF8);
+		}
+
+		void skip(int wire) throws IOException {
+			if (wire == WireVarint) {
+				readVarlong();
+			} else if (wire == WireBytes) {
+				sub(readVarint());
+			} else {
+				throw new IOException(String.format("Unknown wire type %s.", wire));
+			}
+		}
+	}
+}
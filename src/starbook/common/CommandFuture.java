@@ -0,0 +1,106 @@
+package starbook.common;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response to a command sent with {@link RequestTracker#request}. The future completes
+ * with the response once it has been processed by the receiving node's command handler, or fails
+ * with a {@link TimeoutException} once every retry has gone unanswered.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class CommandFuture implements Future<Command> {
+	private final long requestID;
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile Command response = null;
+	private volatile Throwable failure = null;
+	private volatile boolean cancelled = false;
+
+	CommandFuture(long requestID) {
+		this.requestID = requestID;
+	}
+
+	/**
+	 * Retrieve the ID sent with the request and echoed by the response.
+	 *
+	 * @return The request ID.
+	 */
+	public long getRequestID() {
+		return requestID;
+	}
+
+	/**
+	 * Complete the future with the given response. Only the first completion counts.
+	 *
+	 * @return True if this call completed the future.
+	 */
+	synchronized boolean complete(Command response) {
+		if (isDone()) return false;
+		this.response = response;
+		latch.countDown();
+		return true;
+	}
+
+	/**
+	 * Fail the future with the given cause. Only the first completion counts.
+	 *
+	 * @return True if this call completed the future.
+	 */
+	synchronized boolean fail(Throwable cause) {
+		if (isDone()) return false;
+		this.failure = cause;
+		latch.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (isDone()) return false;
+			cancelled = true;
+			failure = new CancellationException();
+			latch.countDown();
+		}
+		RequestTracker.Instance.forget(requestID);
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return latch.getCount() == 0;
+	}
+
+	@Override
+	public Command get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return getResponse();
+	}
+
+	@Override
+	public Command get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) throw new TimeoutException(String.format("No response to request %s yet.", requestID));
+		return getResponse();
+	}
+
+	private Command getResponse() throws ExecutionException {
+		if (cancelled) throw new CancellationException();
+		if (failure != null) throw new ExecutionException(failure);
+		return response;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[requestID=%s, done=%s]", getClass().getSimpleName(), requestID, isDone());
+	}
+}
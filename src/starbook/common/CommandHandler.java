@@ -6,5 +6,6 @@ import java.net.Socket;
 public interface CommandHandler extends Runnable {
 	public void setSocket(Socket socket);
 	public void setPacket(DatagramPacket packet);
+	public void setCommand(Command command);
 	public void processCommand(Command command);
 }
@@ -6,4 +6,5 @@ import java.net.Socket;
 public interface CommandHandlerFactory {
 	public CommandHandler getHandler(Socket socket);
 	public CommandHandler getHandler(DatagramPacket packet);
+	public CommandHandler getHandler(Command command);
 }
\ No newline at end of file
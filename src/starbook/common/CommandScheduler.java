@@ -0,0 +1,334 @@
+package starbook.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Schedules received commands by priority. Each {@link Command.Type} belongs to a {@link Lane};
+ * each lane has its own bounded queue, and a fixed set of worker threads takes commands from the
+ * lanes using smooth weighted round-robin, so a lane with weight 8 gets eight turns for every one
+ * a lane with weight 1 gets while both have work. A flood of bulk replication or telemetry traffic
+ * therefore can't hold up sign-ups and user assignment.
+ * </p>
+ * <p>
+ * When a lane's queue is full, control and user commands are run on the submitting thread (which
+ * slows the listener down), while bulk and telemetry commands are dropped; they are sent again by
+ * the gossip protocols anyway. Each lane keeps counts of submitted, completed and dropped commands
+ * along with the time spent waiting in the queue, which the node pages show.
+ * </p>
+ * <p>
+ * Lanes are enabled with {@link CK#CommandLanes}. When disabled, the listeners process commands
+ * the way they always have.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public enum CommandScheduler {
+	Instance;
+
+	private static final Logger log = Logger.getLogger(CommandScheduler.class);
+	public static final int DefaultLaneSize = 1000;
+	public static final int DefaultWorkers = 8;
+	private static final Map<Command.Type, Lane> lanes = new EnumMap<Command.Type, Lane>(Command.Type.class);
+	private final Map<Lane, LaneQueue> queues = new EnumMap<Lane, LaneQueue>(Lane.class);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private Thread[] workers = null;
+
+	/**
+	 * The lanes, from most to least important, and their scheduling weights.
+	 */
+	public static enum Lane {
+		Control(8, false), User(4, false), Bulk(2, true), Telemetry(1, true);
+
+		private final int weight;
+		private final boolean droppable;
+
+		private Lane(int weight, boolean droppable) {
+			this.weight = weight;
+			this.droppable = droppable;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+	}
+
+	static {
+		lanes.put(Command.Type.Ping, Lane.Control);
+		lanes.put(Command.Type.UserRequest, Lane.User);
+		lanes.put(Command.Type.AddUser, Lane.User);
+		lanes.put(Command.Type.AddedUser, Lane.User);
+		lanes.put(Command.Type.CreateUser, Lane.User);
+		lanes.put(Command.Type.UserUpload, Lane.User);
+		lanes.put(Command.Type.AddTopic, Lane.Bulk);
+		lanes.put(Command.Type.MessageRequest, Lane.Bulk);
+		lanes.put(Command.Type.MessageUpload, Lane.Bulk);
+		lanes.put(Command.Type.MessageStored, Lane.Bulk);
+		lanes.put(Command.Type.MessageBatchRequest, Lane.Bulk);
+		lanes.put(Command.Type.MessagePush, Lane.User);
+		lanes.put(Command.Type.ToggleEdge, Lane.Telemetry);
+		lanes.put(Command.Type.EdgeBatch, Lane.Telemetry);
+	}
+
+	private CommandScheduler() {
+		for (Lane l : Lane.values()) queues.put(l, new LaneQueue(l));
+	}
+
+
+
+	/**
+	 * Determine if received commands should be scheduled by lane.
+	 *
+	 * @return True if lanes are enabled.
+	 */
+	public static boolean isEnabled() {
+		return Configuration.getBool(CK.CommandLanes, false);
+	}
+
+
+
+	/**
+	 * Retrieve the lane to which commands of the given type belong.
+	 *
+	 * @param type The command type.
+	 * @return The lane. Types without an explicit lane are treated as bulk.
+	 */
+	public static Lane getLane(Command.Type type) {
+		Lane l = lanes.get(type);
+		return (l == null) ? Lane.Bulk : l;
+	}
+
+
+
+	/**
+	 * Process a received command. If lanes are enabled the command is queued in its lane;
+	 * otherwise it is processed immediately on the calling thread.
+	 *
+	 * @param factory The factory from which to get the command's handler.
+	 * @param command The decoded command.
+	 */
+	public void process(CommandHandlerFactory factory, Command command) {
+		CommandHandler handler = factory.getHandler(command);
+		if (!isEnabled()) {
+			handler.run();
+			return;
+		}
+		startWorkers();
+
+		Lane lane = getLane(command.getType());
+		LaneQueue q = queues.get(lane);
+		boolean queued;
+		lock.lock();
+		try {
+			queued = q.offer(handler);
+			if (queued) notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+
+		if (!queued) {
+			if (lane.droppable) {
+				long d = q.drop();
+				if (d % 100 == 1) log.warn(String.format("%s lane is full; dropping %s (%s dropped so far)", lane, command, d));
+			} else {
+				/*
+				 * Too important to drop; do it ourselves and slow the sender down.
+				 */
+				q.runInline(handler);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Retrieve a snapshot of a lane's counters.
+	 *
+	 * @param lane The lane.
+	 * @return A string of the form "Lane[depth=, submitted=, completed=, dropped=, inline=, averageWaitMillis=]".
+	 */
+	public String getMetrics(Lane lane) {
+		lock.lock();
+		try {
+			return queues.get(lane).toString();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieve a snapshot of every lane's counters, from the most important lane to the least.
+	 *
+	 * @return One string per lane, as from {@link #getMetrics(Lane)}, or an empty list if lanes are
+	 *         disabled.
+	 */
+	public List<String> getLaneMetrics() {
+		List<String> metrics = new ArrayList<String>();
+		if (!isEnabled()) return metrics;
+		for (Lane l : Lane.values()) metrics.add(getMetrics(l));
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("[");
+		for (Lane l : Lane.values()) {
+			if (l.ordinal() > 0) sb.append(", ");
+			sb.append(getMetrics(l));
+		}
+		return sb.append("]").toString();
+	}
+
+
+
+	private synchronized void startWorkers() {
+		if (workers != null) return;
+		workers = new Thread[Math.max(1, Configuration.getInt(CK.CommandLaneWorkers, DefaultWorkers))];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = Threads.newThread(new Worker(), "Command Lane Worker " + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Choose the next lane to serve using smooth weighted round-robin over the lanes that have
+	 * work: every non-empty lane earns its weight in credit, and the one with the most credit is
+	 * served and pays back the total. Must be called with the lock held.
+	 */
+	private LaneQueue next() {
+		LaneQueue best = null;
+		int total = 0;
+		for (LaneQueue q : queues.values()) {
+			if (q.isEmpty()) continue;
+			q.credit += q.lane.weight;
+			total += q.lane.weight;
+			if (best == null || q.credit > best.credit) best = q;
+		}
+		if (best != null) best.credit -= total;
+		return best;
+	}
+
+
+
+	/**
+	 * Takes handlers from the lanes and runs them.
+	 */
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				LaneQueue q;
+				Queued task;
+				lock.lock();
+				try {
+					while ((q = next()) == null) notEmpty.await();
+					task = q.poll();
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					lock.unlock();
+				}
+
+				q.started(task);
+				try {
+					task.handler.run();
+				} catch (RuntimeException e) {
+					log.error("Command handler failed.", e);
+				}
+				q.completed();
+			}
+		}
+	}
+
+
+
+	/**
+	 * A handler and when it was queued.
+	 */
+	private static class Queued {
+		private final CommandHandler handler;
+		private final long queuedAt = System.nanoTime();
+
+		public Queued(CommandHandler handler) {
+			this.handler = handler;
+		}
+	}
+
+
+
+	/**
+	 * One lane's queue and counters. The queue itself is guarded by the scheduler's lock; the
+	 * counters by this object.
+	 */
+	private static class LaneQueue {
+		private final Lane lane;
+		private final Queue<Queued> queue = new ArrayDeque<Queued>();
+		private int credit = 0;
+		private long submitted = 0;
+		private long started = 0;
+		private long completed = 0;
+		private long dropped = 0;
+		private long inline = 0;
+		private long waitNanos = 0;
+
+		public LaneQueue(Lane lane) {
+			this.lane = lane;
+		}
+
+		public boolean isEmpty() {
+			return queue.isEmpty();
+		}
+
+		public boolean offer(CommandHandler handler) {
+			synchronized (this) {
+				submitted++;
+			}
+			if (queue.size() >= Configuration.getInt(CK.CommandLaneSize, DefaultLaneSize)) return false;
+			queue.add(new Queued(handler));
+			return true;
+		}
+
+		public Queued poll() {
+			return queue.poll();
+		}
+
+		public synchronized void started(Queued task) {
+			started++;
+			waitNanos += System.nanoTime() - task.queuedAt;
+		}
+
+		public synchronized void completed() {
+			completed++;
+		}
+
+		public synchronized long drop() {
+			return ++dropped;
+		}
+
+		public void runInline(CommandHandler handler) {
+			synchronized (this) {
+				inline++;
+			}
+			handler.run();
+		}
+
+		@Override
+		public synchronized String toString() {
+			double average = (started == 0) ? 0 : waitNanos / (double) started / 1000000;
+			return String.format("%s[depth=%s, submitted=%s, completed=%s, dropped=%s, inline=%s, averageWaitMillis=%.2f]", lane, queue.size(), submitted,
+					completed, dropped, inline, average);
+		}
+	}
+}
@@ -34,6 +34,14 @@ public class Configuration {
 	public static int getInt(String name) { synchronized (parameters) { return Integer.valueOf((String) parameters.get(name)); } }
 	public static String getStr(String name) { synchronized (parameters) { return (String) parameters.get(name); } }
 
+	/*
+	 * Variants of the above for optional parameters, which return the given default if the parameter
+	 * isn't set. Parameters loaded from a context file are Strings, so those are parsed.
+	 */
+	public static boolean getBool(String name, boolean d) { Object o = getParameter(name); return (o == null) ? d : Boolean.valueOf(o.toString()); }
+	public static int getInt(String name, int d) { Object o = getParameter(name); return (o == null) ? d : Integer.valueOf(o.toString()); }
+	public static String getStr(String name, String d) { Object o = getParameter(name); return (o == null) ? d : o.toString(); }
+
 	/**
 	 * Dynamically set configuration parameters.
 	 * 
@@ -50,6 +50,14 @@ public interface DiscoverableNode extends Node {
 
 	public TCPAddress getRandomNeighbor(boolean self, Type type) throws IOException;
 
+	/**
+	 * Retrieve the type of the neighbor at the given address.
+	 * 
+	 * @param address The neighbor's address.
+	 * @return The type, or null if no neighbor has that address.
+	 */
+	public Type getNeighborType(InetAddress address);
+
 	boolean isNodesUpdated();
 
 	/**
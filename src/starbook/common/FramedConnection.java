@@ -0,0 +1,196 @@
+package starbook.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * A long-lived TCP connection to another node, over which any number of commands can be sent in
+ * either direction. A connection starts with the {@link #Preamble} and the command port of the
+ * connecting node (so the accepting node knows where that node listens, and can reuse the
+ * connection to send commands back). After that, each command is sent as a frame consisting of a
+ * four-byte length followed by the encoded command.
+ * </p>
+ * <p>
+ * When run, a connection reads frames until it is closed and hands each decoded command to its
+ * {@link TCPConnectionPool} for processing.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class FramedConnection implements Runnable {
+	private static final Logger log = Logger.getLogger(FramedConnection.class);
+	public static final byte[] Preamble = { 'S', 'B', 'F', 1 };
+	public static final int MaxFrameSize = 16 * 1024 * 1024;
+	private static final int ConnectTimeout = 5000;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final InetSocketAddress peer;
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+	private volatile long latestActivity = System.currentTimeMillis();
+	private volatile boolean closed = false;
+
+	private FramedConnection(Socket socket, InputStream in, InetSocketAddress peer) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(in);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.peer = peer;
+	}
+
+
+
+	/**
+	 * Open a new connection to the given peer.
+	 *
+	 * @param peer The command address of the peer.
+	 * @param localPort The port on which this node listens for commands, announced to the peer.
+	 * @return The connection.
+	 * @throws IOException If the connection cannot be established.
+	 */
+	public static FramedConnection open(InetSocketAddress peer, int localPort) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(peer, ConnectTimeout);
+			socket.setTcpNoDelay(true);
+			FramedConnection c = new FramedConnection(socket, new BufferedInputStream(socket.getInputStream()), peer);
+			synchronized (c.out) {
+				c.out.write(Preamble);
+				c.out.writeShort(localPort);
+				c.out.flush();
+			}
+			return c;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Finish accepting a connection from a peer whose preamble has already been read from the given
+	 * stream. The peer's announced command port is read here.
+	 *
+	 * @param socket The accepted socket.
+	 * @param in The socket's input stream, positioned just after the preamble.
+	 * @return The connection.
+	 * @throws IOException If the announced port cannot be read.
+	 */
+	public static FramedConnection accept(Socket socket, InputStream in) throws IOException {
+		socket.setTcpNoDelay(true);
+		int port = new DataInputStream(in).readUnsignedShort();
+		return new FramedConnection(socket, in, new InetSocketAddress(socket.getInetAddress(), port));
+	}
+
+
+
+	/**
+	 * Determine if the given bytes are a connection preamble.
+	 *
+	 * @param b The bytes read from the start of a connection.
+	 * @param length The number of valid bytes.
+	 * @return True if this is the start of a framed connection.
+	 */
+	public static boolean isPreamble(byte[] b, int length) {
+		return length == Preamble.length && Arrays.equals(Arrays.copyOf(b, length), Preamble);
+	}
+
+
+
+	/**
+	 * Write a single encoded command as a frame. Concurrent writers are serialized.
+	 *
+	 * @param command The encoded command.
+	 * @throws IOException If the connection is closed or the write fails.
+	 */
+	public void write(byte[] command) throws IOException {
+		if (closed) throw new IOException("Connection is closed.");
+		pendingWrites.incrementAndGet();
+		try {
+			synchronized (out) {
+				out.writeInt(command.length);
+				out.write(command);
+				out.flush();
+			}
+			latestActivity = System.currentTimeMillis();
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			pendingWrites.decrementAndGet();
+		}
+	}
+
+
+
+	@Override
+	public void run() {
+		TCPConnectionPool pool = TCPConnectionPool.Instance;
+		try {
+			while (!closed) {
+				int length = in.readInt();
+				if (length < 0 || length > MaxFrameSize)
+					throw new IOException(String.format("Invalid frame length %s from %s.", length, peer));
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				latestActivity = System.currentTimeMillis();
+				pool.dispatch(CommandCodec.decode(frame, 0, length));
+			}
+		} catch (EOFException e) {
+			/*
+			 * The other side closed the connection.
+			 */
+		} catch (IOException e) {
+			if (!closed) log.debug(String.format("Connection to %s failed: %s", peer, e.getMessage()));
+		} finally {
+			close();
+			pool.remove(this);
+		}
+	}
+
+
+
+	public void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public long getLatestActivity() {
+		return latestActivity;
+	}
+
+	public InetSocketAddress getPeer() {
+		return peer;
+	}
+
+	public int getPendingWrites() {
+		return pendingWrites.get();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[peer=%s, local=%s]", getClass().getSimpleName(), peer, socket.getLocalSocketAddress());
+	}
+}
@@ -0,0 +1,238 @@
+package starbook.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * <p>
+ * An invertible Bloom lookup table of message keys. Two nodes each put their keys in a sketch with
+ * the same number of cells; subtracting one sketch from the other cancels the keys they share, and
+ * the keys only one of them has can then be listed, as long as there are not many more of them than
+ * about two thirds of the number of cells. So the sketch only needs to be as large as the
+ * difference between the two sets, however large the sets are.
+ * </p>
+ * <p>
+ * Each key is added to one cell in each of {@link #Hashes} equal partitions of the table. A cell
+ * holds the number of keys added to it, the XOR of their parts and the XOR of a checksum of each,
+ * which tells a cell holding exactly one key from a cell whose keys merely cancel out. A sketch
+ * also keeps a count and checksum of the whole set, so identical sets can be recognized without
+ * any cells at all.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class KeySketch {
+	public static final int Hashes = 3;
+
+	/**
+	 * The number of bytes each cell takes on the wire.
+	 */
+	public static final int CellSize = 4 + 8 + 8 + 8 + 8;
+
+	/**
+	 * The most cells a sketch may have, about 650KB on the wire, enough to list a difference of
+	 * about 12000 keys. Larger differences must be found some other way.
+	 */
+	public static final int MaxCells = Hashes * 6000;
+	private final int[] counts;
+	private final long[] sources;
+	private final long[] times;
+	private final long[] rests;
+	private final long[] checks;
+	private int size = 0;
+	private long digest = 0;
+
+	/**
+	 * Create an empty sketch.
+	 *
+	 * @param cells The number of cells, which is rounded up to a multiple of {@link #Hashes}. Zero
+	 *        makes a sketch that only has a count and checksum.
+	 */
+	public KeySketch(int cells) {
+		int n = (cells <= 0) ? 0 : ((cells + Hashes - 1) / Hashes) * Hashes;
+		counts = new int[n];
+		sources = new long[n];
+		times = new long[n];
+		rests = new long[n];
+		checks = new long[n];
+	}
+
+	/**
+	 * The number of cells needed to list a difference of the given number of keys with good odds.
+	 * This may be more than {@link #MaxCells}.
+	 */
+	public static int getCells(int difference) {
+		return (difference <= 0) ? 0 : difference * 3 / 2 + 30;
+	}
+
+
+
+	public void add(MessageKey key) {
+		long rest = getRest(key);
+		long check = getCheck(key.getSource(), key.getTime(), rest);
+		size++;
+		digest ^= check;
+		toggle(1, key.getSource(), key.getTime(), rest, check);
+	}
+
+	/**
+	 * Retrieve the 64-bit checksum a sketch keeps of a key, which is also a well-mixed hash of it.
+	 */
+	public static long getCheck(MessageKey key) {
+		return getCheck(key.getSource(), key.getTime(), getRest(key));
+	}
+
+	private static long getRest(MessageKey key) {
+		return ((long) key.getSequence() << 32) | (key.getTopicID() & 0xFFFFFFFFL);
+	}
+
+	private void toggle(int count, long source, long time, long rest, long check) {
+		int partition = counts.length / Hashes;
+		if (partition == 0) return;
+		for (int i = 0; i < Hashes; i++) {
+			int cell = i * partition + (int) ((mix(check + i * 0x9E3779B97F4A7C15L) >>> 1) % partition);
+			counts[cell] += count;
+			sources[cell] ^= source;
+			times[cell] ^= time;
+			rests[cell] ^= rest;
+			checks[cell] ^= check;
+		}
+	}
+
+	/**
+	 * Subtract another sketch of the same size from this one, leaving the keys only this one has
+	 * with a count of 1 and the keys only the other has with a count of -1.
+	 *
+	 * @param other The other sketch.
+	 */
+	public void subtract(KeySketch other) {
+		if (other.counts.length != counts.length) {
+			throw new IllegalArgumentException(String.format("Cannot subtract a sketch of %s cells from one of %s.", other.counts.length, counts.length));
+		}
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] -= other.counts[i];
+			sources[i] ^= other.sources[i];
+			times[i] ^= other.times[i];
+			rests[i] ^= other.rests[i];
+			checks[i] ^= other.checks[i];
+		}
+		size -= other.size;
+		digest ^= other.digest;
+	}
+
+	/**
+	 * List the keys of a subtracted sketch, emptying it in the process.
+	 *
+	 * @param mine Receives the keys only this sketch had.
+	 * @param theirs Receives the keys only the subtracted sketch had.
+	 * @return True if every key was listed, false if the difference was too large for the sketch, in
+	 *         which case the lists hold only some of the keys.
+	 */
+	public boolean decode(Collection<MessageKey> mine, Collection<MessageKey> theirs) {
+		boolean found = true;
+		while (found) {
+			found = false;
+			for (int i = 0; i < counts.length; i++) {
+				if ((counts[i] != 1 && counts[i] != -1) || checks[i] != getCheck(sources[i], times[i], rests[i])) continue;
+				long source = sources[i];
+				long time = times[i];
+				long rest = rests[i];
+				int count = counts[i];
+				MessageKey key = new MessageKey(source, time, (int) (rest >>> 32), (int) rest);
+				((count == 1) ? mine : theirs).add(key);
+				toggle(-count, source, time, rest, checks[i]);
+				found = true;
+			}
+		}
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0 || checks[i] != 0) return false;
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Retrieve the number of keys added, less the number in any subtracted sketch.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Retrieve the XOR of the checksums of every key added and subtracted. Equal sets have equal
+	 * digests.
+	 */
+	public long getDigest() {
+		return digest;
+	}
+
+	public int getCells() {
+		return counts.length;
+	}
+
+	/**
+	 * Determine if this sketch holds the same keys as another, going by size and digest.
+	 */
+	public boolean matches(KeySketch other) {
+		return size == other.size && digest == other.digest;
+	}
+
+	/**
+	 * Retrieve the number of bytes {@link #write(DataOutput)} writes.
+	 */
+	public int getWireSize() {
+		return 4 + 8 + 4 + counts.length * CellSize;
+	}
+
+
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.writeLong(digest);
+		out.writeInt(counts.length);
+		for (int i = 0; i < counts.length; i++) {
+			out.writeInt(counts[i]);
+			out.writeLong(sources[i]);
+			out.writeLong(times[i]);
+			out.writeLong(rests[i]);
+			out.writeLong(checks[i]);
+		}
+	}
+
+	public static KeySketch read(DataInput in) throws IOException {
+		int size = in.readInt();
+		long digest = in.readLong();
+		int cells = in.readInt();
+		if (cells < 0 || cells > MaxCells || cells % Hashes != 0) throw new IOException(String.format("Invalid sketch of %s cells.", cells));
+		KeySketch s = new KeySketch(cells);
+		s.size = size;
+		s.digest = digest;
+		for (int i = 0; i < cells; i++) {
+			s.counts[i] = in.readInt();
+			s.sources[i] = in.readLong();
+			s.times[i] = in.readLong();
+			s.rests[i] = in.readLong();
+			s.checks[i] = in.readLong();
+		}
+		return s;
+	}
+
+
+
+	private static long getCheck(long source, long time, long rest) {
+		return mix(mix(mix(source) ^ time) ^ rest);
+	}
+
+	/**
+	 * The finalizer of the SplitMix64 generator, a cheap and thorough 64-bit mix.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,162 @@
+package starbook.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * A hash tree of the message keys in each topic of a store, kept up to date as messages are added
+ * and removed, so two replicas of a topic can find the messages only one of them has by comparing
+ * a handful of hashes rather than their key lists. See {@link TreeSync}.
+ * </p>
+ * <p>
+ * Keys are put in buckets by their creation time, an hour to a bucket. Each node of the tree covers
+ * {@link #Fanout} nodes of the level below it, so a node at level <i>l</i> covers
+ * <code>Fanout<sup>l</sup></code> buckets, up to a single root at level {@link #Root} covering
+ * every bucket. A node's hash is the sum of the hashes of the keys under it, so it is also the sum
+ * of its children's hashes, and adding or removing a key updates one node at each level. Nodes
+ * with no keys under them aren't kept, and hash to zero.
+ * </p>
+ * <p>
+ * Adding a key that is already counted, or removing one that isn't, corrupts the tree, so the store
+ * has to count each of its messages exactly once: when it actually adds or removes the message,
+ * under the lock that decides which. A {@link BaseMessageStore} that was just read counts the
+ * messages it read in the background, claiming each one under that lock, and hands out its tree
+ * only once every message is counted.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class KeyTree {
+	public static final long BucketMillis = 60 * 60 * 1000;
+	public static final int Fanout = 16;
+	private static final int FanoutBits = 4;
+	public static final int Root = 6;
+	private static final long MaxBucket = (1L << (FanoutBits * Root)) - 1;
+	private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+
+
+
+	public void add(String topic, MessageKey key) {
+		long hash = KeySketch.getCheck(key);
+		long bucket = getBucket(key.getTime());
+		while (true) {
+			Topic t = topics.get(topic);
+			if (t == null) {
+				Topic created = new Topic();
+				t = topics.putIfAbsent(topic, created);
+				if (t == null) t = created;
+			}
+			synchronized (t) {
+				/*
+				 * The topic was emptied and dropped after we found it; start a new one.
+				 */
+				if (t.dropped) continue;
+				t.update(bucket, hash, 1);
+				return;
+			}
+		}
+	}
+
+	public void remove(String topic, MessageKey key) {
+		Topic t = topics.get(topic);
+		if (t == null) return;
+		synchronized (t) {
+			if (t.dropped) return;
+			t.update(getBucket(key.getTime()), -KeySketch.getCheck(key), -1);
+			if (t.getCount(Root, 0) == 0) {
+				t.dropped = true;
+				topics.remove(topic, t);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Retrieve the hash of a node.
+	 *
+	 * @param topic The topic.
+	 * @param level The node's level, from 0 for a bucket to {@link #Root}.
+	 * @param index The node's index within its level; the root's is 0.
+	 * @return The sum of the hashes of the keys under the node, or zero if there are none.
+	 */
+	public long getHash(String topic, int level, long index) {
+		Topic t = topics.get(topic);
+		if (t == null) return 0;
+		synchronized (t) {
+			long[] node = t.nodes.get(getID(level, index));
+			return (node == null) ? 0 : node[0];
+		}
+	}
+
+	/**
+	 * Retrieve the number of keys in a topic.
+	 */
+	public int size(String topic) {
+		Topic t = topics.get(topic);
+		if (t == null) return 0;
+		synchronized (t) {
+			return (int) t.getCount(Root, 0);
+		}
+	}
+
+
+
+	/**
+	 * Retrieve the bucket a creation time falls in. Times outside the tree's range are put in the
+	 * first or last bucket.
+	 */
+	public static long getBucket(long time) {
+		return Math.max(0, Math.min(MaxBucket, time / BucketMillis));
+	}
+
+	/**
+	 * Retrieve the earliest creation time in a bucket.
+	 */
+	public static long getBucketStart(long bucket) {
+		return bucket * BucketMillis;
+	}
+
+	/**
+	 * Retrieve the index of the first child of a node, at the level below it.
+	 */
+	public static long getFirstChild(long index) {
+		return index << FanoutBits;
+	}
+
+	private static long getID(int level, long index) {
+		return ((long) level << 56) | index;
+	}
+
+
+
+	/**
+	 * The nodes of one topic's tree, each a hash and a key count.
+	 */
+	private static class Topic {
+		private final Map<Long, long[]> nodes = new HashMap<Long, long[]>();
+		private boolean dropped = false;
+
+		public void update(long bucket, long hash, int count) {
+			for (int level = 0; level <= Root; level++) {
+				long id = getID(level, bucket >>> (FanoutBits * level));
+				long[] node = nodes.get(id);
+				if (node == null) {
+					node = new long[2];
+					nodes.put(id, node);
+				}
+				node[0] += hash;
+				node[1] += count;
+				if (node[1] == 0) nodes.remove(id);
+			}
+		}
+
+		public long getCount(int level, long index) {
+			long[] node = nodes.get(getID(level, index));
+			return (node == null) ? 0 : node[1];
+		}
+	}
+}
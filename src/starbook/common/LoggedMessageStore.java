@@ -0,0 +1,141 @@
+package starbook.common;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.joda.time.DateTime;
+
+/**
+ * A message store that records every change to another store in a {@link MessageLog}, so the
+ * store can be rebuilt by replaying the log instead of being written out whole. Reads go straight
+ * to the underlying store. Serializing this store serializes the underlying one.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class LoggedMessageStore implements MessageStore {
+	private static final long serialVersionUID = 3306941626374180112L;
+	private final MessageStore store;
+	private final transient MessageLog messageLog;
+
+	/**
+	 * Create a store that logs changes to the given store. The log should already have been opened
+	 * with the store.
+	 *
+	 * @param store The underlying store.
+	 * @param messageLog The log.
+	 */
+	public LoggedMessageStore(MessageStore store, MessageLog messageLog) {
+		this.store = store;
+		this.messageLog = messageLog;
+	}
+
+
+
+	/**
+	 * Add the message and log it. Messages already in the store are not logged again. If the log
+	 * can't be written, the message is taken back out of the store, so it isn't treated as stored.
+	 *
+	 * @throws IllegalStateException If the message could not be logged.
+	 */
+	@Override
+	public void addMessage(Message m) {
+		boolean isNew = store.getMessageByKey(m.getKey()) == null;
+		store.addMessage(m);
+		if (!isNew) return;
+		try {
+			messageLog.append(m);
+		} catch (IllegalStateException e) {
+			store.removeMessage(m);
+			throw e;
+		}
+	}
+
+	/**
+	 * Download the message and, if that used it up, log its removal.
+	 */
+	@Override
+	public Message downloadMessage(MessageKey key, int downloadLimit) {
+		Message m = store.downloadMessage(key, downloadLimit);
+		if (m != null && store.getMessageByKey(key) == null) messageLog.remove(key);
+		return m;
+	}
+
+	@Override
+	public void removeMessage(Message m) {
+		store.removeMessage(m);
+		messageLog.remove(m.getKey());
+	}
+
+
+
+	@Override
+	public Message getMessageByKey(MessageKey key) {
+		return store.getMessageByKey(key);
+	}
+
+	@Override
+	public Set<MessageKey> getMessageKeys() {
+		return store.getMessageKeys();
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public Set<Message> getMessages() {
+		return store.getMessages();
+	}
+
+	@Override
+	public ConcurrentSkipListSet<Message> getMessagesByTopic(String topic) {
+		return store.getMessagesByTopic(topic);
+	}
+
+	@Override
+	public NavigableSet<Message> range(String topic, DateTime from, DateTime to) {
+		return store.range(topic, from, to);
+	}
+
+	@Override
+	public List<Message> latest(String topic, int count) {
+		return store.latest(topic, count);
+	}
+
+	@Override
+	public NavigableSet<Message> since(String topic, Message cursor) {
+		return store.since(topic, cursor);
+	}
+
+	@Override
+	public ArrayList<MessageKey> getRandomKeys(int resultSize) {
+		return store.getRandomKeys(resultSize);
+	}
+
+	@Override
+	public HashSet<MessageKey> getRandomKeysByByte(int maxSize) {
+		return store.getRandomKeysByByte(maxSize);
+	}
+
+	@Override
+	public KeyTree getKeyTree() {
+		return store.getKeyTree();
+	}
+
+
+
+	public MessageLog getMessageLog() {
+		return messageLog;
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return store;
+	}
+}
@@ -0,0 +1,752 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * <p>
+ * A message store that keeps messages in memory-mapped segment files instead of on the heap. Each
+ * message is appended to the current segment as a record (see {@link MessageRecords}); messages
+ * are only turned back into objects when they are read. The indexes are kept compact:
+ * </p>
+ * <ul>
+ * <li>The key index is an open-addressing hash table in its own memory-mapped file, mapping each
+ * key to its record's location.</li>
+ * <li>Each topic's timeline is a pair of sorted primitive arrays (creation times and locations),
+ * so a topic costs two objects no matter how many messages it has.</li>
+ * <li>A dense array of locations supports uniform sampling the same way {@link SamplingIndex}
+ * does.</li>
+ * </ul>
+ * <p>
+ * Since the heap holds no per-message objects, a worker can store many more messages than fit in
+ * its heap, and garbage collection doesn't slow down as the store grows. Removing a message appends
+ * a removal record; the space isn't reclaimed. The segments are the store's persistent form: when
+ * the store is opened, the segments are replayed to rebuild the indexes, so this store is never
+ * serialized.
+ * </p>
+ * <p>
+ * Results that {@link BaseMessageStore} returns as live views of its timelines are copies here.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MappedMessageStore implements MessageStore {
+	private static final long serialVersionUID = 3620517446810593129L;
+	private static final Logger log = Logger.getLogger(MappedMessageStore.class);
+	public static final int DefaultSegmentBytes = 64 * 1024 * 1024;
+	private static final int MaxConsecutiveMisses = 64;
+	private final transient Path directory;
+	private final transient String prefix;
+	private final transient int segmentBytes;
+	private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final transient List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private transient int writeOffset = 0;
+	private final transient KeyTable keys;
+	private final transient Map<String, Timeline> timelines = new HashMap<String, Timeline>();
+	private transient long[] dense = new long[1024];
+	private transient int size = 0;
+	private final transient Map<MessageKey, Integer> downloadCounts = new HashMap<MessageKey, Integer>();
+	private final transient KeyTree keyTree = new KeyTree();
+	private final transient Random rng = Configuration.rng;
+
+	/**
+	 * Open the store kept in the given directory, creating it if necessary, with segments of the
+	 * size given by {@link CK#MessageSegmentBytes}.
+	 *
+	 * @see #MappedMessageStore(Path, String, int)
+	 */
+	public MappedMessageStore(Path directory, String prefix) throws IOException {
+		this(directory, prefix, Configuration.getInt(CK.MessageSegmentBytes, DefaultSegmentBytes));
+	}
+
+	/**
+	 * Open the store kept in the given directory, creating it if necessary. Existing segments are
+	 * replayed to rebuild the indexes.
+	 *
+	 * @param directory The directory in which to keep the segment files.
+	 * @param prefix The prefix of the segment file names, e.g. "10.0.0.12-messages".
+	 * @param segmentBytes The size of each segment file. No message may be larger than this.
+	 * @throws IOException If the segments cannot be opened or read.
+	 */
+	public MappedMessageStore(Path directory, String prefix, int segmentBytes) throws IOException {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(directory);
+		this.keys = new KeyTable(directory.resolve(prefix + ".keys"));
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; Files.exists(getSegmentPath(i)); i++) replay(openSegment(i), i);
+		if (segments.isEmpty()) openSegment(0);
+		log.info(String.format("Opened %s segments with %s messages in %sms.", segments.size(), size, System.currentTimeMillis() - start));
+	}
+
+
+
+	/**
+	 * @throws IllegalStateException If the message is larger than a segment, the key table is full
+	 *             or the segments can't be written, so the message isn't stored.
+	 */
+	@Override
+	public void addMessage(Message m) {
+		byte[] record = MessageRecords.encode(m);
+		lock.writeLock().lock();
+		try {
+			if (keys.get(m.getKey()) >= 0) return;
+			keys.reserve();
+			long location = append(record);
+			index(m.getKey(), m.getTopic(), location);
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("Unable to store message %s.", m.getKey()), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Message downloadMessage(MessageKey key, int downloadLimit) {
+		Message message;
+		int count;
+		int limit = Math.max(1, downloadLimit);
+		lock.writeLock().lock();
+		try {
+			long location = keys.get(key);
+			if (location < 0) return null;
+			message = read(location);
+			Integer currentCount = downloadCounts.get(key);
+			count = ((currentCount == null) ? 0 : currentCount) + 1;
+			if (count > limit) return null;
+			downloadCounts.put(key, count);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (count >= limit) {
+			log.debug(String.format("Message %s has been downloaded %s times, removing it.", key, downloadLimit));
+			removeMessage(message);
+		}
+		return message;
+	}
+
+	@Override
+	public Message getMessageByKey(MessageKey key) {
+		lock.readLock().lock();
+		try {
+			long location = keys.get(key);
+			return (location < 0) ? null : read(location);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<MessageKey> getMessageKeys() {
+		lock.readLock().lock();
+		try {
+			Set<MessageKey> s = new HashSet<MessageKey>(size * 2);
+			for (int i = 0; i < size; i++) s.add(readKey(dense[i]));
+			return s;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<Message> getMessages() {
+		lock.readLock().lock();
+		try {
+			Set<Message> s = new HashSet<Message>(size * 2);
+			for (int i = 0; i < size; i++) s.add(read(dense[i]));
+			return s;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ConcurrentSkipListSet<Message> getMessagesByTopic(String topic) {
+		lock.readLock().lock();
+		try {
+			Timeline t = timelines.get(topic);
+			return (t == null) ? newTimeline() : read(t, 0, t.size);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public NavigableSet<Message> range(String topic, DateTime from, DateTime to) {
+		lock.readLock().lock();
+		try {
+			Timeline t = timelines.get(topic);
+			if (t == null) return newTimeline();
+			int first = (from == null) ? 0 : t.lowerBound(from.getMillis());
+			int last = (to == null) ? t.size : t.lowerBound(to.getMillis());
+			return read(t, first, last);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Message> latest(String topic, int count) {
+		lock.readLock().lock();
+		try {
+			List<Message> list = new ArrayList<Message>();
+			Timeline t = timelines.get(topic);
+			if (t == null) return list;
+			for (int i = t.size - 1; i >= 0 && list.size() < count; i--) list.add(read(t.locations[i]));
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public NavigableSet<Message> since(String topic, Message cursor) {
+		lock.readLock().lock();
+		try {
+			Timeline t = timelines.get(topic);
+			if (t == null) return newTimeline();
+			int first = (cursor == null) ? 0 : t.upperBound(cursor.getKey());
+			return read(t, first, t.size);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeMessage(Message m) {
+		MessageKey key = m.getKey();
+		lock.writeLock().lock();
+		try {
+			long location = keys.get(key);
+			if (location < 0) return;
+			append(MessageRecords.encodeRemoval(key));
+			unindex(key, location);
+		} catch (IOException e) {
+			log.error(String.format("Unable to remove message %s.", key), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Retrieves random keys by visiting the dense location array in a lazily shuffled order, like
+	 * {@link SamplingIndex#sampleByBytes(int)}.
+	 *
+	 * @see MessageStore#getRandomKeysByByte(int)
+	 */
+	@Override
+	public HashSet<MessageKey> getRandomKeysByByte(int maxSize) {
+		lock.readLock().lock();
+		try {
+			HashSet<MessageKey> result = new HashSet<MessageKey>();
+			Map<Integer, Integer> swapped = new HashMap<Integer, Integer>();
+			int total = 0;
+			int misses = 0;
+			for (int i = 0; i < size && total < maxSize && misses < MaxConsecutiveMisses; i++) {
+				int r = i + rng.nextInt(size - i);
+				Integer atR = swapped.get(r);
+				Integer atI = swapped.get(i);
+				int slot = (atR == null) ? r : atR;
+				swapped.put(r, (atI == null) ? i : atI);
+
+				long location = dense[slot];
+				int messageSize = readContentChars(location) * 2;
+				if (messageSize + total < maxSize) {
+					total += messageSize;
+					result.add(readKey(location));
+					misses = 0;
+				} else {
+					misses++;
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retrieves a uniformly random subset of keys using Floyd's algorithm over the dense location
+	 * array.
+	 *
+	 * @see MessageStore#getRandomKeys(int)
+	 */
+	@Override
+	public ArrayList<MessageKey> getRandomKeys(int resultSize) {
+		lock.readLock().lock();
+		try {
+			int n = Math.min(resultSize, size);
+			ArrayList<MessageKey> result = new ArrayList<MessageKey>(Math.max(n, 0));
+			Set<Integer> chosen = new HashSet<Integer>();
+			for (int j = size - n; j < size; j++) {
+				int t = rng.nextInt(j + 1);
+				if (!chosen.add(t)) chosen.add(t = j);
+				result.add(readKey(dense[t]));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+
+	@Override
+	public KeyTree getKeyTree() {
+		return keyTree;
+	}
+
+
+
+	/**
+	 * Write any changes to the segments out to disk.
+	 */
+	public void flush() {
+		lock.readLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments) segment.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		throw new NotSerializableException("A mapped message store is persisted by its segments.");
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[directory=%s, prefix=%s, segments=%s, messages=%s, topics=%s]", getClass().getSimpleName(), directory, prefix,
+				segments.size(), size(), timelines.size());
+	}
+
+
+
+	/**
+	 * Append a record to the current segment, starting a new one if it doesn't fit. Must be called
+	 * with the write lock held.
+	 *
+	 * @return The record's location.
+	 */
+	private long append(byte[] record) throws IOException {
+		if (record.length + 4 > segmentBytes) throw new IOException(String.format("A %s-byte record doesn't fit in a segment.", record.length));
+		if (writeOffset + record.length + 4 > segmentBytes) {
+			openSegment(segments.size());
+			writeOffset = 0;
+		}
+		int segment = segments.size() - 1;
+		ByteBuffer b = segments.get(segment).duplicate();
+		b.position(writeOffset);
+		b.put(record);
+		long location = ((long) segment << 32) | writeOffset;
+		writeOffset += record.length;
+		return location;
+	}
+
+	private Path getSegmentPath(int i) {
+		return directory.resolve(String.format("%s-%05d.seg", prefix, i));
+	}
+
+	private MappedByteBuffer openSegment(int i) throws IOException {
+		FileChannel fc = FileChannel.open(getSegmentPath(i), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer segment = fc.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, fc.size()));
+			segments.add(segment);
+			return segment;
+		} finally {
+			fc.close();
+		}
+	}
+
+	/**
+	 * Rebuild the indexes from a segment's records. A zero length marks the end of the records.
+	 */
+	private void replay(MappedByteBuffer segment, int i) throws IOException {
+		int offset = 0;
+		while (offset + MessageRecords.HeaderSize <= segment.capacity()) {
+			int length = segment.getInt(offset);
+			if (length <= 0 || offset + 4 + length > segment.capacity()) break;
+			long location = ((long) i << 32) | offset;
+			MessageKey key = readKey(location);
+			if (MessageRecords.getKind(segment, offset) == MessageRecords.Message) {
+				if (keys.get(key) < 0) {
+					keys.reserve();
+					index(key, readTopic(location), location);
+				}
+			} else {
+				long existing = keys.get(key);
+				if (existing >= 0) unindex(key, existing);
+			}
+			offset += 4 + length;
+		}
+		writeOffset = offset;
+	}
+
+	private void index(MessageKey key, String topic, long location) {
+		if (size == dense.length) {
+			long[] grown = new long[dense.length * 2];
+			System.arraycopy(dense, 0, grown, 0, size);
+			dense = grown;
+		}
+		dense[size] = location;
+		keys.put(key, location, size);
+		size++;
+
+		Timeline t = timelines.get(topic);
+		if (t == null) {
+			t = new Timeline();
+			timelines.put(topic, t);
+		}
+		t.add(key, location);
+		keyTree.add(topic, key);
+	}
+
+	private void unindex(MessageKey key, long location) {
+		int slot = keys.remove(key);
+		size--;
+		if (slot != size) {
+			long last = dense[size];
+			dense[slot] = last;
+			keys.setSlot(readKey(last), slot);
+		}
+		downloadCounts.remove(key);
+
+		String topic = readTopic(location);
+		Timeline t = timelines.get(topic);
+		if (t != null) {
+			t.remove(key, location);
+			if (t.size == 0) timelines.remove(topic);
+		}
+		keyTree.remove(topic, key);
+	}
+
+
+
+	private ByteBuffer segment(long location) {
+		return segments.get((int) (location >>> 32));
+	}
+
+	private MessageKey readKey(long location) {
+		return MessageRecords.readKey(segment(location), (int) location);
+	}
+
+	private int readContentChars(long location) {
+		return MessageRecords.readContentChars(segment(location), (int) location);
+	}
+
+	private String readTopic(long location) {
+		return MessageRecords.readTopic(segment(location), (int) location);
+	}
+
+	private Message read(long location) {
+		try {
+			return MessageRecords.read(segment(location), (int) location);
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format("Corrupt record in segment %s.", location >>> 32), e);
+		}
+	}
+
+	private ConcurrentSkipListSet<Message> read(Timeline t, int first, int last) {
+		ConcurrentSkipListSet<Message> set = newTimeline();
+		for (int i = first; i < last; i++) set.add(read(t.locations[i]));
+		return set;
+	}
+
+	private static ConcurrentSkipListSet<Message> newTimeline() {
+		return new ConcurrentSkipListSet<Message>(new BaseMessage.timelineComparator());
+	}
+
+
+
+	/**
+	 * One topic's messages in timeline order, as parallel arrays of creation times and record
+	 * locations. Messages mostly arrive in order, so inserting is usually an append.
+	 */
+	private class Timeline {
+		private long[] times = new long[16];
+		private long[] locations = new long[16];
+		private int size = 0;
+
+		public void add(MessageKey key, long location) {
+			int i = upperBound(key);
+			if (size == times.length) {
+				times = grow(times);
+				locations = grow(locations);
+			}
+			System.arraycopy(times, i, times, i + 1, size - i);
+			System.arraycopy(locations, i, locations, i + 1, size - i);
+			times[i] = key.getTime();
+			locations[i] = location;
+			size++;
+		}
+
+		public void remove(MessageKey key, long location) {
+			for (int i = lowerBound(key.getTime()); i < size && times[i] == key.getTime(); i++) {
+				if (locations[i] == location) {
+					System.arraycopy(times, i + 1, times, i, size - i - 1);
+					System.arraycopy(locations, i + 1, locations, i, size - i - 1);
+					size--;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Find the first message created at or after the given time.
+		 */
+		public int lowerBound(long time) {
+			int low = 0, high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (times[mid] < time) low = mid + 1; else high = mid;
+			}
+			return low;
+		}
+
+		/**
+		 * Find the first message that comes after the given key.
+		 */
+		public int upperBound(MessageKey key) {
+			int i = lowerBound(key.getTime());
+			while (i < size && times[i] == key.getTime() && readKey(locations[i]).compareTo(key) <= 0) i++;
+			return i;
+		}
+
+		private long[] grow(long[] a) {
+			long[] grown = new long[a.length * 2];
+			System.arraycopy(a, 0, grown, 0, size);
+			return grown;
+		}
+	}
+
+
+
+	/**
+	 * An open-addressing hash table from message keys to record locations and dense array slots,
+	 * kept in a memory-mapped scratch file so it takes no heap and doesn't count against the direct
+	 * memory limit. The file is rebuilt every time the store is opened. A single mapping can't exceed
+	 * 2GB, so a large table is mapped as several regions of {@link #RegionEntries} entries each. The
+	 * table holds at most {@link #MaxCapacity} entries; once it is three quarters full, new keys are
+	 * refused.
+	 */
+	private static class KeyTable {
+		private static final int EntrySize = 40;
+		private static final int InitialCapacity = 1 << 16;
+		private static final int RegionShift = 24;
+		private static final int RegionEntries = 1 << RegionShift;
+		private static final int MaxCapacity = 1 << 30;
+		private final Path path;
+		private MappedByteBuffer[] table;
+		private int capacity;
+		private int count = 0;
+
+		public KeyTable(Path path) throws IOException {
+			this.path = path;
+			DirectoryStream<Path> stale = Files.newDirectoryStream(path.getParent(), path.getFileName() + "-*");
+			try {
+				for (Path p : stale) Files.delete(p);
+			} finally {
+				stale.close();
+			}
+			this.table = map(path, InitialCapacity);
+			this.capacity = InitialCapacity;
+		}
+
+		private static MappedByteBuffer[] map(Path path, int capacity) throws IOException {
+			Files.deleteIfExists(path);
+			FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.SPARSE);
+			try {
+				int regionEntries = Math.min(capacity, RegionEntries);
+				MappedByteBuffer[] regions = new MappedByteBuffer[capacity / regionEntries];
+				for (int i = 0; i < regions.length; i++) {
+					regions[i] = fc.map(FileChannel.MapMode.READ_WRITE, (long) i * regionEntries * EntrySize, (long) regionEntries * EntrySize);
+				}
+				return regions;
+			} finally {
+				fc.close();
+			}
+		}
+
+		/**
+		 * Make sure there is room for one more key, growing the table if necessary. Must be called
+		 * before {@link #put(MessageKey, long, int)} adds a key.
+		 *
+		 * @throws IOException If the table is full or can't be grown.
+		 */
+		public void reserve() throws IOException {
+			if (count + 1 <= capacity / 4 * 3) return;
+			if (capacity == MaxCapacity) throw new IOException(String.format("The key table is full with %s keys.", count));
+			resize();
+		}
+
+		/**
+		 * Retrieve the location of the given key's record.
+		 *
+		 * @return The location, or -1 if the key isn't in the table.
+		 */
+		public long get(MessageKey key) {
+			int e = find(key);
+			return (e < 0) ? -1 : getLong(e, 24) - 1;
+		}
+
+		public void put(MessageKey key, long location, int slot) {
+			int e = find(key);
+			if (e < 0) {
+				e = -e - 1;
+				putLong(e, 0, key.getSource());
+				putLong(e, 8, key.getTime());
+				putInt(e, 16, key.getSequence());
+				putInt(e, 20, key.getTopicID());
+				count++;
+			}
+			putLong(e, 24, location + 1);
+			putInt(e, 32, slot);
+		}
+
+		public void setSlot(MessageKey key, int slot) {
+			int e = find(key);
+			if (e >= 0) putInt(e, 32, slot);
+		}
+
+		/**
+		 * Remove a key, shifting back any later entries in its probe sequence.
+		 *
+		 * @return The key's dense array slot.
+		 */
+		public int remove(MessageKey key) {
+			int e = find(key);
+			int slot = getInt(e, 32);
+			int hole = e;
+			int i = e;
+			while (true) {
+				i = (i + 1) & (capacity - 1);
+				if (getLong(i, 24) == 0) break;
+				int home = home(getLong(i, 0), getLong(i, 8), getInt(i, 16), getInt(i, 20));
+				/*
+				 * Move the entry into the hole unless its home lies cyclically after the hole.
+				 */
+				if (((i - home) & (capacity - 1)) >= ((i - hole) & (capacity - 1))) {
+					copy(i, hole);
+					hole = i;
+				}
+			}
+			clear(hole);
+			count--;
+			return slot;
+		}
+
+		/**
+		 * Find the entry for the given key.
+		 *
+		 * @return The entry's index, or -(index + 1) of the empty entry where it would go.
+		 */
+		private int find(MessageKey key) {
+			int i = home(key.getSource(), key.getTime(), key.getSequence(), key.getTopicID());
+			while (true) {
+				if (getLong(i, 24) == 0) return -i - 1;
+				if (getLong(i, 8) == key.getTime() && getLong(i, 0) == key.getSource() && getInt(i, 16) == key.getSequence()
+						&& getInt(i, 20) == key.getTopicID()) return i;
+				i = (i + 1) & (capacity - 1);
+			}
+		}
+
+		private int home(long source, long time, int sequence, int topic) {
+			int h = MessageKey.hashCode(source, time, sequence, topic);
+			h ^= (h >>> 16);
+			h *= 0x85EBCA6B;
+			h ^= (h >>> 13);
+			return h & (capacity - 1);
+		}
+
+		/*
+		 * A region holds at most RegionEntries entries, so an offset within one always fits in an
+		 * int.
+		 */
+		private static long getLong(MappedByteBuffer[] regions, int e, int field) {
+			return regions[e >>> RegionShift].getLong((e & (RegionEntries - 1)) * EntrySize + field);
+		}
+
+		private static int getInt(MappedByteBuffer[] regions, int e, int field) {
+			return regions[e >>> RegionShift].getInt((e & (RegionEntries - 1)) * EntrySize + field);
+		}
+
+		private long getLong(int e, int field) {
+			return getLong(table, e, field);
+		}
+
+		private int getInt(int e, int field) {
+			return getInt(table, e, field);
+		}
+
+		private void putLong(int e, int field, long value) {
+			table[e >>> RegionShift].putLong((e & (RegionEntries - 1)) * EntrySize + field, value);
+		}
+
+		private void putInt(int e, int field, int value) {
+			table[e >>> RegionShift].putInt((e & (RegionEntries - 1)) * EntrySize + field, value);
+		}
+
+		private void copy(int from, int to) {
+			for (int j = 0; j < EntrySize; j += 8) putLong(to, j, getLong(from, j));
+		}
+
+		private void clear(int e) {
+			for (int j = 0; j < EntrySize; j += 8) putLong(e, j, 0);
+		}
+
+		private void resize() throws IOException {
+			MappedByteBuffer[] old = table;
+			int oldCapacity = capacity;
+			table = map(path.resolveSibling(path.getFileName() + "-" + (oldCapacity * 2)), oldCapacity * 2);
+			capacity = oldCapacity * 2;
+			count = 0;
+			for (int i = 0; i < oldCapacity; i++) {
+				long location = getLong(old, i, 24);
+				if (location == 0) continue;
+				MessageKey key = new MessageKey(getLong(old, i, 0), getLong(old, i, 8), getInt(old, i, 16), getInt(old, i, 20));
+				put(key, location - 1, getInt(old, i, 32));
+			}
+			try {
+				Files.deleteIfExists(path.resolveSibling(path.getFileName() + "-" + oldCapacity));
+				if (oldCapacity == InitialCapacity) Files.deleteIfExists(path);
+			} catch (IOException e) {
+				log.debug(String.format("Unable to delete the old key table: %s", e.getMessage()));
+			}
+		}
+	}
+}
@@ -9,7 +9,11 @@ public interface Message extends Serializable {
 	public String getContent();
 	public DateTime getCreationDate();
 	public String getDisplayDate();
+	/**
+	 * Retrieve a printable form of the message's key, for display and logging.
+	 */
 	public String getGUID();
+	public MessageKey getKey();
 	public int getID();
 	public InetAddress getSourceAddress();
 	public String getTopic();
@@ -0,0 +1,210 @@
+package starbook.common;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+
+/**
+ * <p>
+ * Identifies a message. A key is made of four fixed-width numbers: the source node (its IPv4
+ * address, or a fold of its IPv6 address), the creation time in milliseconds, the sequence number
+ * the source gave the message, and the topic's ID. Keys are {@link #Size} bytes on the wire and are
+ * hashed and compared without looking at any strings.
+ * </p>
+ * <p>
+ * A topic's ID is a hash of its lower-cased name, so every node derives the same ID for a topic
+ * without having to agree on it first. IDs are interned along with the names they came from, which
+ * lets a node check a key's topic against its subscriptions by ID and still render keys it has seen
+ * the topic for as readable strings. Two topics could in principle share an ID; the worst that does
+ * is make a node download a message it isn't interested in.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public final class MessageKey implements Comparable<MessageKey>, Serializable {
+	private static final long serialVersionUID = -2287370311521632915L;
+	public static final int Size = 24;
+	private static final long IPv6Flag = Long.MIN_VALUE;
+	private static final ConcurrentHashMap<String, Integer> topicIDs = new ConcurrentHashMap<String, Integer>();
+	private static final ConcurrentHashMap<Integer, String> topicNames = new ConcurrentHashMap<Integer, String>();
+	private final long source;
+	private final long time;
+	private final int sequence;
+	private final int topic;
+
+	public MessageKey(long source, long time, int sequence, int topic) {
+		this.source = source;
+		this.time = time;
+		this.sequence = sequence;
+		this.topic = topic;
+	}
+
+	/**
+	 * Create the key for a message with the given attributes.
+	 *
+	 * @param sourceAddress The node that initially accepted the message.
+	 * @param creationDate The time at which the message was created.
+	 * @param id The identifier at the source node for the message.
+	 * @param topic The topic of the message.
+	 * @return The message's key.
+	 */
+	public static MessageKey of(InetAddress sourceAddress, DateTime creationDate, int id, String topic) {
+		return new MessageKey(getSourceID(sourceAddress), creationDate.getMillis(), id, getTopicID(topic));
+	}
+
+
+
+	/**
+	 * Retrieve the number by which keys identify the given source node.
+	 *
+	 * @param address The source node's address.
+	 * @return The address as a number.
+	 */
+	public static long getSourceID(InetAddress address) {
+		byte[] b = address.getAddress();
+		if (b.length == 4) return ByteBuffer.wrap(b).getInt() & 0xFFFFFFFFL;
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		return (bb.getLong() ^ bb.getLong()) | IPv6Flag;
+	}
+
+	/**
+	 * Retrieve the ID of the given topic, interning it if it hasn't been seen before.
+	 *
+	 * @param topic The topic.
+	 * @return The topic's ID.
+	 */
+	public static int getTopicID(String topic) {
+		/*
+		 * Cache by the lower-cased name so case variants share one entry.
+		 */
+		String name = topic.toLowerCase();
+		Integer id = topicIDs.get(name);
+		if (id != null) return id;
+
+		/*
+		 * 32-bit FNV-1a over the characters of the name.
+		 */
+		int h = 0x811C9DC5;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x01000193;
+		}
+		topicIDs.put(name, h);
+		topicNames.putIfAbsent(h, name);
+		return h;
+	}
+
+
+
+	/**
+	 * Read a key from the given buffer.
+	 *
+	 * @param b The buffer.
+	 * @param offset The offset of the key within the buffer.
+	 * @return The key.
+	 */
+	public static MessageKey fromBytes(byte[] b, int offset) {
+		ByteBuffer bb = ByteBuffer.wrap(b, offset, Size);
+		return new MessageKey(bb.getLong(), bb.getLong(), bb.getInt(), bb.getInt());
+	}
+
+	/**
+	 * Write this key to the given buffer.
+	 *
+	 * @param b The buffer, which must have room for {@link #Size} bytes at the offset.
+	 * @param offset The offset at which to write the key.
+	 */
+	public void toBytes(byte[] b, int offset) {
+		ByteBuffer.wrap(b, offset, Size).putLong(source).putLong(time).putInt(sequence).putInt(topic);
+	}
+
+	public byte[] toBytes() {
+		byte[] b = new byte[Size];
+		toBytes(b, 0);
+		return b;
+	}
+
+
+
+	public long getSource() {
+		return source;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public int getTopicID() {
+		return topic;
+	}
+
+	/**
+	 * Retrieve the name of this key's topic, if this node has seen it.
+	 *
+	 * @return The lower-cased topic name, or null if the topic is unknown here.
+	 */
+	public String getTopicName() {
+		return topicNames.get(topic);
+	}
+
+
+
+	/**
+	 * Keys are ordered by time, then source, sequence and topic.
+	 */
+	@Override
+	public int compareTo(MessageKey o) {
+		if (time != o.time) return (time < o.time) ? -1 : 1;
+		if (source != o.source) return (source < o.source) ? -1 : 1;
+		if (sequence != o.sequence) return (sequence < o.sequence) ? -1 : 1;
+		if (topic != o.topic) return (topic < o.topic) ? -1 : 1;
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof MessageKey)) return false;
+		MessageKey k = (MessageKey) obj;
+		return time == k.time && source == k.source && sequence == k.sequence && topic == k.topic;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode(source, time, sequence, topic);
+	}
+
+	/**
+	 * Compute the hash code of a key from its parts, for tables that store keys unboxed.
+	 */
+	public static int hashCode(long source, long time, int sequence, int topic) {
+		long h = source * 31 + time;
+		h = h * 31 + sequence;
+		h = h * 31 + topic;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Render the key as "source-time-sequence|topic", e.g. "10.0.0.12-1336003200000-42|alice". The
+	 * topic is shown as "#" and its ID in hex if this node hasn't seen it.
+	 */
+	@Override
+	public String toString() {
+		String s;
+		if ((source & IPv6Flag) == 0) {
+			s = String.format("%s.%s.%s.%s", (source >>> 24) & 0xFF, (source >>> 16) & 0xFF, (source >>> 8) & 0xFF, source & 0xFF);
+		} else {
+			s = Long.toHexString(source);
+		}
+		String t = getTopicName();
+		if (t == null) t = "#" + Integer.toHexString(topic);
+		return String.format("%s-%s-%s|%s", s, time, sequence, t);
+	}
+}
@@ -0,0 +1,520 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * A write-ahead log of the changes made to a message store. Every added message and every removal
+ * is appended to the active segment file as a {@link MessageRecords record} followed by its CRC32.
+ * On startup the segments are replayed into an empty store, which takes the place of reading a
+ * serialized store; a torn record at the end of the last segment (from a crash mid-write) is cut
+ * off.
+ * </p>
+ * <p>
+ * Appends are written by a single writer thread that takes everything queued since its last write,
+ * writes it with one gathering write and forces it to disk once (group commit). If
+ * {@link CK#MessageLogSync} is enabled, which it is by default, appending waits for the force, so
+ * a message that has been accepted survives a crash; if the write fails, appending throws an
+ * {@link IllegalStateException} instead, and the part of the batch that was written is cut off the
+ * segment. When the active segment reaches {@link CK#MessageLogSegmentBytes} it becomes immutable
+ * and a new one is started.
+ * </p>
+ * <p>
+ * Every {@link CK#MessageLogCompactSeconds}, the immutable segments are compacted into one that
+ * holds only the messages still in the store, so the log stays proportional to the store rather
+ * than to its history. The compacted segment replaces the newest of the segments it was made from
+ * and has the last word on every message they added: it holds the ones still in the store and a
+ * removal for each of the others. The rest are then deleted. If the node dies before they all are,
+ * whichever of them survive are replayed before the compacted segment, so the order they are
+ * deleted in doesn't matter. The removals are dropped by the next compaction.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessageLog {
+	private static final Logger log = Logger.getLogger(MessageLog.class);
+	public static final int DefaultSegmentBytes = 16 * 1024 * 1024;
+	public static final int DefaultCompactSeconds = 300;
+	private static final int MaxBatch = 1024;
+
+	/**
+	 * Queued by {@link #close()} after everything else, to stop the writer once it has written the
+	 * rest.
+	 */
+	private static final Pending Stop = new Pending(new byte[0]);
+	private final Path directory;
+	private final String prefix;
+	private final int segmentBytes;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	private final Object compactionLock = new Object();
+	private MessageStore store = null;
+	private FileChannel active = null;
+	private int activeIndex = 0;
+	private long activeSize = 0;
+	private Thread writerThread = null;
+	private Thread compactorThread = null;
+	private volatile boolean closed = false;
+	private long written = 0;
+	private long batches = 0;
+
+	public MessageLog(Path directory, String prefix) {
+		this(directory, prefix, Configuration.getInt(CK.MessageLogSegmentBytes, DefaultSegmentBytes));
+	}
+
+	/**
+	 * Create a log kept in the given directory. Nothing is read or written until the log is opened.
+	 *
+	 * @param directory The directory in which to keep the segment files.
+	 * @param prefix The prefix of the segment file names, e.g. "10.0.0.12-messages".
+	 * @param segmentBytes The size at which the active segment is rolled.
+	 */
+	public MessageLog(Path directory, String prefix, int segmentBytes) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentBytes = segmentBytes;
+	}
+
+
+
+	/**
+	 * Determine if the log has any segments yet.
+	 *
+	 * @return True if there is something to replay.
+	 */
+	public boolean exists() throws IOException {
+		return !getSegments().isEmpty();
+	}
+
+	/**
+	 * Replay the log into the given store and start logging to a new segment. The store is
+	 * remembered for compaction.
+	 *
+	 * @param store The store, which should be empty.
+	 * @return The number of records replayed.
+	 * @throws IOException If a segment cannot be read or the new segment cannot be created.
+	 */
+	public synchronized long open(MessageStore store) throws IOException {
+		this.store = store;
+		Files.createDirectories(directory);
+		TreeMap<Integer, Path> segments = getSegments();
+		long records = 0;
+		for (Path p : segments.values()) records += replay(p, p.equals(segments.lastEntry().getValue()));
+		activeIndex = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		openActive();
+
+		writerThread = Threads.newThread(new Writer(), "Message Log Writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		compactorThread = Threads.newThread(new Compactor(), "Message Log Compactor");
+		compactorThread.setDaemon(true);
+		compactorThread.start();
+		return records;
+	}
+
+	/**
+	 * Write out anything still queued and close the active segment. The writer is stopped by
+	 * queueing {@link #Stop} rather than interrupting it, since interrupting a thread in the middle
+	 * of a write closes the channel. The compactor is only interrupted while it's sleeping.
+	 */
+	public void close() {
+		synchronized (queue) {
+			if (closed) return;
+			closed = true;
+			queue.add(Stop);
+		}
+		synchronized (compactionLock) {
+			if (compactorThread != null) compactorThread.interrupt();
+		}
+		if (writerThread != null) {
+			boolean interrupted = false;
+			while (writerThread.isAlive()) {
+				try {
+					writerThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				if (active != null) active.close();
+			} catch (IOException e) {
+				log.error("Unable to close the message log.", e);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Log an added message.
+	 */
+	public void append(Message m) {
+		submit(MessageRecords.encode(m), isSync());
+	}
+
+	/**
+	 * Log a removed message.
+	 */
+	public void remove(MessageKey key) {
+		submit(MessageRecords.encodeRemoval(key), isSync());
+	}
+
+	/**
+	 * Log many added messages, and wait for all of them to be written.
+	 */
+	public void appendAll(Collection<Message> messages) {
+		List<Pending> pending = new ArrayList<Pending>(messages.size());
+		for (Message m : messages) pending.add(submit(MessageRecords.encode(m), false));
+		for (Pending p : pending) p.await();
+	}
+
+	/**
+	 * Queue a record, and optionally wait for it to be written.
+	 *
+	 * @throws IllegalStateException If the log is closed, or the record was waited for and could
+	 *         not be written.
+	 */
+	private Pending submit(byte[] record, boolean wait) {
+		Pending p = new Pending(record);
+		synchronized (queue) {
+			if (closed) throw new IllegalStateException("The message log is closed.");
+			queue.add(p);
+		}
+		if (wait) p.await();
+		return p;
+	}
+
+	private static boolean isSync() {
+		return Configuration.getBool(CK.MessageLogSync, true);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s[prefix=%s, activeSegment=%s, activeBytes=%s, records=%s, batches=%s]", getClass().getSimpleName(), prefix, activeIndex,
+				activeSize, written, batches);
+	}
+
+
+
+	private TreeMap<Integer, Path> getSegments() throws IOException {
+		TreeMap<Integer, Path> segments = new TreeMap<Integer, Path>();
+		if (!Files.isDirectory(directory)) return segments;
+		DirectoryStream<Path> ds = Files.newDirectoryStream(directory, prefix + "-*.wal");
+		try {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				try {
+					segments.put(Integer.valueOf(name.substring(prefix.length() + 1, name.length() - 4)), p);
+				} catch (NumberFormatException e) {
+					log.warn(String.format("Ignoring unexpected file %s.", p));
+				}
+			}
+		} finally {
+			ds.close();
+		}
+		return segments;
+	}
+
+	private Path getSegmentPath(int i) {
+		return directory.resolve(String.format("%s-%08d.wal", prefix, i));
+	}
+
+	private void openActive() throws IOException {
+		active = FileChannel.open(getSegmentPath(activeIndex), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		activeSize = 0;
+	}
+
+	/**
+	 * Apply a segment's records to the store.
+	 *
+	 * @param last Whether this is the newest segment, whose tail may be torn.
+	 * @return The number of records applied.
+	 */
+	private long replay(Path p, boolean last) throws IOException {
+		long records = 0;
+		FileChannel fc = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			int offset = 0;
+			while (offset < b.capacity()) {
+				int length = isValid(b, offset);
+				if (length < 0) {
+					if (last) {
+						log.warn(String.format("Truncating %s at %s; the rest was not completely written.", p, offset));
+						fc.truncate(offset);
+					} else {
+						log.error(String.format("Corrupt record in %s at %s; skipping the rest of the segment.", p, offset));
+					}
+					break;
+				}
+				apply(b, offset);
+				records++;
+				offset += length;
+			}
+		} finally {
+			fc.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Check the framed record at the given offset.
+	 *
+	 * @return The length of the record and its checksum, or -1 if it is truncated or corrupt.
+	 */
+	private static int isValid(ByteBuffer b, int offset) {
+		if (offset + MessageRecords.HeaderSize + 4 > b.capacity()) return -1;
+		int length = MessageRecords.getLength(b, offset);
+		if (length < MessageRecords.HeaderSize || offset + length + 4 > b.capacity()) return -1;
+		byte[] record = new byte[length];
+		ByteBuffer d = b.duplicate();
+		d.position(offset);
+		d.get(record);
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, length);
+		if ((int) crc.getValue() != d.getInt()) return -1;
+		return length + 4;
+	}
+
+	private void apply(ByteBuffer b, int offset) throws IOException {
+		if (MessageRecords.getKind(b, offset) == MessageRecords.Message) {
+			store.addMessage(MessageRecords.read(b, offset));
+		} else {
+			Message m = store.getMessageByKey(MessageRecords.readKey(b, offset));
+			if (m != null) store.removeMessage(m);
+		}
+	}
+
+
+
+	private List<Pending> drain() {
+		List<Pending> batch = new ArrayList<Pending>();
+		queue.drainTo(batch, MaxBatch);
+		return batch;
+	}
+
+	/**
+	 * Write a batch of records to the active segment, force it, and let everyone waiting on them
+	 * go. If that fails, cut what was written of the batch off the segment and let them go with the
+	 * error. Must be called with this object's lock held.
+	 */
+	private void write(List<Pending> batch) {
+		if (batch.isEmpty()) return;
+		try {
+			writeBatch(batch);
+		} catch (IOException e) {
+			log.error(String.format("Unable to write %s records to the message log.", batch.size()), e);
+			for (Pending p : batch) p.fail(e);
+			try {
+				active.truncate(activeSize);
+				active.position(activeSize);
+			} catch (IOException e2) {
+				log.error("Unable to cut a failed write off the message log.", e2);
+			}
+		}
+	}
+
+	private void writeBatch(List<Pending> batch) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+		CRC32 crc = new CRC32();
+		long bytes = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] record = batch.get(i).record;
+			crc.reset();
+			crc.update(record, 0, record.length);
+			buffers[i * 2] = ByteBuffer.wrap(record);
+			buffers[i * 2 + 1] = (ByteBuffer) ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip();
+			bytes += record.length + 4;
+		}
+		long remaining = bytes;
+		while (remaining > 0) remaining -= active.write(buffers);
+		active.force(false);
+		activeSize += bytes;
+		written += batch.size();
+		batches++;
+		for (Pending p : batch) p.done.countDown();
+
+		if (activeSize >= segmentBytes) {
+			active.close();
+			activeIndex++;
+			openActive();
+		}
+	}
+
+	/**
+	 * Compact the immutable segments into one.
+	 */
+	public void compact() throws IOException {
+		synchronized (compactionLock) {
+			if (closed) return;
+			TreeMap<Integer, Path> segments = getSegments();
+			synchronized (this) {
+				segments.remove(activeIndex);
+			}
+			if (segments.size() < 2) return;
+
+			long start = System.currentTimeMillis();
+			Path target = segments.lastEntry().getValue();
+			Path temp = target.resolveSibling(target.getFileName() + ".compacting");
+			Set<MessageKey> kept = new HashSet<MessageKey>();
+			Set<MessageKey> removed = new HashSet<MessageKey>();
+			long before = 0;
+			FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				for (Path p : segments.values()) {
+					FileChannel in = FileChannel.open(p, StandardOpenOption.READ);
+					try {
+						before += in.size();
+						MappedByteBuffer b = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+						int offset = 0;
+						int length;
+						while (offset < b.capacity() && (length = isValid(b, offset)) > 0) {
+							if (MessageRecords.getKind(b, offset) == MessageRecords.Message) {
+								MessageKey key = MessageRecords.readKey(b, offset);
+								if (store.getMessageByKey(key) == null) {
+									removed.add(key);
+								} else if (kept.add(key)) {
+									ByteBuffer frame = b.duplicate();
+									frame.position(offset);
+									frame.limit(offset + length);
+									while (frame.hasRemaining()) out.write(frame);
+								}
+							}
+							offset += length;
+						}
+					} finally {
+						in.close();
+					}
+				}
+
+				/*
+				 * A message added again since it was removed is in the store, and kept.
+				 */
+				removed.removeAll(kept);
+				CRC32 crc = new CRC32();
+				for (MessageKey key : removed) {
+					byte[] record = MessageRecords.encodeRemoval(key);
+					crc.reset();
+					crc.update(record, 0, record.length);
+					ByteBuffer frame = ByteBuffer.allocate(record.length + 4);
+					frame.put(record).putInt((int) crc.getValue()).flip();
+					while (frame.hasRemaining()) out.write(frame);
+				}
+				out.force(true);
+			} finally {
+				out.close();
+			}
+
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			for (Path p : segments.values()) {
+				if (!p.equals(target)) Files.delete(p);
+			}
+			log.info(String.format("Compacted %s segments (%s bytes) into %s messages and %s removals (%s bytes) in %sms.", segments.size(), before, kept.size(),
+					removed.size(), Files.size(target), System.currentTimeMillis() - start));
+		}
+	}
+
+
+
+	/**
+	 * Writes queued records in batches.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			boolean stopping = false;
+			while (!stopping) {
+				List<Pending> batch = new ArrayList<Pending>();
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					/*
+					 * Only close() stops the writer, and it does so with Stop.
+					 */
+					continue;
+				}
+				batch.addAll(drain());
+				stopping = batch.remove(Stop);
+				synchronized (MessageLog.this) {
+					write(batch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compacts the log periodically.
+	 */
+	private class Compactor implements Runnable {
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					Thread.sleep(Configuration.getInt(CK.MessageLogCompactSeconds, DefaultCompactSeconds) * 1000L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					compact();
+				} catch (IOException e) {
+					log.error("Unable to compact the message log.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A record waiting to be written.
+	 */
+	private static class Pending {
+		private final byte[] record;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile IOException error = null;
+
+		public Pending(byte[] record) {
+			this.record = record;
+		}
+
+		public void fail(IOException e) {
+			error = e;
+			done.countDown();
+		}
+
+		/**
+		 * Wait for the record to be written.
+		 *
+		 * @throws IllegalStateException If it couldn't be.
+		 */
+		public void await() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (error != null) throw new IllegalStateException("Unable to write to the message log.", error);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * <p>
+ * The on-disk record format shared by {@link MappedMessageStore} and {@link MessageLog}. Every
+ * record starts with its length (not counting the length itself), a kind byte and the message's
+ * key:
+ * </p>
+ * <ul>
+ * <li>A message record follows the key with the number of characters in the content, then the time
+ * zone, source address, topic and content, each prefixed by its length.</li>
+ * <li>A removal record is just the header.</li>
+ * </ul>
+ * <p>
+ * Records are read in place from a buffer, so fields like the key and topic can be had without
+ * decoding the whole message.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+final class MessageRecords {
+	public static final byte Message = 1;
+	public static final byte Removal = 2;
+	public static final int HeaderSize = 4 + 1 + MessageKey.Size;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * This is a static class.
+	 */
+	private MessageRecords() {}
+
+
+
+	public static byte[] encode(Message m) {
+		byte[] zone = m.getCreationDate().getZone().getID().getBytes(UTF8);
+		byte[] source = m.getSourceAddress().getAddress();
+		byte[] topic = m.getTopic().getBytes(UTF8);
+		byte[] content = m.getContent().getBytes(UTF8);
+		int length = HeaderSize + 4 + 2 + zone.length + 1 + source.length + 2 + topic.length + 4 + content.length;
+		byte[] record = new byte[length];
+		ByteBuffer b = ByteBuffer.wrap(record);
+		b.putInt(length - 4).put(Message);
+		m.getKey().toBytes(record, 5);
+		b.position(HeaderSize);
+		b.putInt(m.getContent().length());
+		b.putShort((short) zone.length).put(zone);
+		b.put((byte) source.length).put(source);
+		b.putShort((short) topic.length).put(topic);
+		b.putInt(content.length).put(content);
+		return record;
+	}
+
+	public static byte[] encodeRemoval(MessageKey key) {
+		byte[] record = new byte[HeaderSize];
+		ByteBuffer.wrap(record).putInt(HeaderSize - 4).put(Removal);
+		key.toBytes(record, 5);
+		return record;
+	}
+
+
+
+	/**
+	 * Retrieve the length of the record at the given offset, including the length itself.
+	 */
+	public static int getLength(ByteBuffer b, int offset) {
+		return b.getInt(offset) + 4;
+	}
+
+	public static byte getKind(ByteBuffer b, int offset) {
+		return b.get(offset + 4);
+	}
+
+	public static MessageKey readKey(ByteBuffer b, int offset) {
+		return new MessageKey(b.getLong(offset + 5), b.getLong(offset + 13), b.getInt(offset + 21), b.getInt(offset + 25));
+	}
+
+	public static int readContentChars(ByteBuffer b, int offset) {
+		return b.getInt(offset + HeaderSize);
+	}
+
+	public static String readTopic(ByteBuffer b, int offset) {
+		ByteBuffer d = b.duplicate();
+		d.position(offset + HeaderSize + 4);
+		int zoneLength = d.getShort() & 0xFFFF;
+		d.position(d.position() + zoneLength);
+		int sourceLength = d.get() & 0xFF;
+		d.position(d.position() + sourceLength);
+		return readString(d, d.getShort() & 0xFFFF);
+	}
+
+	/**
+	 * Decode the message record at the given offset.
+	 *
+	 * @throws IOException If the record is corrupt.
+	 */
+	public static Message read(ByteBuffer b, int offset) throws IOException {
+		MessageKey key = readKey(b, offset);
+		ByteBuffer d = b.duplicate();
+		d.position(offset + HeaderSize + 4);
+		try {
+			String zone = readString(d, d.getShort() & 0xFFFF);
+			byte[] source = new byte[d.get() & 0xFF];
+			d.get(source);
+			String topic = readString(d, d.getShort() & 0xFFFF);
+			String content = readString(d, d.getInt());
+			return new BaseMessage(content, new DateTime(key.getTime(), DateTimeZone.forID(zone)), InetAddress.getByAddress(source), key.getSequence(), topic);
+		} catch (RuntimeException e) {
+			throw new IOException(String.format("Corrupt record at offset %s.", offset), e);
+		}
+	}
+
+	private static String readString(ByteBuffer b, int length) {
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
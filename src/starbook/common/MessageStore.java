@@ -3,9 +3,13 @@ package starbook.common;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 
+import org.joda.time.DateTime;
+
 
 public interface MessageStore extends Serializable {
 	/**
@@ -16,31 +20,38 @@ public interface MessageStore extends Serializable {
 	public abstract void addMessage(Message m);
 
 	/**
-	 * Retrieve a copy of the message associated with the given GUID and increment the message's
+	 * Retrieve a copy of the message associated with the given key and increment the message's
 	 * download count. If the count is higher than the given limit, the message is deleted from the
 	 * message store.
 	 * 
-	 * @param guid The GUID of the message to download.
+	 * @param key The key of the message to download.
 	 * @param downloadLimit The number of times this message must be downloaded before removal.
 	 * @return The message or null if the message is not in the list.
 	 */
-	public abstract Message downloadMessage(String guid, int downloadLimit);
+	public abstract Message downloadMessage(MessageKey key, int downloadLimit);
+
+	/**
+	 * Returns the message specified by the given key, or null if the message doesn't exist.
+	 * 
+	 * @param key The key of the message to retrieve.
+	 * @return The message identified by the given key, or null if there is no message with that
+	 *         key.
+	 */
+	public abstract Message getMessageByKey(MessageKey key);
 
 	/**
-	 * Returns the message specified by the given GUID, or null if the message doesn't exist.
+	 * Retrieve a copy of the message keys currently stored in the message store.
 	 * 
-	 * @param guid The GUID of the message to retrieve.
-	 * @return The message identified by the given GUID, or null if there is no message with that
-	 *         GUID.
+	 * @return The set of message keys.
 	 */
-	public abstract Message getMessageByGUID(String guid);
+	public abstract Set<MessageKey> getMessageKeys();
 
 	/**
-	 * Retrieve a copy of the message GUIDs currently stored in the message store.
+	 * Retrieve the number of messages in the message store.
 	 * 
-	 * @return The set of message GUIDs.
+	 * @return The number of messages.
 	 */
-	public abstract Set<String> getMessageGUIDs();
+	public abstract int size();
 
 	/**
 	 * Retrieve a copy of the messages in the message store.
@@ -59,14 +70,45 @@ public interface MessageStore extends Serializable {
 	public abstract ConcurrentSkipListSet<Message> getMessagesByTopic(String topic);
 
 	/**
-	 * Retrieve a random subset of GUIDs of the messages in this message store, or all messages in
+	 * Retrieve the messages of a topic created in the given time range, oldest first. The result may
+	 * be a live view of the topic's timeline.
+	 * 
+	 * @param topic The topic.
+	 * @param from The earliest creation time to include, or null for no lower bound.
+	 * @param to The creation time at which to stop (exclusive), or null for no upper bound.
+	 * @return The messages in the range.
+	 */
+	public abstract NavigableSet<Message> range(String topic, DateTime from, DateTime to);
+
+	/**
+	 * Retrieve the newest messages of a topic, newest first.
+	 * 
+	 * @param topic The topic.
+	 * @param count The maximum number of messages to retrieve.
+	 * @return The messages.
+	 */
+	public abstract List<Message> latest(String topic, int count);
+
+	/**
+	 * Retrieve the messages of a topic that come after the given message in the topic's timeline,
+	 * oldest first. This lets a reader pick up where it left off without re-reading the topic. The
+	 * result may be a live view of the topic's timeline.
+	 * 
+	 * @param topic The topic.
+	 * @param cursor The last message already seen, or null to start at the beginning.
+	 * @return The messages after the cursor.
+	 */
+	public abstract NavigableSet<Message> since(String topic, Message cursor);
+
+	/**
+	 * Retrieve a random subset of keys of the messages in this message store, or all messages in
 	 * the message store, whichever is smaller (i.e., if there are not resultSize items in the
 	 * message store, all are returned).
 	 * 
-	 * @param resultSize The number of message GUIDs to retrieve.
-	 * @return The list of random message GUIDs.
+	 * @param resultSize The number of message keys to retrieve.
+	 * @return The list of random message keys.
 	 */
-	public abstract ArrayList<String> getRandomGUIDs(int resultSize);
+	public abstract ArrayList<MessageKey> getRandomKeys(int resultSize);
 
 	/**
 	 * Remove the given message from the message store.
@@ -76,13 +118,20 @@ public interface MessageStore extends Serializable {
 	public abstract void removeMessage(Message m);
 
 	/**
-	 * Retrieve a list of random messages, approximately bounded by the specified size (in bytes).
+	 * Retrieve the keys of random messages, approximately bounded by the specified size (in bytes).
 	 * Since it is difficult to determine the actual size of a String (without specifying the
 	 * encoding type, at least), this determination is only approximate. Due to overhead of Java
 	 * objects, the actual size of a list of messages will be higher than the returned data.
 	 * 
 	 * @param maxSize The maximum size, in bytes, of the total of the returned messages.
-	 * @return The list of messages.
+	 * @return The keys of the messages.
+	 */
+	HashSet<MessageKey> getRandomKeysByByte(int maxSize);
+
+	/**
+	 * Retrieve the hash tree of the keys in each topic, which the store keeps up to date.
+	 * 
+	 * @return The tree.
 	 */
-	HashSet<String> getRandomGUIDsByByte(int maxSize);
+	public abstract KeyTree getKeyTree();
 }
\ No newline at end of file
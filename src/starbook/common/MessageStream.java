@@ -0,0 +1,191 @@
+package starbook.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import starbook.common.Command.Type;
+import starbook.nodes.MessageStoreNode;
+
+/**
+ * <p>
+ * Downloads many messages from another node over a single TCP connection, instead of one
+ * MessageRequest and one MessageUpload per message. The downloading node connects to the other
+ * node's command port and sends the {@link #Preamble}, followed by a
+ * {@link Command.Type#MessageBatchRequest} as a frame (a four-byte length and the encoded command).
+ * The other node answers on the same connection with each of the requested messages it publishes,
+ * as {@link MessageRecords records} encoded straight from its store, followed by a zero length.
+ * </p>
+ * <p>
+ * Both ends use blocking sockets with modest buffers, and the downloading node stores each chunk of
+ * {@link #ChunkMessages} messages before it reads the next, so a node that can't keep up slows the
+ * sender down through TCP's own flow control rather than letting messages pile up in memory.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public final class MessageStream {
+	private static final Logger log = Logger.getLogger(MessageStream.class);
+	public static final byte[] Preamble = { 'S', 'B', 'M', 1 };
+	public static final int MaxKeys = 65536;
+	public static final int ChunkMessages = 256;
+	static final int BufferSize = 64 * 1024;
+	static final int ConnectTimeout = 5000;
+	static final int ReadTimeout = 30000;
+
+	/**
+	 * Stores downloaded messages, a chunk at a time.
+	 */
+	public static interface Receiver {
+		public void receive(List<Message> messages) throws IOException;
+	}
+
+	/**
+	 * This is a static class.
+	 */
+	private MessageStream() {}
+
+
+
+	/**
+	 * Determine if the given bytes are a message stream preamble.
+	 *
+	 * @param b The bytes read from the start of a connection.
+	 * @param length The number of valid bytes.
+	 * @return True if this is the start of a message stream.
+	 */
+	public static boolean isPreamble(byte[] b, int length) {
+		return length == Preamble.length && Arrays.equals(Arrays.copyOf(b, length), Preamble);
+	}
+
+
+
+	/**
+	 * Download messages from another node. Keys of messages the other node doesn't publish are
+	 * skipped.
+	 *
+	 * @param peer The command address of the node to download from.
+	 * @param keys The keys of the messages to download, at most {@link #MaxKeys} of them.
+	 * @param source The address of this node.
+	 * @param receiver Stores the messages as they arrive.
+	 * @return The number of messages downloaded.
+	 * @throws IOException If the connection fails or the other node sends something invalid. The
+	 *         chunks already passed to the receiver stay stored.
+	 */
+	public static int download(InetSocketAddress peer, Collection<MessageKey> keys, InetAddress source, Receiver receiver) throws IOException {
+		if (keys.size() > MaxKeys) throw new IllegalArgumentException(String.format("Cannot download more than %s messages at once.", MaxKeys));
+		Map<String, Object> data = new HashMap<String, Object>(2);
+		data.put("keys", new ArrayList<MessageKey>(keys));
+		data.put("source", source);
+		byte[] request = new Command(Type.MessageBatchRequest, data).encode();
+
+		long start = System.currentTimeMillis();
+		Socket socket = new Socket();
+		try {
+			socket.connect(peer, ConnectTimeout);
+			socket.setSoTimeout(ReadTimeout);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BufferSize));
+			out.write(Preamble);
+			out.writeInt(request.length);
+			out.write(request);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BufferSize));
+			int count = receive(in, peer, receiver);
+			log.debug(String.format("Downloaded %s of %s messages from %s in %sms.", count, keys.size(), peer, System.currentTimeMillis() - start));
+			return count;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Read message records up to a zero length, passing them to a receiver a chunk at a time.
+	 *
+	 * @return The number of messages read.
+	 */
+	static int receive(DataInputStream in, Object peer, Receiver receiver) throws IOException {
+		List<Message> chunk = new ArrayList<Message>(ChunkMessages);
+		byte[] record = new byte[1024];
+		int count = 0;
+		int length;
+		while ((length = in.readInt()) != 0) {
+			if (length < MessageRecords.HeaderSize - 4 || length > FramedConnection.MaxFrameSize)
+				throw new IOException(String.format("Invalid record length %s from %s.", length, peer));
+			if (record.length < length + 4) record = new byte[Math.max(length + 4, record.length * 2)];
+			ByteBuffer b = ByteBuffer.wrap(record);
+			b.putInt(0, length);
+			in.readFully(record, 4, length);
+			if (MessageRecords.getKind(b, 0) != MessageRecords.Message) throw new IOException(String.format("Unexpected record from %s.", peer));
+			chunk.add(MessageRecords.read(b, 0));
+			if (chunk.size() == ChunkMessages) {
+				receiver.receive(chunk);
+				count += chunk.size();
+				chunk = new ArrayList<Message>(ChunkMessages);
+			}
+		}
+		if (!chunk.isEmpty()) {
+			receiver.receive(chunk);
+			count += chunk.size();
+		}
+		return count;
+	}
+
+
+
+	/**
+	 * Answer a download on an accepted connection whose preamble has already been read. Messages
+	 * are fetched from the node's published messages one at a time as they are written, and
+	 * downloads are counted as for single MessageRequests.
+	 *
+	 * @param socket The accepted socket, which the caller closes.
+	 * @param in The socket's input stream, positioned just after the preamble.
+	 * @throws IOException If the request is invalid or the connection fails.
+	 */
+	public static void serve(Socket socket, InputStream in) throws IOException {
+		socket.setSoTimeout(ReadTimeout);
+		DataInputStream din = new DataInputStream(in);
+		int length = din.readInt();
+		if (length < 0 || length > MaxKeys * MessageKey.Size + 1024) throw new IOException(String.format("Invalid request length %s.", length));
+		byte[] b = new byte[length];
+		din.readFully(b);
+		Command request = CommandCodec.decode(b, 0, length);
+		if (request.getType() != Type.MessageBatchRequest) throw new IOException(String.format("Unexpected %s at the start of a message stream.", request));
+		@SuppressWarnings("unchecked")
+		List<MessageKey> keys = (List<MessageKey>) request.getData().get("keys");
+
+		long start = System.currentTimeMillis();
+		MessageStoreNode node = (MessageStoreNode) Configuration.getParameter("node");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BufferSize));
+		int count = 0;
+		long bytes = 0;
+		for (MessageKey key : keys) {
+			Message m = node.downloadPublishedMessage(key);
+			if (m == null) continue;
+			byte[] record = MessageRecords.encode(m);
+			out.write(record);
+			count++;
+			bytes += record.length;
+		}
+		out.writeInt(0);
+		out.flush();
+		log.debug(String.format("Streamed %s of %s requested messages (%s bytes) to %s in %sms.", count, keys.size(), bytes, socket.getRemoteSocketAddress(),
+				System.currentTimeMillis() - start));
+	}
+}
@@ -0,0 +1,430 @@
+package starbook.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Listen on the network for TCP connections using non-blocking channels. Connections are spread
+ * across a small, fixed number of I/O threads (see {@link CK#CommandIOThreads}), each running its
+ * own selector, so a burst of peers doesn't turn into a burst of threads. Bytes are accumulated
+ * per connection until a whole command is available; the command is then decoded and processed
+ * by a handler from the specified factory on a separate executor.
+ * </p>
+ * <p>
+ * Both kinds of connection accepted by {@link TCPCommandListener} are understood: single-command
+ * connections, which are decoded once the sender closes its side, and {@link FramedConnection}s,
+ * which are read frame by frame for as long as they stay open. Framed connections accepted here
+ * are only read from; replies to that peer go over the {@link TCPConnectionPool}'s own
+ * connections. A {@link MessageStream} or {@link TreeSync} is taken off the selector once
+ * recognized and answered on the executor with blocking writes, so the I/O threads never wait on a
+ * slow downloader.
+ * </p>
+ * <p>
+ * The listener stops when its thread is interrupted or {@link #stopThreads()} is called; either
+ * wakes the selectors, so there is no accept timeout to wait out.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class NIOTCPCommandListener implements Runnable, Stoppable {
+	private static final Logger log = Logger.getLogger(NIOTCPCommandListener.class);
+	public static final int DefaultIOThreads = 2;
+	private static final int InitialBufferSize = 4096;
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService executor = Threads.newExecutor();
+	private final CommandHandlerFactory factory;
+	private final IOLoop[] loops;
+	private volatile boolean running = true;
+	private int nextLoop = 0;
+
+	public NIOTCPCommandListener(InetSocketAddress address, CommandHandlerFactory factory) throws IOException {
+		super();
+		this.factory = factory;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(address, 100);
+		loops = new IOLoop[Math.max(1, Configuration.getInt(CK.CommandIOThreads, DefaultIOThreads))];
+		for (int i = 0; i < loops.length; i++) loops[i] = new IOLoop();
+		TCPConnectionPool.Instance.setHandlerFactory(factory, address.getPort());
+	}
+
+	@Override
+	public void run() {
+		log.debug("Waiting for connections on " + serverChannel.socket().getLocalSocketAddress() + " with " + loops.length + " I/O thread(s)");
+
+		/*
+		 * The first loop runs on this thread and also accepts connections; the rest get their own
+		 * threads.
+		 */
+		Thread[] threads = new Thread[loops.length - 1];
+		try {
+			serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			running = false;
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(loops[i + 1], "TCP I/O " + (i + 1));
+			threads[i].start();
+		}
+
+		loops[0].run();
+
+		stopThreads();
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void stopThreads() {
+		running = false;
+		for (IOLoop l : loops) l.selector.wakeup();
+		TCPConnectionPool.Instance.closeAll();
+		executor.shutdown();
+		while (!executor.isTerminated()) {
+			log.debug("Waiting for thread pool to shut down...");
+			try {
+				executor.awaitTermination(15, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Accept all pending connections and hand them to the I/O loops in turn.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			loops[nextLoop].add(channel);
+			nextLoop = (nextLoop + 1) % loops.length;
+		}
+	}
+
+
+
+	/**
+	 * Decode an encoded command and process it on the executor, keeping the I/O threads free.
+	 */
+	private void dispatch(final byte[] b) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					CommandScheduler.Instance.process(factory, CommandCodec.decode(b, 0, b.length));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+
+
+	/**
+	 * A selector and the thread that services it.
+	 */
+	private class IOLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+		private final List<Handoff> handoffs = new ArrayList<Handoff>();
+
+		public IOLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Hand a newly-accepted channel to this loop. Registration must happen on the loop's own
+		 * thread, so the selector is woken up to do it.
+		 */
+		public void add(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running && !Thread.currentThread().isInterrupted()) {
+				try {
+					/*
+					 * A cancelled key is only dropped by the next select, so don't block in it while
+					 * message streams are waiting to be handed off.
+					 */
+					if (handoffs.isEmpty()) {
+						selector.select();
+					} else {
+						selector.selectNow();
+					}
+					handOff();
+
+					SocketChannel channel;
+					while ((channel = pending.poll()) != null) {
+						channel.register(selector, SelectionKey.OP_READ, new ChannelState());
+					}
+
+					Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+					while (i.hasNext()) {
+						SelectionKey key = i.next();
+						i.remove();
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept();
+						} else if (key.isReadable()) {
+							read(key);
+						}
+					}
+				} catch (IOException e) {
+					/*
+					 * Log the error and continue listening. Hopefully.
+					 */
+					e.printStackTrace();
+				}
+			}
+
+			for (SelectionKey key : selector.keys()) close(key);
+			for (Handoff h : handoffs) {
+				try {
+					h.channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void read(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			ChannelState state = (ChannelState) key.attachment();
+			try {
+				int read;
+				while ((read = channel.read(state.getBuffer())) > 0) {
+					state.parse();
+					if (state.mode == ChannelState.Streaming) {
+						stream(key, state);
+						return;
+					}
+				}
+				if (read < 0) {
+					state.finish();
+					close(key);
+				}
+			} catch (IOException e) {
+				log.debug(String.format("Closing connection from %s: %s", channel.socket().getRemoteSocketAddress(), e.getMessage()));
+				close(key);
+			}
+		}
+
+		/**
+		 * Take a message stream off the selector. The channel can only be made blocking once the
+		 * selector has dropped it, which happens on its next select, so it is handed to the executor
+		 * from there.
+		 */
+		private void stream(SelectionKey key, ChannelState state) {
+			key.cancel();
+			handoffs.add(new Handoff((SocketChannel) key.channel(), state));
+		}
+
+		/**
+		 * Answer the message streams taken off the selector on the executor.
+		 */
+		private void handOff() {
+			for (Handoff h : handoffs) {
+				final SocketChannel channel = h.channel;
+				final ChannelState state = h.state;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							channel.configureBlocking(true);
+							InputStream in = new SequenceInputStream(new ByteArrayInputStream(state.drain()), channel.socket().getInputStream());
+							if (state.syncing) {
+								TreeSync.serve(channel.socket(), in);
+							} else {
+								MessageStream.serve(channel.socket(), in);
+							}
+						} catch (IOException e) {
+							log.debug(String.format("Message stream to %s failed: %s", channel.socket().getRemoteSocketAddress(), e.getMessage()));
+						} finally {
+							try {
+								channel.close();
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+			}
+			handoffs.clear();
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+
+	/**
+	 * A message stream waiting for its selector to drop it.
+	 */
+	private static class Handoff {
+		private final SocketChannel channel;
+		private final ChannelState state;
+
+		public Handoff(SocketChannel channel, ChannelState state) {
+			this.channel = channel;
+			this.state = state;
+		}
+	}
+
+
+
+	/**
+	 * The bytes received so far on one connection and what kind of connection it turned out to be.
+	 */
+	private class ChannelState {
+		private static final int Sniffing = 0;
+		private static final int Single = 1;
+		private static final int Framed = 2;
+		private static final int Streaming = 3;
+		private ByteBuffer buffer = ByteBuffer.allocate(InitialBufferSize);
+		private int mode = Sniffing;
+		private boolean syncing = false;
+
+		/**
+		 * Retrieve the buffer to read into, growing it if it is full.
+		 */
+		public ByteBuffer getBuffer() throws IOException {
+			if (!buffer.hasRemaining()) {
+				if (buffer.capacity() >= FramedConnection.MaxFrameSize + 4)
+					throw new IOException("Command is too large.");
+				ByteBuffer b = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, FramedConnection.MaxFrameSize + 4));
+				buffer.flip();
+				b.put(buffer);
+				buffer = b;
+			}
+			return buffer;
+		}
+
+		/**
+		 * Consume as many complete frames as the buffer holds. Single-command connections are left
+		 * alone until the sender closes its side.
+		 */
+		public void parse() throws IOException {
+			buffer.flip();
+			try {
+				if (mode == Sniffing) sniff();
+				while (mode == Framed && buffer.remaining() >= 4) {
+					int length = buffer.getInt(buffer.position());
+					if (length < 0 || length > FramedConnection.MaxFrameSize)
+						throw new IOException(String.format("Invalid frame length %s.", length));
+					if (buffer.remaining() < length + 4) break;
+					buffer.getInt();
+					byte[] b = new byte[length];
+					buffer.get(b);
+					dispatch(b);
+				}
+			} finally {
+				buffer.compact();
+			}
+		}
+
+		private void sniff() {
+			byte[] preamble = FramedConnection.Preamble;
+			if (buffer.remaining() < 1) return;
+			if (buffer.get(buffer.position()) != preamble[0]) {
+				mode = Single;
+				return;
+			}
+			if (buffer.remaining() < MessageStream.Preamble.length) return;
+			if (startsWith(MessageStream.Preamble) || startsWith(TreeSync.Preamble)) {
+				syncing = startsWith(TreeSync.Preamble);
+				buffer.position(buffer.position() + MessageStream.Preamble.length);
+				mode = Streaming;
+				return;
+			}
+			if (!startsWith(preamble)) {
+				mode = Single;
+				return;
+			}
+			/*
+			 * The preamble is followed by the peer's two-byte command port, which we don't need.
+			 */
+			if (buffer.remaining() < preamble.length + 2) return;
+			buffer.position(buffer.position() + preamble.length + 2);
+			mode = Framed;
+		}
+
+		private boolean startsWith(byte[] b) {
+			for (int i = 0; i < b.length; i++) {
+				if (buffer.get(buffer.position() + i) != b[i]) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Retrieve the bytes received after the preamble of a message stream.
+		 */
+		public byte[] drain() {
+			byte[] b = new byte[buffer.position()];
+			buffer.flip();
+			buffer.get(b);
+			buffer.clear();
+			return b;
+		}
+
+		/**
+		 * The sender closed its side; a single-command connection now holds its whole command.
+		 */
+		public void finish() {
+			if (mode == Framed || buffer.position() == 0) return;
+			byte[] b = new byte[buffer.position()];
+			buffer.flip();
+			buffer.get(b);
+			dispatch(b);
+		}
+	}
+}
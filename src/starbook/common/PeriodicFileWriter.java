@@ -1,20 +1,35 @@
 package starbook.common;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
 /**
+ * <p>
  * Periodically saves the provided object (by reference) to the specified file location.
+ * </p>
+ * <p>
+ * If the object is {@link Snapshottable}, only what changed since the last round is written, to a
+ * delta file next to the base file ("file.delta-00000042"), and rounds in which nothing changed
+ * are skipped. Every {@link CK#SnapshotMergeRounds} rounds, and when the writer is stopped, the
+ * whole object is written to the base file instead and the deltas it covers are deleted. The base
+ * file ends with the sequence number of the last delta it covers, so {@link #read(Path)} can tell
+ * which deltas to apply on top of it even if the writer died before deleting them.
+ * </p>
  * 
  * @author Josh Endries (josh@endries.org)
  * 
@@ -24,10 +39,32 @@ public class PeriodicFileWriter implements Runnable {
 	private final Path filePath;
 	private final Serializable object;
 	public final static int DelaySeconds = 60;
+	public final static int DefaultMergeRounds = 10;
+
+	/**
+	 * The sequence number of the last delta written.
+	 */
+	private long sequence = 0;
+
+	/**
+	 * The number of deltas written since the base file was.
+	 */
+	private int deltas = 0;
+
+	/**
+	 * Whether the whole object has been written since changes started being tracked.
+	 */
+	private boolean merged = false;
 
 	public PeriodicFileWriter(Serializable object, Path filePath) {
 		this.object = object;
 		this.filePath = filePath;
+		try {
+			TreeMap<Long, Path> existing = getDeltas(filePath);
+			if (!existing.isEmpty()) sequence = existing.lastKey();
+		} catch (IOException e) {
+			log.warn(String.format("Unable to list the deltas of \"%s\".", filePath), e);
+		}
 	}
 
 	@Override
@@ -47,16 +84,174 @@ public class PeriodicFileWriter implements Runnable {
 			/*
 			 * Attempt to save the object to disk.
 			 */
-			saveData();
+			save(false);
 		}
 
 		/*
 		 * We were interrupted, attempt to save one last time.
 		 */
-		saveData();
+		save(true);
 	}
 
-	private void saveData() {
+
+
+	/**
+	 * Read an object saved by a writer, applying any deltas written since its base file.
+	 * 
+	 * @param filePath The path of the base file.
+	 * @return The object, or null if the base file doesn't exist.
+	 */
+	public static Object read(Path filePath) throws IOException, ClassNotFoundException {
+		if (!Files.exists(filePath)) return null;
+		long start = System.currentTimeMillis();
+		Object object;
+		long base;
+		ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(filePath));
+		try {
+			object = ois.readObject();
+			try {
+				base = ois.readLong();
+			} catch (EOFException e) {
+				/*
+				 * The file was written before deltas existed.
+				 */
+				base = 0;
+			}
+		} finally {
+			ois.close();
+		}
+
+		long read = System.currentTimeMillis();
+		log.info(String.format("Read \"%s\" (%s bytes) in %sms.", filePath, Files.size(filePath), read - start));
+
+		if (object instanceof Snapshottable) {
+			int applied = 0;
+			for (Map.Entry<Long, Path> e : getDeltas(filePath).entrySet()) {
+				if (e.getKey() <= base) continue;
+				ois = new ObjectInputStream(Files.newInputStream(e.getValue()));
+				try {
+					((Snapshottable) object).applyDelta((Serializable) ois.readObject());
+					applied++;
+				} finally {
+					ois.close();
+				}
+			}
+			if (applied > 0) log.info(String.format("Applied %s deltas to \"%s\" in %sms.", applied, filePath, System.currentTimeMillis() - read));
+		}
+		return object;
+	}
+
+	/**
+	 * Find the delta files of the given base file.
+	 * 
+	 * @return The delta files, by sequence number.
+	 */
+	private static TreeMap<Long, Path> getDeltas(Path filePath) throws IOException {
+		TreeMap<Long, Path> deltas = new TreeMap<Long, Path>();
+		Path directory = filePath.toAbsolutePath().getParent();
+		if (directory == null || !Files.isDirectory(directory)) return deltas;
+		String prefix = filePath.getFileName() + ".delta-";
+		DirectoryStream<Path> ds = Files.newDirectoryStream(directory, prefix + "*");
+		try {
+			for (Path p : ds) {
+				try {
+					deltas.put(Long.valueOf(p.getFileName().toString().substring(prefix.length())), p);
+				} catch (NumberFormatException e) {
+					/*
+					 * A temporary file from an unfinished write.
+					 */
+				}
+			}
+		} finally {
+			ds.close();
+		}
+		return deltas;
+	}
+
+
+
+	/**
+	 * Save the object, whole or as a delta.
+	 * 
+	 * @param last Whether this is the last round, after which everything should be in the base file.
+	 */
+	private void save(boolean last) {
+		if (!(object instanceof Snapshottable)) {
+			saveData();
+			return;
+		}
+
+		Serializable delta = ((Snapshottable) object).takeDelta();
+		if (!merged) {
+			/*
+			 * This is the first round (or the last one failed), so changes have only now started
+			 * being tracked and the whole object has to be written.
+			 */
+			merge();
+		} else if (delta == null && (!last || deltas == 0)) {
+			log.debug("Nothing has changed, skipping this round.");
+		} else if (last || deltas + 1 >= Configuration.getInt(CK.SnapshotMergeRounds, DefaultMergeRounds)) {
+			merge();
+		} else if (delta != null) {
+			saveDelta(delta);
+		}
+	}
+
+	/**
+	 * Write the whole object to the base file and delete the deltas it covers.
+	 */
+	private void merge() {
+		if (!saveData()) {
+			merged = false;
+			return;
+		}
+		merged = true;
+		deltas = 0;
+		try {
+			for (Map.Entry<Long, Path> e : getDeltas(filePath).headMap(sequence, true).entrySet()) Files.deleteIfExists(e.getValue());
+		} catch (IOException e) {
+			log.warn(String.format("Unable to delete the deltas of \"%s\".", filePath), e);
+		}
+	}
+
+	/**
+	 * Write a delta to the next delta file.
+	 */
+	private void saveDelta(Serializable delta) {
+		Path deltaPath = filePath.resolveSibling(String.format("%s.delta-%08d", filePath.getFileName(), sequence + 1));
+		Path tempPath = deltaPath.resolveSibling(deltaPath.getFileName() + "-new");
+		ObjectOutputStream oos = null;
+		try {
+			oos = new ObjectOutputStream(Files.newOutputStream(tempPath));
+			oos.writeObject(delta);
+			oos.close();
+			oos = null;
+			Files.move(tempPath, deltaPath, StandardCopyOption.ATOMIC_MOVE);
+			sequence++;
+			deltas++;
+			log.debug(String.format("Successfully saved delta to \"%s\".", deltaPath));
+		} catch (IOException e) {
+			/*
+			 * The changes in this delta are gone, so the next round has to write everything.
+			 */
+			log.warn(String.format("Unable to save delta to \"%s\".", deltaPath), e);
+			merged = false;
+		} finally {
+			try {
+				if (oos != null)
+					oos.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Write the whole object to the base file, followed by the sequence number of the last delta.
+	 * 
+	 * @return True if the object was saved.
+	 */
+	private boolean saveData() {
 		log.debug("Saving data...");
 
 		/*
@@ -81,11 +276,11 @@ public class PeriodicFileWriter implements Runnable {
 		 */
 		if (Files.exists(tempCurrentPath)) {
 			log.warn(String.format("Temporary file \"%s\" already exists, unable to save data.", tempCurrentPath));
-			return;
+			return false;
 		}
 		if (Files.exists(tempOriginalPath)) {
 			log.warn(String.format("Temporary file \"%s\" already exists, unable to save data.", tempOriginalPath));
-			return;
+			return false;
 		}
 
 		/*
@@ -97,6 +292,8 @@ public class PeriodicFileWriter implements Runnable {
 			fos = Files.newOutputStream(tempCurrentPath);
 			oos = new ObjectOutputStream(fos);
 			oos.writeObject(object);
+			oos.writeLong(sequence);
+			oos.flush();
 			log.debug(String.format("Successfully wrote to \"%s\"", tempCurrentPath));
 
 			/*
@@ -150,6 +347,7 @@ public class PeriodicFileWriter implements Runnable {
 			}
 			
 			log.info("Successfully saved data to disk.");
+			return true;
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -164,5 +362,6 @@ public class PeriodicFileWriter implements Runnable {
 				e.printStackTrace();
 			}
 		}
+		return false;
 	}
 }
@@ -0,0 +1,195 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Correlates request commands with their responses. A request sent with
+ * {@link #request(Command, InetSocketAddress)} carries a "requestId" entry in its data map, and the
+ * handler answering it copies that ID into the response's "replyTo" entry (see
+ * {@link Command#inReplyTo(Command)}). When the response has been processed, the request's
+ * {@link CommandFuture} completes.
+ * </p>
+ * <p>
+ * A request that isn't answered within {@link CK#RequestTimeoutMillis} is sent again, up to
+ * {@link CK#RequestRetries} times, after which its future fails with a {@link TimeoutException}.
+ * Because a retried request can be answered more than once, the IDs of recently answered requests
+ * are remembered and later responses to them are reported as duplicates, which
+ * {@link BaseCommandHandler} skips.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public enum RequestTracker {
+	Instance;
+
+	private static final Logger log = Logger.getLogger(RequestTracker.class);
+	public static final int DefaultTimeoutMillis = 2000;
+	public static final int DefaultRetries = 2;
+	private static final int RememberedResponses = 4096;
+	private final AtomicLong nextID = new AtomicLong(Configuration.rng.nextLong() & Long.MAX_VALUE);
+	private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<Long, Pending>();
+	private final Map<Long, Boolean> answered = new LinkedHashMap<Long, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > RememberedResponses;
+		}
+	};
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Request Timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+
+
+	/**
+	 * Send a request using the configured timeout and number of retries.
+	 *
+	 * @see #request(Command, InetSocketAddress, long, int)
+	 */
+	public CommandFuture request(Command command, InetSocketAddress peer) throws IOException {
+		return request(command, peer, Configuration.getInt(CK.RequestTimeoutMillis, DefaultTimeoutMillis),
+				Configuration.getInt(CK.RequestRetries, DefaultRetries));
+	}
+
+	/**
+	 * Send a request command to a peer and track its response. The command is sent with
+	 * {@link Command#send(InetSocketAddress)}.
+	 *
+	 * @param command The request. A "requestId" entry is added to its data map.
+	 * @param peer The peer's command address.
+	 * @param timeoutMillis How long to wait for each attempt to be answered.
+	 * @param retries How many more times to send the request if it isn't answered.
+	 * @return The future response.
+	 * @throws IOException If the first attempt cannot be sent.
+	 */
+	public CommandFuture request(Command command, InetSocketAddress peer, long timeoutMillis, int retries) throws IOException {
+		long id = nextID.incrementAndGet();
+		command.getData().put("requestId", id);
+		Pending p = new Pending(new CommandFuture(id), command, peer, timeoutMillis, retries);
+		pending.put(id, p);
+		try {
+			command.send(peer);
+		} catch (IOException e) {
+			pending.remove(id);
+			throw e;
+		}
+		p.schedule();
+		return p.future;
+	}
+
+
+
+	/**
+	 * Determine if the given command answers a request that has already been answered, and if not,
+	 * record that it has now. Commands that aren't responses are never duplicates.
+	 *
+	 * @param command A received command.
+	 * @return True if the command should be ignored.
+	 */
+	public boolean isDuplicate(Command command) {
+		Long id = getReplyTo(command);
+		if (id == null) return false;
+		synchronized (answered) {
+			if (answered.containsKey(id)) {
+				log.debug(String.format("Ignoring duplicate response to request %s: %s", id, command));
+				return true;
+			}
+			answered.put(id, Boolean.TRUE);
+			return false;
+		}
+	}
+
+	/**
+	 * Complete the request answered by the given command, if it is still waiting. This is called
+	 * once the response has been processed.
+	 *
+	 * @param command A received command.
+	 */
+	public void complete(Command command) {
+		Long id = getReplyTo(command);
+		if (id == null) return;
+		Pending p = pending.remove(id);
+		if (p != null) p.future.complete(command);
+	}
+
+	/**
+	 * Stop tracking a request, e.g. because its future was cancelled.
+	 */
+	void forget(long id) {
+		pending.remove(id);
+	}
+
+	public int getPending() {
+		return pending.size();
+	}
+
+	private static Long getReplyTo(Command command) {
+		Object o = command.getData().get("replyTo");
+		return (o instanceof Long) ? (Long) o : null;
+	}
+
+
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private class Pending implements Runnable {
+		private final CommandFuture future;
+		private final Command command;
+		private final InetSocketAddress peer;
+		private final long timeoutMillis;
+		private int retriesLeft;
+
+		public Pending(CommandFuture future, Command command, InetSocketAddress peer, long timeoutMillis, int retries) {
+			this.future = future;
+			this.command = command;
+			this.peer = peer;
+			this.timeoutMillis = timeoutMillis;
+			this.retriesLeft = retries;
+		}
+
+		public void schedule() {
+			timer.schedule(this, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * The attempt timed out; retry or give up.
+		 */
+		@Override
+		public void run() {
+			if (future.isDone() || !pending.containsKey(future.getRequestID())) return;
+			if (retriesLeft-- > 0) {
+				log.debug(String.format("Retrying %s to %s (%s retries left)", command, peer, retriesLeft));
+				try {
+					command.send(peer);
+				} catch (IOException e) {
+					log.debug(String.format("Retry of %s to %s failed: %s", command, peer, e.getMessage()));
+				}
+				schedule();
+			} else {
+				pending.remove(future.getRequestID());
+				future.fail(new TimeoutException(String.format("No response to %s from %s.", command, peer)));
+			}
+		}
+	}
+}
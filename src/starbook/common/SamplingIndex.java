@@ -0,0 +1,158 @@
+package starbook.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * <p>
+ * An index of messages that supports uniform random sampling in time proportional to the size of
+ * the sample rather than the number of messages. The messages are kept in a dense array, with a map
+ * from key to array slot; removing a message moves the last message into its slot, so the array
+ * never has holes and a random slot is always a random message.
+ * </p>
+ * <p>
+ * All methods are synchronized. Sampling holds the lock only while the sample is drawn, which is
+ * cheap compared to walking a skip list.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class SamplingIndex {
+	/**
+	 * How many messages in a row may be too large for the remaining budget before a byte-budgeted
+	 * sample gives up looking for smaller ones.
+	 */
+	private static final int MaxConsecutiveMisses = 64;
+	private Message[] slots = new Message[16];
+	private int size = 0;
+	private final Map<MessageKey, Integer> positions = new HashMap<MessageKey, Integer>();
+	private final Random rng;
+
+	public SamplingIndex() {
+		this(Configuration.rng);
+	}
+
+	public SamplingIndex(Random rng) {
+		this.rng = rng;
+	}
+
+
+
+	/**
+	 * Add a message to the index, replacing any message with the same key.
+	 *
+	 * @param m The message.
+	 */
+	public synchronized void add(Message m) {
+		Integer p = positions.get(m.getKey());
+		if (p != null) {
+			slots[p] = m;
+			return;
+		}
+		if (size == slots.length) {
+			Message[] grown = new Message[slots.length * 2];
+			System.arraycopy(slots, 0, grown, 0, size);
+			slots = grown;
+		}
+		slots[size] = m;
+		positions.put(m.getKey(), size);
+		size++;
+	}
+
+	/**
+	 * Remove the message with the given key from the index.
+	 *
+	 * @param key The message's key.
+	 * @return True if the message was in the index.
+	 */
+	public synchronized boolean remove(MessageKey key) {
+		Integer p = positions.remove(key);
+		if (p == null) return false;
+		size--;
+		if (p != size) {
+			Message last = slots[size];
+			slots[p] = last;
+			positions.put(last.getKey(), p);
+		}
+		slots[size] = null;
+		return true;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void clear() {
+		slots = new Message[16];
+		size = 0;
+		positions.clear();
+	}
+
+
+
+	/**
+	 * Retrieve the keys of a uniformly random subset of the messages, using Floyd's algorithm.
+	 *
+	 * @param count The number of keys wanted.
+	 * @return Up to count distinct keys, in no particular order.
+	 */
+	public synchronized List<MessageKey> sample(int count) {
+		int n = Math.min(count, size);
+		List<MessageKey> result = new ArrayList<MessageKey>(Math.max(n, 0));
+		if (n <= 0) return result;
+		Set<Integer> chosen = new HashSet<Integer>();
+		for (int j = size - n; j < size; j++) {
+			int t = rng.nextInt(j + 1);
+			if (!chosen.add(t)) chosen.add(t = j);
+			result.add(slots[t].getKey());
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the keys of randomly chosen messages whose combined size stays under the given
+	 * budget. Messages are visited in a random order, drawn lazily (a Fisher-Yates shuffle that only
+	 * records the slots it has swapped), until the budget is used up or too many messages in a row
+	 * didn't fit.
+	 *
+	 * @param maxSize The budget in bytes.
+	 * @return The keys of the chosen messages.
+	 */
+	public synchronized HashSet<MessageKey> sampleByBytes(int maxSize) {
+		HashSet<MessageKey> keys = new HashSet<MessageKey>();
+		Map<Integer, Integer> swapped = new HashMap<Integer, Integer>();
+		int total = 0;
+		int misses = 0;
+		for (int i = 0; i < size && total < maxSize && misses < MaxConsecutiveMisses; i++) {
+			int r = i + rng.nextInt(size - i);
+			Integer atR = swapped.get(r);
+			Integer atI = swapped.get(i);
+			int slot = (atR == null) ? r : atR;
+			swapped.put(r, (atI == null) ? i : atI);
+
+			Message message = slots[slot];
+			int messageSize = getSize(message);
+			if (messageSize + total < maxSize) {
+				total += messageSize;
+				keys.add(message.getKey());
+				misses = 0;
+			} else {
+				misses++;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * The size of a message for the purposes of a byte budget.
+	 */
+	public static int getSize(Message message) {
+		return message.getContent().length() * 2; // Java uses 16-bit chars by default.
+	}
+}
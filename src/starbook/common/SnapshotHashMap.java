@@ -0,0 +1,141 @@
+package starbook.common;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link ConcurrentHashMap} that tracks which keys have been put or removed, so it can be saved
+ * incrementally. A delta holds each changed key's value as of when the delta was taken, so values
+ * changed in place are picked up as long as their key is put again afterwards. Entries removed
+ * through a view or iterator are not tracked.
+ * 
+ * @author Josh Endries (josh@endries.org)
+ * 
+ */
+public class SnapshotHashMap<K, V> extends ConcurrentHashMap<K, V> implements Snapshottable {
+	private static final long serialVersionUID = 6209783104475230126L;
+
+	/**
+	 * The keys changed since the last delta was taken, or null if changes aren't tracked yet. Each
+	 * key maps to the key object most recently put, since equal keys may still differ (e.g. users
+	 * with newer activity).
+	 */
+	private transient volatile ConcurrentHashMap<K, K> changed = null;
+
+	@Override
+	public V put(K key, V value) {
+		V v = super.put(key, value);
+		mark(key);
+		return v;
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) put(e.getKey(), e.getValue());
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		V v = super.putIfAbsent(key, value);
+		if (v == null) mark(key);
+		return v;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		V v = super.remove(key);
+		if (v != null) mark((K) key);
+		return v;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key, Object value) {
+		boolean removed = super.remove(key, value);
+		if (removed) mark((K) key);
+		return removed;
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		V v = super.replace(key, value);
+		if (v != null) mark(key);
+		return v;
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		boolean replaced = super.replace(key, oldValue, newValue);
+		if (replaced) mark(key);
+		return replaced;
+	}
+
+	@Override
+	public void clear() {
+		for (K key : keySet()) mark(key);
+		super.clear();
+	}
+
+	private void mark(K key) {
+		ConcurrentHashMap<K, K> c = changed;
+		if (c != null) c.put(key, key);
+	}
+
+
+
+	/**
+	 * The delta is a {@link Delta} of the changed keys' current values and the removed keys.
+	 */
+	@Override
+	public Serializable takeDelta() {
+		ConcurrentHashMap<K, K> c = changed;
+		if (c == null) {
+			changed = new ConcurrentHashMap<K, K>();
+			return null;
+		}
+		Delta<K, V> delta = new Delta<K, V>();
+		Iterator<K> i = c.keySet().iterator();
+		while (i.hasNext()) {
+			K key = c.remove(i.next());
+			if (key == null) continue;
+			V v = get(key);
+			if (v == null) {
+				delta.removed.add(key);
+			} else {
+				delta.values.put(key, v);
+			}
+		}
+		return (delta.values.isEmpty() && delta.removed.isEmpty()) ? null : delta;
+	}
+
+	/**
+	 * Apply a delta. Changed keys are removed and put again so the map ends up with the delta's key
+	 * objects.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void applyDelta(Serializable delta) {
+		Delta<K, V> d = (Delta<K, V>) delta;
+		for (K key : d.removed) remove(key);
+		for (Map.Entry<K, V> e : d.values.entrySet()) {
+			remove(e.getKey());
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+
+
+	/**
+	 * The changes to a map.
+	 */
+	private static class Delta<K, V> implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final HashMap<K, V> values = new HashMap<K, V>();
+		private final HashSet<K> removed = new HashSet<K>();
+	}
+}
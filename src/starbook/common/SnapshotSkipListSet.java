@@ -0,0 +1,95 @@
+package starbook.common;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A {@link ConcurrentSkipListSet} that tracks which elements have been added or removed, so it can
+ * be saved incrementally. Elements removed through an iterator are not tracked.
+ * 
+ * @author Josh Endries (josh@endries.org)
+ * 
+ */
+public class SnapshotSkipListSet<E> extends ConcurrentSkipListSet<E> implements Snapshottable {
+	private static final long serialVersionUID = -4471960316330846257L;
+
+	/**
+	 * The elements changed since the last delta was taken, or null if changes aren't tracked yet.
+	 */
+	private transient volatile ConcurrentHashMap<E, Boolean> changed = null;
+
+	public SnapshotSkipListSet() {
+		super();
+	}
+
+	public SnapshotSkipListSet(Collection<? extends E> c) {
+		super(c);
+	}
+
+
+
+	@Override
+	public boolean add(E e) {
+		boolean added = super.add(e);
+		if (added) mark(e);
+		return added;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object o) {
+		boolean removed = super.remove(o);
+		if (removed) mark((E) o);
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		for (E e : this) mark(e);
+		super.clear();
+	}
+
+	private void mark(E e) {
+		ConcurrentHashMap<E, Boolean> c = changed;
+		if (c != null) c.put(e, Boolean.TRUE);
+	}
+
+
+
+	/**
+	 * The delta maps each changed element to whether it is in the set.
+	 */
+	@Override
+	public Serializable takeDelta() {
+		ConcurrentHashMap<E, Boolean> c = changed;
+		if (c == null) {
+			changed = new ConcurrentHashMap<E, Boolean>();
+			return null;
+		}
+		HashMap<E, Boolean> delta = new HashMap<E, Boolean>();
+		Iterator<E> i = c.keySet().iterator();
+		while (i.hasNext()) {
+			E e = i.next();
+			i.remove();
+			delta.put(e, contains(e));
+		}
+		return delta.isEmpty() ? null : delta;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void applyDelta(Serializable delta) {
+		for (Map.Entry<E, Boolean> e : ((Map<E, Boolean>) delta).entrySet()) {
+			if (e.getValue()) {
+				add(e.getKey());
+			} else {
+				remove(e.getKey());
+			}
+		}
+	}
+}
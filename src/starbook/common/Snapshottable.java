@@ -0,0 +1,30 @@
+package starbook.common;
+
+import java.io.Serializable;
+
+/**
+ * An object that can tell a {@link PeriodicFileWriter} what has changed since it was last saved, so
+ * only the changes have to be written.
+ * 
+ * @author Josh Endries (josh@endries.org)
+ * 
+ */
+public interface Snapshottable extends Serializable {
+	/**
+	 * Retrieve the changes made since the last call and start collecting changes anew. Changes are
+	 * not tracked until this has been called once, so the first call returns null and the object
+	 * should be saved whole afterwards.
+	 * 
+	 * @return The changes, or null if nothing has changed.
+	 */
+	public abstract Serializable takeDelta();
+
+	/**
+	 * Apply changes taken from an object of the same type. Applying changes more than once, or
+	 * applying changes the object already has, must leave it as it would be after applying them
+	 * once.
+	 * 
+	 * @param delta The changes, as returned by {@link #takeDelta()}.
+	 */
+	public abstract void applyDelta(Serializable delta);
+}
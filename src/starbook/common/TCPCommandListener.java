@@ -1,20 +1,32 @@
 package starbook.common;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Listen on the network for TCP connections. A connection either carries a single command (the
+ * original behavior), which is handed to a command handler from the specified factory, or starts
+ * with the {@link FramedConnection} preamble, in which case it is kept open and registered with the
+ * {@link TCPConnectionPool} so any number of commands can flow over it, or starts with the
+ * {@link MessageStream} or {@link TreeSync} preamble, in which case it is answered with a stream of
+ * messages.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
 public class TCPCommandListener implements Runnable {
 	private static final Logger log = Logger.getLogger(TCPCommandListener.class);
 	private final ServerSocket serverSocket;
-	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ExecutorService executor = Threads.newExecutor();
 	private final CommandHandlerFactory factory;
 
 	public TCPCommandListener(InetSocketAddress address, CommandHandlerFactory factory) throws IOException {
@@ -22,6 +34,23 @@ public class TCPCommandListener implements Runnable {
 		serverSocket = new ServerSocket(address.getPort(), 100, address.getAddress());
 		serverSocket.setSoTimeout(5000);
 		this.factory = factory;
+		TCPConnectionPool.Instance.setHandlerFactory(factory, address.getPort());
+	}
+
+	/**
+	 * Create the TCP command listener configured by {@link CK#CommandTCPListener}: this blocking
+	 * listener by default, or an {@link NIOTCPCommandListener} if the parameter is "nio".
+	 * 
+	 * @param address The address to listen on.
+	 * @param factory The factory that creates handlers for received commands.
+	 * @return The listener, ready to be run on its own thread.
+	 * @throws IOException If the listening socket cannot be opened.
+	 */
+	public static Runnable create(InetSocketAddress address, CommandHandlerFactory factory) throws IOException {
+		if (Configuration.getStr(CK.CommandTCPListener, "blocking").equalsIgnoreCase("nio")) {
+			return new NIOTCPCommandListener(address, factory);
+		}
+		return new TCPCommandListener(address, factory);
 	}
 
 	@Override
@@ -37,10 +66,9 @@ public class TCPCommandListener implements Runnable {
 				Socket socket = serverSocket.accept();
 
 				/*
-				 * Get a handler for the connection and handle the command.
+				 * Determine what kind of connection this is and handle it.
 				 */
-				CommandHandler ch = factory.getHandler(socket);
-				executor.execute(ch);
+				executor.execute(new ConnectionHandler(socket));
 			} catch (SocketTimeoutException e) {
 				/*
 				 * This is normal, and allows is to check if we're supposed to shut down.
@@ -60,6 +88,7 @@ public class TCPCommandListener implements Runnable {
 	}
 
 	public void stopThreads() {
+		TCPConnectionPool.Instance.closeAll();
 		executor.shutdown();
 		while (!executor.isTerminated()) {
 			log.debug("Waiting for thread pool to shut down...");
@@ -70,4 +99,54 @@ public class TCPCommandListener implements Runnable {
 			}
 		}
 	}
+
+	/**
+	 * Reads the start of an accepted connection to determine if it is a framed connection. If so,
+	 * the connection is registered with the pool; otherwise the single command it carries is
+	 * decoded and handled here.
+	 */
+	private class ConnectionHandler implements Runnable {
+		private final Socket socket;
+
+		public ConnectionHandler(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			boolean pooled = false;
+			try {
+				PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(socket.getInputStream()), FramedConnection.Preamble.length);
+				byte[] b = new byte[FramedConnection.Preamble.length];
+				int length = 0;
+				while (length < b.length) {
+					int read = in.read(b, length, b.length - length);
+					if (read < 0) break;
+					length += read;
+				}
+
+				if (FramedConnection.isPreamble(b, length)) {
+					TCPConnectionPool.Instance.register(FramedConnection.accept(socket, in));
+					pooled = true;
+				} else if (MessageStream.isPreamble(b, length)) {
+					MessageStream.serve(socket, in);
+				} else if (TreeSync.isPreamble(b, length)) {
+					TreeSync.serve(socket, in);
+				} else {
+					in.unread(b, 0, length);
+					CommandScheduler.Instance.process(factory, CommandCodec.decode(in));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (!pooled) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,273 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Keeps a small number of long-lived {@link FramedConnection}s to each peer so commands sent with
+ * {@link Command#sendViaTCP(InetSocketAddress)} don't pay for a new connection every time.
+ * Connections accepted from other nodes are registered here as well, so replies travel back over
+ * the connection the request arrived on.
+ * </p>
+ * <p>
+ * A new connection to a peer is only opened when every existing connection to it is busy writing
+ * and the peer has fewer than {@link CK#CommandTCPConnectionsPerPeer} connections. Connections
+ * that haven't been used for {@link CK#CommandTCPIdleSeconds} are closed by a background evictor.
+ * Pooling is enabled with {@link CK#CommandTCPPooling}; every node in the network must be able to
+ * accept framed connections before it is turned on.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public enum TCPConnectionPool {
+	Instance;
+
+	private static final Logger log = Logger.getLogger(TCPConnectionPool.class);
+	public static final int DefaultConnectionsPerPeer = 2;
+	public static final int DefaultIdleSeconds = 60;
+	private final ConcurrentHashMap<InetSocketAddress, List<FramedConnection>> connections = new ConcurrentHashMap<InetSocketAddress, List<FramedConnection>>();
+	private final ConcurrentHashMap<InetSocketAddress, AtomicInteger> opening = new ConcurrentHashMap<InetSocketAddress, AtomicInteger>();
+	private final ExecutorService executor = Threads.newExecutor();
+	private volatile CommandHandlerFactory factory = null;
+	private volatile int localPort = 0;
+	private Thread evictorThread = null;
+
+
+
+	/**
+	 * Determine if outgoing TCP commands should use pooled connections.
+	 *
+	 * @return True if pooling is enabled.
+	 */
+	public static boolean isEnabled() {
+		return Configuration.getBool(CK.CommandTCPPooling, false);
+	}
+
+
+
+	/**
+	 * Set the factory used to process commands arriving over pooled connections, and the command
+	 * port announced to peers. This is done by the node's {@link TCPCommandListener}.
+	 *
+	 * @param factory The handler factory.
+	 * @param port The port on which this node accepts commands.
+	 */
+	public void setHandlerFactory(CommandHandlerFactory factory, int port) {
+		this.factory = factory;
+		this.localPort = port;
+		startEvictor();
+	}
+
+
+
+	/**
+	 * Send the given command to the given peer over a pooled connection. If the write fails, the
+	 * connection is discarded and the command is retried once over another connection, which is
+	 * opened if the peer is still under its limit.
+	 *
+	 * @param peer The peer's command address.
+	 * @param command The command to send.
+	 * @throws IOException If the command could not be sent.
+	 */
+	public void send(InetSocketAddress peer, Command command) throws IOException {
+		send(peer, command.encode());
+	}
+
+	/**
+	 * Send an already-encoded command to the given peer over a pooled connection.
+	 *
+	 * @param peer The peer's command address.
+	 * @param encoded The encoded command.
+	 * @throws IOException If the command could not be sent.
+	 * @see #send(InetSocketAddress, Command)
+	 */
+	public void send(InetSocketAddress peer, byte[] encoded) throws IOException {
+		if (encoded.length > FramedConnection.MaxFrameSize) throw new IOException("Command is too large to send.");
+		try {
+			getConnection(peer).write(encoded);
+		} catch (IOException e) {
+			log.debug(String.format("Retrying command to %s on another connection: %s", peer, e.getMessage()));
+			getConnection(peer).write(encoded);
+		}
+	}
+
+
+
+	/**
+	 * Retrieve the least busy connection to the given peer, opening a new one if all of them are
+	 * busy and the per-peer limit hasn't been reached. Connections being opened count towards the
+	 * limit; the connecting is done outside the lock so other senders to the peer aren't held up by
+	 * it. If the peer has no open connections and the limit is taken up by ones being opened, wait
+	 * for those.
+	 */
+	private FramedConnection getConnection(InetSocketAddress peer) throws IOException {
+		List<FramedConnection> list = getConnections(peer);
+		AtomicInteger pending = getOpening(peer);
+		int limit = Math.max(1, Configuration.getInt(CK.CommandTCPConnectionsPerPeer, DefaultConnectionsPerPeer));
+		synchronized (list) {
+			while (true) {
+				FramedConnection best = null;
+				int open = 0;
+				for (FramedConnection c : list) {
+					if (c.isClosed()) continue;
+					open++;
+					if (best == null || c.getPendingWrites() < best.getPendingWrites()) best = c;
+				}
+				boolean room = open + pending.get() < limit;
+				if (best != null && (best.getPendingWrites() == 0 || !room)) return best;
+				if (room) break;
+				try {
+					list.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for a connection to " + peer);
+				}
+			}
+			pending.incrementAndGet();
+		}
+		try {
+			FramedConnection c = FramedConnection.open(peer, localPort);
+			register(c);
+			return c;
+		} finally {
+			synchronized (list) {
+				pending.decrementAndGet();
+				list.notifyAll();
+			}
+		}
+	}
+
+	private List<FramedConnection> getConnections(InetSocketAddress peer) {
+		List<FramedConnection> list = connections.get(peer);
+		if (list == null) {
+			List<FramedConnection> newList = new CopyOnWriteArrayList<FramedConnection>();
+			list = connections.putIfAbsent(peer, newList);
+			if (list == null) list = newList;
+		}
+		return list;
+	}
+
+	private AtomicInteger getOpening(InetSocketAddress peer) {
+		AtomicInteger count = opening.get(peer);
+		if (count == null) {
+			AtomicInteger newCount = new AtomicInteger();
+			count = opening.putIfAbsent(peer, newCount);
+			if (count == null) count = newCount;
+		}
+		return count;
+	}
+
+
+
+	/**
+	 * Add a connection to the pool and start reading commands from it.
+	 *
+	 * @param c The connection, either opened by this node or accepted from a peer.
+	 */
+	public void register(FramedConnection c) {
+		log.debug(String.format("Registering %s", c));
+		getConnections(c.getPeer()).add(c);
+		Thread t = Threads.newThread(c, "TCP Connection " + c.getPeer());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Remove a closed connection from the pool.
+	 */
+	void remove(FramedConnection c) {
+		List<FramedConnection> list = connections.get(c.getPeer());
+		if (list != null) list.remove(c);
+	}
+
+
+
+	/**
+	 * Process a command that arrived over a pooled connection.
+	 *
+	 * @param command The decoded command.
+	 */
+	void dispatch(Command command) {
+		CommandHandlerFactory f = factory;
+		if (f == null) {
+			log.warn(String.format("No handler factory, dropping %s", command));
+			return;
+		}
+		if (CommandScheduler.isEnabled()) {
+			CommandScheduler.Instance.process(f, command);
+		} else {
+			executor.execute(f.getHandler(command));
+		}
+	}
+
+
+
+	/**
+	 * Close every pooled connection and stop the evictor.
+	 */
+	public void closeAll() {
+		synchronized (this) {
+			if (evictorThread != null) {
+				evictorThread.interrupt();
+				evictorThread = null;
+			}
+		}
+		for (Map.Entry<InetSocketAddress, List<FramedConnection>> e : connections.entrySet()) {
+			for (FramedConnection c : e.getValue()) c.close();
+		}
+		connections.clear();
+	}
+
+
+
+	private synchronized void startEvictor() {
+		if (evictorThread != null) return;
+		evictorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean running = true;
+				while (running) {
+					int idleSeconds = Configuration.getInt(CK.CommandTCPIdleSeconds, DefaultIdleSeconds);
+					try {
+						Thread.sleep(idleSeconds * 500L);
+					} catch (InterruptedException e) {
+						running = false;
+						continue;
+					}
+					evictIdle(System.currentTimeMillis() - idleSeconds * 1000L);
+				}
+			}
+		}, "TCP Connection Evictor");
+		evictorThread.setDaemon(true);
+		evictorThread.start();
+	}
+
+	/**
+	 * Close connections that haven't been used since the given time.
+	 */
+	private void evictIdle(long cutoff) {
+		Iterator<Map.Entry<InetSocketAddress, List<FramedConnection>>> i = connections.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<InetSocketAddress, List<FramedConnection>> e = i.next();
+			for (FramedConnection c : e.getValue()) {
+				if (c.getLatestActivity() < cutoff && c.getPendingWrites() == 0) {
+					log.debug(String.format("Closing idle %s", c));
+					c.close();
+					e.getValue().remove(c);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Reports edges to the monitor. Everything that wants to show an edge (the gossip protocols and
+ * the command handlers) goes through here rather than sending its own ToggleEdge command.
+ * </p>
+ * <p>
+ * Reporting can be turned off entirely with {@link CK#Telemetry}, and only a fraction of edges,
+ * given by {@link CK#TelemetrySampleRate}, need be reported. If {@link CK#TelemetryBatching} is
+ * enabled, edges are collected and sent as EdgeBatch commands once every
+ * {@link CK#TelemetryFlushMillis}; an edge reported several times in one interval is only sent
+ * once. Otherwise each edge is sent as a ToggleEdge command straight away, which is what monitors
+ * that predate batching expect.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public enum Telemetry {
+	Instance;
+
+	private static final Logger log = Logger.getLogger(Telemetry.class);
+	public static final int DefaultFlushMillis = 500;
+	public static final int MaxBatchEdges = 16;
+	private final Map<InetSocketAddress, Pending> pending = new LinkedHashMap<InetSocketAddress, Pending>();
+	private Thread flusherThread = null;
+
+
+
+	/**
+	 * Report an edge to the monitor, subject to sampling and batching.
+	 *
+	 * @param monitor The monitor's command address.
+	 * @param source This node's address.
+	 * @param edge The edge to show.
+	 */
+	public void toggleEdge(InetSocketAddress monitor, InetAddress source, Edge edge) {
+		if (!Configuration.getBool(CK.Telemetry, true)) return;
+		double rate = Double.parseDouble(Configuration.getStr(CK.TelemetrySampleRate, "1.0"));
+		if (rate < 1.0 && Configuration.rng.nextDouble() >= rate) return;
+
+		if (!Configuration.getBool(CK.TelemetryBatching, false)) {
+			Map<String, Object> data = new HashMap<String, Object>();
+			data.put("edge", edge);
+			data.put("source", source);
+			send(monitor, new Command(Command.Type.ToggleEdge, data));
+			return;
+		}
+
+		synchronized (pending) {
+			Pending p = pending.get(monitor);
+			if (p == null) {
+				p = new Pending(source);
+				pending.put(monitor, p);
+			}
+			p.edges.add(edge);
+		}
+		startFlusher();
+	}
+
+
+
+	/**
+	 * Send every pending edge now.
+	 */
+	public void flush() {
+		Map<InetSocketAddress, Pending> batches;
+		synchronized (pending) {
+			if (pending.isEmpty()) return;
+			batches = new LinkedHashMap<InetSocketAddress, Pending>(pending);
+			pending.clear();
+		}
+
+		for (Map.Entry<InetSocketAddress, Pending> e : batches.entrySet()) {
+			Pending p = e.getValue();
+			Iterator<Edge> i = p.edges.iterator();
+			while (i.hasNext()) {
+				/*
+				 * Keep each batch small enough to fit in a datagram; the monitor only listens
+				 * for UDP.
+				 */
+				ArrayList<Edge> edges = new ArrayList<Edge>();
+				while (i.hasNext() && edges.size() < MaxBatchEdges) edges.add(i.next());
+				Map<String, Object> data = new HashMap<String, Object>();
+				data.put("edges", edges);
+				data.put("source", p.source);
+				send(e.getKey(), new Command(Command.Type.EdgeBatch, data));
+			}
+		}
+	}
+
+	private void send(InetSocketAddress monitor, Command c) {
+		try {
+			c.sendViaUDP(monitor);
+		} catch (IOException e) {
+			log.debug(String.format("Unable to send %s to the monitor: %s", c, e.getMessage()));
+		}
+	}
+
+
+
+	private synchronized void startFlusher() {
+		if (flusherThread != null) return;
+		flusherThread = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				boolean running = true;
+				while (running) {
+					try {
+						Thread.sleep(Configuration.getInt(CK.TelemetryFlushMillis, DefaultFlushMillis));
+					} catch (InterruptedException e) {
+						running = false;
+					}
+					flush();
+				}
+			}
+		}, "Telemetry Flusher");
+		flusherThread.setDaemon(true);
+		flusherThread.start();
+	}
+
+
+
+	/**
+	 * The edges waiting to be sent to one monitor.
+	 */
+	private static class Pending {
+		private final InetAddress source;
+		private final Set<Edge> edges = new LinkedHashSet<Edge>();
+
+		public Pending(InetAddress source) {
+			this.source = source;
+		}
+	}
+}
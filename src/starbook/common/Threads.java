@@ -0,0 +1,123 @@
+package starbook.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Creates the threads and executors used for command handling and the nodes' periodic loops, so
+ * the kind of thread can be chosen in one place with the {@link CK#ThreadMode} parameter.
+ * </p>
+ * <p>
+ * In the default "platform" mode, handlers run on cached thread pools and loops on ordinary
+ * threads. In "virtual" mode each handler and loop runs on its own virtual thread, so handlers
+ * that block (sleeping, waiting on a socket) don't hold on to an OS thread. Virtual threads need
+ * Java 21 or later; they are looked up reflectively so the code still builds and runs on older
+ * runtimes, which fall back to platform threads with a warning.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public final class Threads {
+	private static final Logger log = Logger.getLogger(Threads.class);
+	public static enum Mode { Platform, Virtual; }
+	private static final Method newVirtualExecutor;
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+	private static volatile boolean warned = false;
+
+	static {
+		Method executor = null;
+		Method builder = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			builder = Thread.class.getMethod("ofVirtual");
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			name = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			/*
+			 * Virtual threads aren't available in this runtime.
+			 */
+			executor = null;
+		}
+		newVirtualExecutor = executor;
+		ofVirtual = builder;
+		builderName = name;
+		builderUnstarted = unstarted;
+	}
+
+	/**
+	 * This is a static class.
+	 */
+	private Threads() {}
+
+
+
+	/**
+	 * Retrieve the thread mode in effect: the configured mode, unless virtual threads were
+	 * requested but aren't supported by this runtime.
+	 *
+	 * @return The thread mode.
+	 */
+	public static Mode getMode() {
+		String s = Configuration.getStr(CK.ThreadMode, "platform");
+		if (!s.equalsIgnoreCase("virtual")) return Mode.Platform;
+		if (newVirtualExecutor == null) {
+			if (!warned) {
+				warned = true;
+				log.warn("Virtual threads are not supported by this runtime; using platform threads.");
+			}
+			return Mode.Platform;
+		}
+		return Mode.Virtual;
+	}
+
+
+
+	/**
+	 * Create an executor for running command handlers. Each task gets its own virtual thread in
+	 * virtual mode; otherwise a cached thread pool is used.
+	 *
+	 * @return The executor.
+	 */
+	public static ExecutorService newExecutor() {
+		if (getMode() == Mode.Virtual) {
+			try {
+				return (ExecutorService) newVirtualExecutor.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				log.warn("Unable to create a virtual thread executor.", e);
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+
+
+	/**
+	 * Create a new, unstarted thread for a long-running loop. The thread is virtual in virtual
+	 * mode. Note that virtual threads are always daemon threads.
+	 *
+	 * @param r The loop to run.
+	 * @param name The name of the thread.
+	 * @return The thread.
+	 */
+	public static Thread newThread(Runnable r, String name) {
+		if (getMode() == Mode.Virtual) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderUnstarted.invoke(builder, r);
+			} catch (ReflectiveOperationException e) {
+				log.warn("Unable to create a virtual thread.", e);
+			}
+		}
+		return new Thread(r, name);
+	}
+}
@@ -0,0 +1,369 @@
+package starbook.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import starbook.nodes.MessageStoreNode;
+
+/**
+ * <p>
+ * Brings two replicas of a topic into agreement by comparing their {@link KeyTree}s, so that a
+ * message missing from one of them is always found, however large the topic, at a cost that grows
+ * with the depth of the tree and the number of differences rather than the size of the topic.
+ * </p>
+ * <p>
+ * The syncing node connects to the other replica's command port, sends the {@link #Preamble} and
+ * the topic, and the other replica says whether it keeps the topic. Starting from the root, the
+ * syncing node then sends its hash of each node it is looking at, and the other replica answers
+ * with a flag for each saying whether its own hash differs. The children of the nodes that differ
+ * are looked at next, one level per round trip, until the differing buckets are found. The syncing
+ * node sends its keys in those buckets; the other replica answers with the messages in them that
+ * the syncing node lacks, as {@link MessageRecords records} followed by a zero length like a
+ * {@link MessageStream}, and then downloads the messages it lacks itself over a MessageStream.
+ * </p>
+ * <p>
+ * A bucket holding more than {@link MessageStream#MaxKeys} keys is sent as several parts, each
+ * covering a span of time within the bucket, so a busy hour doesn't stop a topic from converging.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public final class TreeSync {
+	private static final Logger log = Logger.getLogger(TreeSync.class);
+	public static final byte[] Preamble = { 'S', 'B', 'T', 2 };
+
+	/**
+	 * The most nodes compared in one round trip, and the most bucket parts exchanged in one sync.
+	 * Differences beyond these are found the next time the replicas sync.
+	 */
+	public static final int MaxNodes = 4096;
+
+	/**
+	 * This is a static class.
+	 */
+	private TreeSync() {}
+
+
+
+	/**
+	 * Determine if the given bytes are a tree sync preamble.
+	 *
+	 * @param b The bytes read from the start of a connection.
+	 * @param length The number of valid bytes.
+	 * @return True if this is the start of a tree sync.
+	 */
+	public static boolean isPreamble(byte[] b, int length) {
+		return length == Preamble.length && Arrays.equals(Arrays.copyOf(b, length), Preamble);
+	}
+
+
+
+	/**
+	 * Sync a topic with another replica of it.
+	 *
+	 * @param peer The command address of the other replica.
+	 * @param topic The topic.
+	 * @param store This node's message store.
+	 * @param receiver Stores the messages this node lacks as they arrive.
+	 * @return What was exchanged, or null if the other replica doesn't keep the topic.
+	 * @throws IOException If the connection fails or the other replica sends something invalid.
+	 */
+	public static Result sync(InetSocketAddress peer, String topic, MessageStore store, MessageStream.Receiver receiver) throws IOException {
+		KeyTree tree = store.getKeyTree();
+		long start = System.currentTimeMillis();
+		Socket socket = new Socket();
+		try {
+			socket.connect(peer, MessageStream.ConnectTimeout);
+			socket.setSoTimeout(MessageStream.ReadTimeout);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MessageStream.BufferSize));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MessageStream.BufferSize));
+			out.write(Preamble);
+			out.writeUTF(topic);
+			out.flush();
+			if (!in.readBoolean()) return null;
+
+			/*
+			 * Descend from the root to the differing buckets, a level per round trip.
+			 */
+			Result result = new Result();
+			List<Long> nodes = new ArrayList<Long>();
+			nodes.add(0L);
+			List<Long> buckets = new ArrayList<Long>();
+			for (int level = KeyTree.Root; level >= 0 && !nodes.isEmpty(); level--) {
+				out.writeInt(nodes.size());
+				out.writeByte(level);
+				for (long index : nodes) {
+					out.writeLong(index);
+					out.writeLong(tree.getHash(topic, level, index));
+				}
+				out.flush();
+				result.rounds++;
+				result.nodes += nodes.size();
+				result.bytes += 5 + nodes.size() * 17;
+
+				List<Long> differing = new ArrayList<Long>();
+				for (long index : nodes) {
+					if (in.readBoolean()) differing.add(index);
+				}
+				if (level == 0) {
+					buckets = differing;
+					break;
+				}
+				nodes = new ArrayList<Long>();
+				for (long index : differing) {
+					if (nodes.size() + KeyTree.Fanout > MaxNodes) break;
+					long first = KeyTree.getFirstChild(index);
+					for (int i = 0; i < KeyTree.Fanout; i++) nodes.add(first + i);
+				}
+			}
+			out.writeInt(0);
+
+			/*
+			 * Send our keys in each differing bucket, and take the messages we lack in them.
+			 */
+			List<Part> parts = new ArrayList<Part>();
+			for (long bucket : buckets) {
+				if (parts.size() >= MaxNodes) break;
+				split(bucket, getKeys(store, topic, bucket), parts);
+			}
+			if (parts.size() > MaxNodes) parts = parts.subList(0, MaxNodes);
+			out.writeInt(parts.size());
+			for (Part part : parts) {
+				out.writeLong(part.from);
+				out.writeLong(part.to);
+				out.writeInt(part.keys.size());
+				for (MessageKey key : part.keys) out.write(key.toBytes());
+				result.bytes += 20 + part.keys.size() * MessageKey.Size;
+			}
+			out.flush();
+			result.buckets = buckets.size();
+			result.received = MessageStream.receive(in, peer, receiver);
+			log.debug(String.format("Synced %s with %s in %sms: %s", topic, peer, System.currentTimeMillis() - start, result));
+			return result;
+		} finally {
+			socket.close();
+		}
+	}
+
+
+
+	/**
+	 * Answer a sync on an accepted connection whose preamble has already been read. Once the syncing
+	 * node has what it lacks, the messages this node lacks are downloaded from it.
+	 *
+	 * @param socket The accepted socket, which the caller closes.
+	 * @param in The socket's input stream, positioned just after the preamble.
+	 * @throws IOException If the request is invalid or the connection fails.
+	 */
+	public static void serve(Socket socket, InputStream in) throws IOException {
+		socket.setSoTimeout(MessageStream.ReadTimeout);
+		DataInputStream din = new DataInputStream(new BufferedInputStream(in, MessageStream.BufferSize));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MessageStream.BufferSize));
+		MessageStoreNode node = (MessageStoreNode) Configuration.getParameter("node");
+		final MessageStore store = node.getStoredMessageStore();
+		KeyTree tree = store.getKeyTree();
+		String topic = din.readUTF();
+		boolean accepted = node.getSubscribedTopics().contains(topic);
+		out.writeBoolean(accepted);
+		out.flush();
+		if (!accepted) return;
+
+		int n;
+		while ((n = din.readInt()) != 0) {
+			if (n < 0 || n > MaxNodes) throw new IOException(String.format("Invalid node count %s.", n));
+			int level = din.readByte();
+			if (level < 0 || level > KeyTree.Root) throw new IOException(String.format("Invalid tree level %s.", level));
+			for (int i = 0; i < n; i++) {
+				long index = din.readLong();
+				out.writeBoolean(din.readLong() != tree.getHash(topic, level, index));
+			}
+			out.flush();
+		}
+
+		int parts = din.readInt();
+		if (parts < 0 || parts > MaxNodes) throw new IOException(String.format("Invalid part count %s.", parts));
+		List<MessageKey> missing = new ArrayList<MessageKey>();
+		int sent = 0;
+		byte[] b = new byte[MessageKey.Size];
+		for (int i = 0; i < parts; i++) {
+			long from = din.readLong();
+			long to = din.readLong();
+			if (to <= from || to - from > KeyTree.BucketMillis) throw new IOException(String.format("Invalid part from %s to %s.", from, to));
+			int count = din.readInt();
+			if (count < 0 || count > MessageStream.MaxKeys) throw new IOException(String.format("Invalid key count %s.", count));
+			Set<MessageKey> theirs = new HashSet<MessageKey>();
+			for (int j = 0; j < count; j++) {
+				din.readFully(b);
+				theirs.add(MessageKey.fromBytes(b, 0));
+			}
+			for (Message m : getMessages(store, topic, from, to)) {
+				if (theirs.remove(m.getKey())) continue;
+				out.write(MessageRecords.encode(m));
+				sent++;
+			}
+			for (MessageKey key : theirs) {
+				if (missing.size() < MessageStream.MaxKeys) missing.add(key);
+			}
+		}
+		out.writeInt(0);
+		out.flush();
+		log.debug(String.format("Sent %s messages of %s to %s, which has %s we lack.", sent, topic, socket.getRemoteSocketAddress(), missing.size()));
+
+		if (missing.isEmpty()) return;
+		InetSocketAddress peer = new InetSocketAddress(socket.getInetAddress(), Configuration.getInt(CK.CommandPort));
+		MessageStream.download(peer, missing, socket.getLocalAddress(), new MessageStream.Receiver() {
+			@Override
+			public void receive(List<Message> messages) throws IOException {
+				for (Message m : messages) store.addMessage(m);
+			}
+		});
+	}
+
+
+
+	/**
+	 * Retrieve the messages of a topic whose keys' times are in the given span.
+	 */
+	private static List<Message> getMessages(MessageStore store, String topic, long from, long to) {
+		List<Message> messages = new ArrayList<Message>();
+		for (Message m : store.range(topic, new DateTime(from), new DateTime(to))) {
+			long time = m.getKey().getTime();
+			if (time >= from && time < to) messages.add(m);
+		}
+		return messages;
+	}
+
+	/**
+	 * Retrieve the keys in a bucket, in order of time.
+	 */
+	private static List<MessageKey> getKeys(MessageStore store, String topic, long bucket) {
+		long from = KeyTree.getBucketStart(bucket);
+		List<MessageKey> keys = new ArrayList<MessageKey>();
+		for (Message m : getMessages(store, topic, from, from + KeyTree.BucketMillis)) {
+			if (KeyTree.getBucket(m.getKey().getTime()) == bucket) keys.add(m.getKey());
+		}
+		Collections.sort(keys, new Comparator<MessageKey>() {
+			@Override
+			public int compare(MessageKey a, MessageKey b) {
+				return (a.getTime() < b.getTime()) ? -1 : ((a.getTime() == b.getTime()) ? 0 : 1);
+			}
+		});
+		return keys;
+	}
+
+	/**
+	 * Split a bucket's keys into parts of at most {@link MessageStream#MaxKeys}, each covering a
+	 * span of the bucket. A part ends where a millisecond begins, so the keys of one millisecond are
+	 * in one part; if a single millisecond has more keys than fit, only as many as fit are sent, and
+	 * the other replica sends back the rest, which is harmless.
+	 */
+	private static void split(long bucket, List<MessageKey> keys, List<Part> parts) {
+		long from = KeyTree.getBucketStart(bucket);
+		long end = from + KeyTree.BucketMillis;
+		int n = keys.size();
+		int i = 0;
+		do {
+			int last = Math.min(i + MessageStream.MaxKeys, n);
+			int next = last;
+			long to = end;
+			if (last < n) {
+				long time = keys.get(last).getTime();
+				int j = last;
+				while (j > i && keys.get(j - 1).getTime() == time) j--;
+				if (j > i) {
+					last = j;
+					next = j;
+					to = time;
+				} else {
+					to = time + 1;
+					while (next < n && keys.get(next).getTime() == time) next++;
+				}
+			}
+			parts.add(new Part(from, to, keys.subList(i, last)));
+			from = to;
+			i = next;
+		} while (i < n || from < end);
+	}
+
+
+
+	/**
+	 * The keys of a span of one bucket.
+	 */
+	private static class Part {
+		private final long from;
+		private final long to;
+		private final List<MessageKey> keys;
+
+		public Part(long from, long to, List<MessageKey> keys) {
+			this.from = from;
+			this.to = to;
+			this.keys = keys;
+		}
+	}
+
+
+
+	/**
+	 * What one sync exchanged.
+	 */
+	public static class Result {
+		private int rounds = 0;
+		private int nodes = 0;
+		private int buckets = 0;
+		private int received = 0;
+		private long bytes = 0;
+
+		/**
+		 * Retrieve the number of round trips taken to find the differing buckets.
+		 */
+		public int getRounds() {
+			return rounds;
+		}
+
+		public int getNodes() {
+			return nodes;
+		}
+
+		public int getBuckets() {
+			return buckets;
+		}
+
+		/**
+		 * Retrieve the number of messages this node lacked and received.
+		 */
+		public int getReceived() {
+			return received;
+		}
+
+		/**
+		 * Retrieve the number of bytes sent to find the differences, not counting messages.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s[rounds=%s, nodes=%s, buckets=%s, received=%s, bytes=%s]", getClass().getSimpleName(), rounds, nodes, buckets, received, bytes);
+		}
+	}
+}
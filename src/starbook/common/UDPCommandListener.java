@@ -6,7 +6,6 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
@@ -22,14 +21,42 @@ import org.apache.log4j.Logger;
 public class UDPCommandListener implements Runnable {
 	private static final Logger log = Logger.getLogger(UDPCommandListener.class);
 	private final DatagramSocket serverSocket;
-	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ExecutorService executor = Threads.newExecutor();
 	private final CommandHandlerFactory factory;
+	private final int bufferSize;
 
 	public UDPCommandListener(InetSocketAddress address, CommandHandlerFactory factory) throws IOException {
 		super();
 		serverSocket = new DatagramSocket(address);
 		serverSocket.setSoTimeout(5000);
 		this.factory = factory;
+		this.bufferSize = getBufferSize();
+	}
+
+	/**
+	 * Retrieve the size of the buffer to receive datagrams into: one byte more than the largest
+	 * command sent over UDP, so a full buffer means the datagram was truncated.
+	 *
+	 * @return The size in bytes.
+	 */
+	public static int getBufferSize() {
+		return Math.max(2048, Command.getMaxUDPSize() + 1);
+	}
+
+	/**
+	 * Create the UDP command listener configured by {@link CK#CommandUDPListener}: this listener
+	 * by default, or a {@link ChannelUDPCommandListener} if the parameter is "channel".
+	 * 
+	 * @param address The address to listen on.
+	 * @param factory The factory that creates handlers for received commands.
+	 * @return The listener, ready to be run on its own thread.
+	 * @throws IOException If the listening socket cannot be opened.
+	 */
+	public static Runnable create(InetSocketAddress address, CommandHandlerFactory factory) throws IOException {
+		if (Configuration.getStr(CK.CommandUDPListener, "socket").equalsIgnoreCase("channel")) {
+			return new ChannelUDPCommandListener(address, factory);
+		}
+		return new UDPCommandListener(address, factory);
 	}
 
 	@Override
@@ -42,15 +69,30 @@ public class UDPCommandListener implements Runnable {
 				/*
 				 * Wait for a connection.
 				 */
-				byte[] buffer = new byte[2048];
+				byte[] buffer = new byte[bufferSize];
 				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 				serverSocket.receive(packet);
 
 				/*
-				 * Get a handler for the connection and handle the command.
+				 * Senders keep UDP commands under the configured size, so a full buffer means the
+				 * datagram was truncated and can't be decoded.
+				 */
+				if (packet.getLength() == buffer.length) {
+					log.warn(String.format("Dropping truncated datagram from %s", packet.getSocketAddress()));
+					continue;
+				}
+
+				/*
+				 * Get a handler for the connection and handle the command. Packed datagrams hold
+				 * several commands, each of which gets its own handler. With lanes enabled the
+				 * commands have to be decoded before they can be scheduled.
 				 */
-				CommandHandler ch = factory.getHandler(packet);
-				executor.execute(ch);
+				if (CommandScheduler.isEnabled() || (packet.getLength() > 0 && (buffer[0] & 0xFF) == CommandCodec.PackMagic)) {
+					executor.execute(new DatagramHandler(packet));
+				} else {
+					CommandHandler ch = factory.getHandler(packet);
+					executor.execute(ch);
+				}
 			} catch (SocketTimeoutException e) {
 				/*
 				 * This is normal, and allows is to check if we're supposed to shut down.
@@ -80,4 +122,29 @@ public class UDPCommandListener implements Runnable {
 			}
 		}
 	}
+
+
+
+	/**
+	 * Decodes a datagram and processes each of its commands in turn, through the
+	 * {@link CommandScheduler}.
+	 */
+	private class DatagramHandler implements Runnable {
+		private final DatagramPacket packet;
+
+		public DatagramHandler(DatagramPacket packet) {
+			this.packet = packet;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (Command c : CommandCodec.decodeAll(packet.getData(), packet.getOffset(), packet.getLength())) {
+					CommandScheduler.Instance.process(factory, c);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 }
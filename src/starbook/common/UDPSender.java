@@ -0,0 +1,253 @@
+package starbook.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Sends every outgoing UDP command for the node from one datagram channel, instead of opening a new
+ * socket per command. Used by {@link Command#sendViaUDP(SocketAddress)}.
+ * </p>
+ * <p>
+ * If packing is enabled with {@link CK#CommandUDPPacking}, commands are queued and sent by a
+ * background thread. Binary-encoded commands queued for the same destination within
+ * {@link CK#CommandUDPFlushMillis} of each other are packed into a single datagram (see
+ * {@link CommandCodec#decodeAll(byte[], int, int)}) of at most {@link CK#CommandUDPPackSize}
+ * bytes. Every node in the network must understand packed datagrams before it is turned on.
+ * Without packing, commands are sent immediately from the caller's thread.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public enum UDPSender {
+	Instance;
+
+	private static final Logger log = Logger.getLogger(UDPSender.class);
+	public static final int DefaultFlushMillis = 5;
+	public static final int DefaultPackSize = 1400;
+	public static final int QueueSize = 10000;
+	private final BlockingQueue<Outgoing> queue = new LinkedBlockingQueue<Outgoing>(QueueSize);
+	private DatagramChannel channel = null;
+	private Thread senderThread = null;
+	private long sent = 0;
+	private long datagrams = 0;
+
+
+
+	/**
+	 * Determine if outgoing UDP commands should be queued and packed.
+	 *
+	 * @return True if packing is enabled.
+	 */
+	public static boolean isPackingEnabled() {
+		return Configuration.getBool(CK.CommandUDPPacking, false);
+	}
+
+
+
+	/**
+	 * Send the given command to the given address. With packing enabled this only queues the
+	 * command, and errors are logged by the sending thread.
+	 *
+	 * @param address The destination address and port.
+	 * @param command The command to send.
+	 * @throws IOException If the command cannot be encoded or sent.
+	 */
+	public void send(SocketAddress address, Command command) throws IOException {
+		send(address, command.encode());
+	}
+
+	/**
+	 * Send an already-encoded command to the given address.
+	 *
+	 * @param address The destination address and port.
+	 * @param encoded The encoded command.
+	 * @throws IOException If the command cannot be sent.
+	 * @see #send(SocketAddress, Command)
+	 */
+	public void send(SocketAddress address, byte[] encoded) throws IOException {
+		if (isPackingEnabled() && CommandCodec.isBinary(encoded)) {
+			startSender();
+			if (queue.offer(new Outgoing(address, encoded))) return;
+			/*
+			 * The sender can't keep up; fall through and send this one ourselves.
+			 */
+		}
+		send(address, ByteBuffer.wrap(encoded), 1);
+	}
+
+
+
+	private void send(SocketAddress address, ByteBuffer datagram, int commands) throws IOException {
+		DatagramChannel c = getChannel();
+		c.send(datagram, address);
+		synchronized (this) {
+			sent += commands;
+			datagrams++;
+		}
+	}
+
+	private synchronized DatagramChannel getChannel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = DatagramChannel.open();
+		}
+		return channel;
+	}
+
+
+
+	/**
+	 * Retrieve the number of commands sent so far.
+	 */
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	/**
+	 * Retrieve the number of datagrams the sent commands were packed into.
+	 */
+	public synchronized long getDatagrams() {
+		return datagrams;
+	}
+
+
+
+	private synchronized void startSender() {
+		if (senderThread != null) return;
+		senderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Map<SocketAddress, Pack> packs = new LinkedHashMap<SocketAddress, Pack>();
+				while (true) {
+					/*
+					 * Wait for a command, then collect whatever else arrives in the flush window.
+					 */
+					Outgoing o;
+					try {
+						o = queue.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+					int packSize = Configuration.getInt(CK.CommandUDPPackSize, DefaultPackSize);
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configuration.getInt(CK.CommandUDPFlushMillis, DefaultFlushMillis));
+					while (o != null) {
+						Pack p = packs.get(o.address);
+						if (p == null) {
+							p = new Pack(o.address, packSize);
+							packs.put(o.address, p);
+						} else if (!p.fits(o.encoded)) {
+							flush(p);
+						}
+						p.add(o.encoded);
+
+						/*
+						 * Stop collecting once the window has passed, even if more is queued, so a pack
+						 * that never fills is still sent within the window under steady load.
+						 */
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) break;
+						try {
+							o = queue.poll(remaining, TimeUnit.NANOSECONDS);
+						} catch (InterruptedException e) {
+							o = null;
+							Thread.currentThread().interrupt();
+						}
+					}
+					for (Pack p : packs.values()) flush(p);
+					packs.clear();
+				}
+			}
+		}, "UDP Sender");
+		senderThread.setDaemon(true);
+		senderThread.start();
+	}
+
+	private void flush(Pack p) {
+		if (p.commands == 0) return;
+		try {
+			send(p.address, p.getDatagram(), p.commands);
+		} catch (IOException e) {
+			log.warn(String.format("Failed to send %s command(s) to %s: %s", p.commands, p.address, e.getMessage()));
+		}
+		p.reset();
+	}
+
+
+
+	/**
+	 * An encoded command waiting to be sent.
+	 */
+	private static class Outgoing {
+		private final SocketAddress address;
+		private final byte[] encoded;
+
+		public Outgoing(SocketAddress address, byte[] encoded) {
+			this.address = address;
+			this.encoded = encoded;
+		}
+	}
+
+
+
+	/**
+	 * The commands collected for one destination. The first byte of the buffer is reserved for the
+	 * pack byte, which is only sent if more than one command ends up in the datagram.
+	 */
+	private static class Pack {
+		private final SocketAddress address;
+		private final ByteBuffer buffer;
+		private byte[] single = null;
+		private int commands = 0;
+
+		public Pack(SocketAddress address, int size) {
+			this.address = address;
+			this.buffer = ByteBuffer.allocate(size);
+			reset();
+		}
+
+		/**
+		 * Determine if the given command can be added without going over the pack size. A pack
+		 * always accepts its first command, whatever its size.
+		 */
+		public boolean fits(byte[] encoded) {
+			return commands == 0 || (single == null && encoded.length <= buffer.remaining());
+		}
+
+		public void add(byte[] encoded) {
+			if (commands == 0 && encoded.length > buffer.remaining()) {
+				/*
+				 * Too big to pack; it's sent on its own.
+				 */
+				single = encoded;
+			} else {
+				buffer.put(encoded);
+			}
+			commands++;
+		}
+
+		public ByteBuffer getDatagram() {
+			if (single != null) return ByteBuffer.wrap(single);
+			ByteBuffer b = buffer.duplicate();
+			b.flip();
+			if (commands == 1) b.position(1);
+			return b;
+		}
+
+		public void reset() {
+			buffer.clear();
+			buffer.put((byte) CommandCodec.PackMagic);
+			single = null;
+			commands = 0;
+		}
+	}
+}
@@ -1,11 +1,9 @@
 package starbook.common.protocols;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -21,11 +19,11 @@ import org.princehouse.mica.util.Distribution;
 
 import starbook.common.BaseNode.Type;
 import starbook.common.CK;
-import starbook.common.Command;
 import starbook.common.Configuration;
 import starbook.common.DiscoverableNode;
 import starbook.common.Edge;
 import starbook.common.NodeInfo;
+import starbook.common.Telemetry;
 
 public abstract class BaseDiscoveryProtocol extends org.princehouse.mica.base.BaseProtocol implements DiscoveryProtocol {
 	private static final Logger log = Logger.getLogger(BaseDiscoveryProtocol.class);
@@ -225,15 +223,7 @@ public abstract class BaseDiscoveryProtocol extends org.princehouse.mica.base.Ba
 		 */
 		String name = getPrefix()+getOrigin()+other.getInetAddressAddress();
 		Edge e = new Edge(name, getOrigin(), other.getInetAddressAddress());
-		Map<String, Object> data = new HashMap<String, Object>();
-		data.put("edge", e);
-		data.put("source", getOrigin());
-		Command c = new Command(Command.Type.ToggleEdge, data); 
-		try {
-			c.sendViaUDP(monitorAddress);
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		Telemetry.Instance.toggleEdge(monitorAddress, getOrigin(), e);
 	}
 	
 	@Override
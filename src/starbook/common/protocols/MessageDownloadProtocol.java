@@ -1,15 +1,24 @@
 package starbook.common.protocols;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 import org.princehouse.mica.base.annotations.GossipUpdate;
 import org.princehouse.mica.base.annotations.Select;
 import org.princehouse.mica.base.model.Protocol;
@@ -17,11 +26,20 @@ import org.princehouse.mica.base.net.model.Address;
 import org.princehouse.mica.base.net.tcpip.TCPAddress;
 import org.princehouse.mica.util.Distribution;
 
+import starbook.common.BaseNode;
 import starbook.common.CK;
+import starbook.common.CachedMessageStore;
 import starbook.common.Command;
 import starbook.common.Command.Type;
 import starbook.common.Configuration;
+import starbook.common.DiscoverableNode;
+import starbook.common.KeySketch;
+import starbook.common.Message;
+import starbook.common.MessageKey;
 import starbook.common.MessageStore;
+import starbook.common.MessageStream;
+import starbook.common.NodeInfo;
+import starbook.common.Threads;
 import starbook.nodes.MessageStoreNode;
 
 /**
@@ -44,6 +62,25 @@ import starbook.nodes.MessageStoreNode;
  * command to the host node with which gossip was performed. Presumably, a MessageUpload command
  * will follow, adding that message to the visiting node's message store.
  * </p>
+ * <p>
+ * Random samples cost the same however much two nodes have in common, and can miss what little
+ * differs. With {@link CK#MessageDownloadReconcile} on (the default), the visiting node instead
+ * carries a {@link KeySketch} of each topic it subscribes to, sized from the differences recently
+ * found for the topic, and the host lists exactly which keys each side is missing, so the exchange
+ * costs about as much as the difference. Nodes that publish less than they store, like web nodes,
+ * still send a sample of their published messages alongside.
+ * </p>
+ * <p>
+ * Both sides build their sketches every round, so only the messages of the last
+ * {@link CK#MessageDownloadReconcileSeconds} are sketched, keeping the cost of a round independent
+ * of how much history a node stores. Older differences are left to workers' anti-entropy, which
+ * syncs whole topics with {@link starbook.common.TreeSync}.
+ * </p>
+ * <p>
+ * When at least {@link CK#MessageDownloadBatchMinimum} messages are missing, such as when a new
+ * replica is catching up, they are downloaded together over one {@link MessageStream} rather than
+ * with a MessageRequest and MessageUpload each.
+ * </p>
  * 
  * @author Josh Endries (josh@endries.org)
  * 
@@ -54,30 +91,94 @@ public class MessageDownloadProtocol extends BaseDiscoveryProtocol {
 	private static final int PortNumber = Configuration.getInt(CK.MessageDownloadPort);
 
 	/**
-	 * The number of random message GUIDs to compare in each execution of the protocol.
+	 * The number of random message keys to compare in each execution of the protocol.
 	 */
 //	private static final int RandomMessageCount = 50;
 	private static final int RandomMessageListSize = 500000;
 
 	/**
-	 * A transient holding area for the message GUIDs that this instance's parent node contains. This
+	 * The most keys to confirm in one MessageStored command. Confirmations too large for a datagram
+	 * are sent over TCP by {@link Command#send(InetSocketAddress)}.
+	 */
+	private static final int MaxConfirmations = 256;
+
+	/**
+	 * A transient holding area for the message keys that this instance's parent node contains. This
 	 * is emptied and populated before being sent to a remote node for message comparison, and used
 	 * in the comparison to determine if this instance already contains the message being compared.
-	 * This is a Collection because the GUIDs are stored as a map, returned as a Set, or randomly
-	 * sampled as a List.
+	 * Each key is a fixed {@link MessageKey#Size} bytes, and carries its topic's ID so the other
+	 * side can check its subscriptions without parsing anything. See {@link #writeObject}.
 	 */
-	private final HashSet<String> messageGUIDs = new HashSet<String>();
+	private transient HashSet<MessageKey> messageKeys = new HashSet<MessageKey>();
 
 
 
 	/**
-	 * A transient holding area for message GUIDs that were determined, during message comparison at
+	 * A transient holding area for message keys that were determined, during message comparison at
 	 * a remote node in the update method, should be downloaded to this node. This is emptied just
-	 * before this instance is sent to a remote node to perform message comparison. Any message GUIDs
+	 * before this instance is sent to a remote node to perform message comparison. Any message keys
 	 * in this set after comparison will cause a MessageRequest command to be sent to the node at
 	 * which the comparison occurred, in order to download the message.
 	 */
-	private final HashSet<String> messageCandidates = new HashSet<String>();
+	private transient HashSet<MessageKey> messageCandidates = new HashSet<MessageKey>();
+
+	/**
+	 * Whether the visiting instance reconciles topic sketches (see {@link #reconcile}) rather than
+	 * sampling the whole store, and whether the instance's node publishes everything it stores, in
+	 * which case the other side may request any key only this node has.
+	 */
+	private boolean reconciling = false;
+	private boolean offersStored = false;
+
+	/**
+	 * A sketch of the stored messages of each topic the visiting node subscribes to. These travel to
+	 * the host node and are emptied there.
+	 */
+	private transient List<TopicSketch> sketches = new ArrayList<TopicSketch>();
+
+	/**
+	 * The size of the difference the host found for each sketched topic, or -1 less a lower bound on
+	 * it if the sketch was too small to list it. These travel back to the visiting node.
+	 */
+	private transient HashMap<Integer, Integer> differences = new HashMap<Integer, Integer>();
+
+	/**
+	 * The IDs of the topics the visiting node subscribes to, so the host only sends back keys in
+	 * those topics. Null if this instance hasn't visited anywhere.
+	 */
+	private transient HashSet<Integer> topicIDs = null;
+
+	/**
+	 * The differences recently found for each topic ID, from which sketches are sized. Only one node
+	 * runs in a VM, so this is shared by every instance.
+	 */
+	private static final ConcurrentHashMap<Integer, Integer> differenceEstimates = new ConcurrentHashMap<Integer, Integer>();
+	private static final int DefaultDifferenceEstimate = 8;
+
+	/**
+	 * A topic whose estimated difference needs more than {@link KeySketch#MaxCells} cells is sent as
+	 * just a count and checksum, and the host offers its newest keys of the topic instead, at most
+	 * this many. Estimates stop growing at {@link #MaxDifferenceEstimate}, so they come back down
+	 * within a few rounds once the replicas have caught up.
+	 */
+	private static final int FallbackKeys = 512;
+	private static final int MaxDifferenceEstimate = KeySketch.MaxCells * 2;
+
+	/**
+	 * How far back sketches reach by default, and how much further back than that a visitor's
+	 * sketch may reach, to allow for clock differences, before the host declines to build one.
+	 */
+	private static final int DefaultReconcileSeconds = 24 * 60 * 60;
+	private static final long ClockAllowanceMillis = 60 * 60 * 1000L;
+
+	/**
+	 * Downloads at least {@link CK#MessageDownloadBatchMinimum} messages at once over a
+	 * {@link MessageStream}, off the gossip thread. The keys being downloaded are remembered so the
+	 * next round of gossip doesn't request them again while the stream is still running.
+	 */
+	private static final ExecutorService batchExecutor = Threads.newExecutor();
+	private static final Set<MessageKey> batchKeys = Collections.newSetFromMap(new ConcurrentHashMap<MessageKey, Boolean>());
+	private static final int DefaultBatchMinimum = 16;
 
 
 
@@ -95,50 +196,81 @@ public class MessageDownloadProtocol extends BaseDiscoveryProtocol {
 
 
 	/**
-	 * Inspect the result set of random message GUIDs discovered at the remote node. If there exist
+	 * Inspect the result set of random message keys discovered at the remote node. If there exist
 	 * any that this node should download, send MessageRequest commands to the remote node so the
 	 * messages get downloaded. Hopefully.
 	 */
 	private void inspectCandidates(Address source) {
 		MessageStoreNode node = (MessageStoreNode) Configuration.getParameter("node");
-		Collection<String> subscriptions = node.getSubscribedTopics();
+		Set<Integer> subscriptions = new HashSet<Integer>();
+		for (String topic : node.getSubscribedTopics()) subscriptions.add(MessageKey.getTopicID(topic));
 		MessageStore ms = node.getStoredMessageStore();
 
 		log.debug(String.format("Found %s potential messages to download from %s.", messageCandidates.size(), source));
 		boolean changed = false;
-		for (String guid : messageCandidates) {
-			String[] parts = guid.split(Pattern.quote("|"));
-			String topic = parts[1].toLowerCase();
-
-			if (subscriptions.contains(topic)) {
+		/*
+		 * Workers confirm what they hold to the web nodes publishing it; other workers don't care.
+		 */
+		boolean confirming = (node instanceof BaseNode) && ((BaseNode) node).getType() == BaseNode.Type.Worker && node instanceof DiscoverableNode
+				&& ((DiscoverableNode) node).getNeighborType(source.getInetAddressAddress()) == BaseNode.Type.Web;
+		ArrayList<MessageKey> held = new ArrayList<MessageKey>();
+		ArrayList<MessageKey> missing = new ArrayList<MessageKey>();
+		for (MessageKey key : messageCandidates) {
+			if (ms instanceof CachedMessageStore && !((CachedMessageStore) ms).accepts(key)) continue;
+			if (subscriptions.contains(key.getTopicID())) {
 				/*
 				 * This message is regarding a topic that we are subscribed to. Determine if we already
 				 * have a copy of it.
 				 */
-				if (ms.getMessageByGUID(guid) == null) {
+				if (ms.getMessageByKey(key) == null) {
 					/*
 					 * We don't have this message. Download it from the remote node.
 					 */
-					Map<String, Object> m = new HashMap<String, Object>(1);
-					m.put("guid", guid);
-					m.put("source", getOrigin());
-					Command c = new Command(Type.MessageRequest, m);
-					try {
-						log.debug(String.format("Downloading message %s", guid));
-						c.sendViaUDP(new InetSocketAddress(source.getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					
-					changed = true;
+					if (!batchKeys.contains(key)) missing.add(key);
 				} else {
-					log.debug(String.format("Message %s already exists.", guid));
+					log.debug(String.format("Message %s already exists.", key));
+					if (confirming && held.size() < MaxConfirmations) held.add(key);
 				}
 			} else {
-				log.debug(String.format("Not subscribed to %s, skipping message %s.", topic, guid));
+				log.debug(String.format("Not subscribed to the topic of message %s, skipping it.", key));
 			}
 		}
 		
+		int batchMinimum = Configuration.getInt(CK.MessageDownloadBatchMinimum, DefaultBatchMinimum);
+		if (batchMinimum > 0 && missing.size() >= batchMinimum) {
+			downloadBatch(source, missing, confirming);
+			changed = true;
+		} else {
+			for (MessageKey key : missing) {
+				Map<String, Object> m = new HashMap<String, Object>(1);
+				m.put("key", key);
+				m.put("source", getOrigin());
+				Command c = new Command(Type.MessageRequest, m);
+				try {
+					log.debug(String.format("Downloading message %s", key));
+					c.sendViaUDP(new InetSocketAddress(source.getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				changed = true;
+			}
+		}
+
+		/*
+		 * The remote node is still publishing messages we have stored, so our confirmation may have
+		 * been lost. Confirm them again so it can stop.
+		 */
+		if (!held.isEmpty()) {
+			Map<String, Object> m = new HashMap<String, Object>(2);
+			m.put("keys", held);
+			m.put("source", getOrigin());
+			try {
+				new Command(Type.MessageStored, m).send(new InetSocketAddress(source.getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		/*
 		 * Since there was at least one new message, either there is a node out there with messages
 		 * we might be interested in, or a user is posting messages. Either way, bump up the gossip
@@ -149,9 +281,58 @@ public class MessageDownloadProtocol extends BaseDiscoveryProtocol {
 
 	
 	
+	/**
+	 * Download many messages from the remote node over one {@link MessageStream} in the background,
+	 * storing them a chunk at a time and, on worker nodes, confirming each chunk.
+	 */
+	private void downloadBatch(final Address source, List<MessageKey> keys, final boolean confirming) {
+		final List<MessageKey> batch = new ArrayList<MessageKey>(keys.subList(0, Math.min(keys.size(), MessageStream.MaxKeys)));
+		batchKeys.addAll(batch);
+		final InetAddress origin = getOrigin();
+		log.debug(String.format("Downloading %s messages from %s in one stream.", batch.size(), source));
+		batchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final MessageStoreNode node = (MessageStoreNode) Configuration.getParameter("node");
+				final InetSocketAddress commands = new InetSocketAddress(source.getInetAddressAddress(), Configuration.getInt(CK.CommandPort));
+				try {
+					MessageStream.download(commands, batch, origin, new MessageStream.Receiver() {
+						@Override
+						public void receive(List<Message> messages) throws IOException {
+							ArrayList<MessageKey> stored = new ArrayList<MessageKey>(messages.size());
+							for (Message m : messages) {
+								try {
+									node.getStoredMessageStore().addMessage(m);
+								} catch (IllegalStateException e) {
+									log.error(String.format("Unable to store downloaded message %s.", m.getKey()), e);
+									continue;
+								}
+								stored.add(m.getKey());
+							}
+							if (!confirming) return;
+							for (int i = 0; i < stored.size(); i += MaxConfirmations) {
+								Map<String, Object> data = new HashMap<String, Object>(2);
+								data.put("keys", new ArrayList<MessageKey>(stored.subList(i, Math.min(stored.size(), i + MaxConfirmations))));
+								data.put("source", origin);
+								new Command(Type.MessageStored, data).send(commands);
+							}
+						}
+					});
+				} catch (IOException e) {
+					log.debug(String.format("Unable to download messages from %s: %s", source, e.getMessage()));
+				} finally {
+					batchKeys.removeAll(batch);
+				}
+			}
+		});
+	}
+
+
+
 	@Override
 	public void postGossip(final Address other) {
 		super.postGossip(other);
+		for (Map.Entry<Integer, Integer> e : differences.entrySet()) updateEstimate(e.getKey(), e.getValue());
 		inspectCandidates(other);
 	}
 	
@@ -170,29 +351,91 @@ public class MessageDownloadProtocol extends BaseDiscoveryProtocol {
 	@Override
 	public void preGossip(final Address other) {
 		super.preGossip(other);
-		prepareLists();
+		prepareLists(other);
 	}
 
 	/**
-	 * Reset the transient GUID lists and populate the random message list with GUIDs to exchange.
+	 * Reset the transient key lists and populate the random message list with keys to exchange.
+	 * When reconciling, a node that publishes everything it stores sketches its topics instead, and
+	 * only the visiting instance's sketches are needed.
+	 * <p>
+	 * The visiting instance carries the IDs of the topics its node subscribes to, and, if the node
+	 * it visits is known, leaves out keys and sketches of topics that node doesn't subscribe to.
+	 * </p>
+	 * 
+	 * @param other The node this instance is about to visit, or null if it is hosting.
 	 */
-	private void prepareLists() {
+	private void prepareLists(Address other) {
 		MessageStoreNode node = (MessageStoreNode) Configuration.getParameter("node");
 		messageCandidates.clear();
-		messageGUIDs.clear();
-		messageGUIDs.addAll(node.getPublishedMessageStore().getRandomGUIDsByByte(RandomMessageListSize));
+		messageKeys.clear();
+		sketches.clear();
+		differences.clear();
+		topicIDs = (other == null) ? null : getTopicIDs(node.getSubscribedTopics());
+		Set<Integer> otherTopicIDs = (other == null) ? null : getNeighborTopicIDs(other);
+		reconciling = Configuration.getBool(CK.MessageDownloadReconcile, true);
+		offersStored = node.getPublishedMessageStore() == node.getStoredMessageStore();
+		if (!reconciling || !offersStored) {
+			messageKeys.addAll(node.getPublishedMessageStore().getRandomKeysByByte(RandomMessageListSize));
+			if (otherTopicIDs != null) retainTopics(messageKeys, otherTopicIDs);
+		}
+		if (reconciling && other != null) {
+			MessageStore ms = node.getStoredMessageStore();
+			Set<Integer> sketched = new HashSet<Integer>();
+			for (String topic : node.getSubscribedTopics()) {
+				int id = MessageKey.getTopicID(topic);
+				if (!sketched.add(id) || (otherTopicIDs != null && !otherTopicIDs.contains(id))) continue;
+				Integer estimate = differenceEstimates.get(id);
+				int cells = KeySketch.getCells((estimate == null) ? DefaultDifferenceEstimate : estimate);
+				if (cells > KeySketch.MaxCells) cells = 0;
+				long since = Math.max(getHorizon(ms, topic), getWindowStart());
+				sketches.add(new TopicSketch(id, since, sketch(ms, topic, since, cells)));
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the IDs of the topics a neighbor subscribes to, as last heard through discovery.
+	 * 
+	 * @param address The neighbor's address, on any port.
+	 * @return The IDs, or null if the neighbor isn't known.
+	 */
+	private static Set<Integer> getNeighborTopicIDs(Address address) {
+		Object node = Configuration.getParameter("node");
+		if (!(node instanceof DiscoverableNode) || !(address instanceof TCPAddress)) return null;
+		InetAddress ia = ((TCPAddress) address).getInetAddressAddress();
+		for (Map.Entry<TCPAddress, NodeInfo> e : ((DiscoverableNode) node).getNeighbors().entrySet()) {
+			if (e.getKey().getInetAddressAddress().equals(ia)) return getTopicIDs(e.getValue().getSubscribedTopics());
+		}
+		return null;
+	}
+
+	private static HashSet<Integer> getTopicIDs(Collection<String> topics) {
+		HashSet<Integer> ids = new HashSet<Integer>();
+		for (String topic : topics) ids.add(MessageKey.getTopicID(topic));
+		return ids;
+	}
+
+	/**
+	 * Remove the keys whose topics aren't in the given set.
+	 */
+	private static void retainTopics(Collection<MessageKey> keys, Set<Integer> topicIDs) {
+		Iterator<MessageKey> i = keys.iterator();
+		while (i.hasNext()) {
+			if (!topicIDs.contains(i.next().getTopicID())) i.remove();
+		}
 	}
 
 	/**
 	 * preUpdate is called just before the update method is called on the visiting protocol and this
 	 * protocol instance is passed in as a parameter. Therefore, we need to set up the messages that
-	 * we want to offer for exchange. The host node will extract RandomMessageCount GUIDs from its
+	 * we want to offer for exchange. The host node will extract RandomMessageCount keys from its
 	 * list to offer for comparison with the visiting node.
 	 */
 	@Override
 	public void preUpdate(final Protocol p) {
 		super.preUpdate(p);
-		prepareLists();
+		prepareLists(null);
 	}
 
 
@@ -238,12 +481,222 @@ public class MessageDownloadProtocol extends BaseDiscoveryProtocol {
 	 */
 	@GossipUpdate
 	public void update(MessageDownloadProtocol that) {
-		this.messageCandidates.addAll(that.messageGUIDs);
-		that.messageCandidates.addAll(this.messageGUIDs);
+		/*
+		 * Only keys in the visiting node's topics travel back to it.
+		 */
+		if (this.topicIDs == null) {
+			this.messageCandidates.addAll(that.messageKeys);
+		} else {
+			for (MessageKey key : that.messageKeys) {
+				if (this.topicIDs.contains(key.getTopicID())) this.messageCandidates.add(key);
+			}
+		}
+		that.messageCandidates.addAll(this.messageKeys);
+		if (this.reconciling) reconcile(that);
 		
 		/*
-		 * Wipe out the message list to save bandwidth.
+		 * Wipe out the message list, sketches and topics to save bandwidth.
 		 */
-		this.messageGUIDs.clear();
+		this.messageKeys.clear();
+		this.sketches.clear();
+		this.topicIDs = null;
+	}
+
+	/**
+	 * <p>
+	 * Compare the visiting node's topic sketches with sketches of the same topics at this (the host)
+	 * node, built with the same number of cells over the same time window. Subtracting one from the
+	 * other leaves just the keys that only one side has, and those are listed exactly as long as
+	 * there aren't too many of them. Each side may request the keys only the other side has, if the
+	 * other side publishes everything it stores.
+	 * </p>
+	 * <p>
+	 * Topics this node doesn't subscribe to are skipped, as are topics it keeps less of than the
+	 * sketch covers, since the difference would mostly be messages it doesn't want, and sketches
+	 * reaching further back than the reconcile window, which would be as costly to build as the
+	 * node's whole history of the topic. The size of each
+	 * difference is sent back to size the next sketch of the topic; a sketch too small to list its
+	 * difference gets a larger one next time, up to {@link KeySketch#MaxCells}. A topic whose
+	 * difference is too large for that is sent without cells, and this node offers its newest keys
+	 * of the topic instead, leaving the rest to anti-entropy.
+	 * </p>
+	 * 
+	 * @param that The "host" protocol instance.
+	 */
+	private void reconcile(MessageDownloadProtocol that) {
+		MessageStoreNode node = (MessageStoreNode) Configuration.getParameter("node");
+		MessageStore ms = node.getStoredMessageStore();
+		Map<Integer, String> topics = new HashMap<Integer, String>();
+		for (String topic : node.getSubscribedTopics()) topics.put(MessageKey.getTopicID(topic), topic);
+
+		int bytes = 0;
+		int listed = 0;
+		for (TopicSketch theirs : sketches) {
+			bytes += 4 + 8 + theirs.sketch.getWireSize();
+			String topic = topics.get(theirs.topic);
+			if (topic == null || getHorizon(ms, topic) > theirs.since || theirs.since < getWindowStart() - ClockAllowanceMillis) continue;
+
+			KeySketch mine = sketch(ms, topic, theirs.since, theirs.sketch.getCells());
+			int difference = 0;
+			if (!mine.matches(theirs.sketch)) {
+				List<MessageKey> hostOnly = new ArrayList<MessageKey>();
+				List<MessageKey> visitorOnly = new ArrayList<MessageKey>();
+				mine.subtract(theirs.sketch);
+				if (mine.getCells() > 0 && mine.decode(hostOnly, visitorOnly)) {
+					if (that.offersStored) this.messageCandidates.addAll(hostOnly);
+					if (this.offersStored) that.messageCandidates.addAll(visitorOnly);
+					difference = hostOnly.size() + visitorOnly.size();
+					listed += difference;
+				} else {
+					difference = -1 - Math.abs(mine.getSize());
+					if (theirs.sketch.getCells() == 0 && that.offersStored) this.messageCandidates.addAll(getNewestKeys(ms, topic, theirs.since));
+				}
+			}
+			differences.put(theirs.topic, difference);
+			updateEstimate(theirs.topic, difference);
+		}
+		log.debug(String.format("Reconciled %s topic sketches (%s bytes) and listed %s differing keys.", sketches.size(), bytes, listed));
+	}
+
+	/**
+	 * Adjust the difference estimate of a topic after reconciling it. Estimates follow the
+	 * differences found, but fall only by half at a time, and double when the sketch was too small.
+	 * After a sketch without cells, the estimate starts again from the difference in size.
+	 * 
+	 * @param topic The topic's ID.
+	 * @param difference The difference found, or -1 less a lower bound on it if it couldn't be listed.
+	 */
+	private static void updateEstimate(int topic, int difference) {
+		Integer previous = differenceEstimates.get(topic);
+		int estimate = (previous == null) ? DefaultDifferenceEstimate : previous;
+		if (difference >= 0) {
+			estimate = Math.max(difference, estimate / 2);
+		} else if (KeySketch.getCells(estimate) > KeySketch.MaxCells) {
+			/*
+			 * The sketch had no cells, so all that's known is the difference in size.
+			 */
+			estimate = Math.max(DefaultDifferenceEstimate, -1 - difference);
+		} else {
+			estimate = Math.max(Math.max(estimate, DefaultDifferenceEstimate / 2) * 2, -1 - difference);
+		}
+		differenceEstimates.put(topic, Math.min(estimate, MaxDifferenceEstimate));
+	}
+
+	/**
+	 * Sketch the messages of a topic created at or after the given time.
+	 */
+	private static KeySketch sketch(MessageStore ms, String topic, long since, int cells) {
+		if (ms instanceof CachedMessageStore) ms = ((CachedMessageStore) ms).getStore();
+		KeySketch sketch = new KeySketch(cells);
+		Collection<Message> messages = (since > 0) ? ms.range(topic, new DateTime(since), null) : ms.getMessagesByTopic(topic);
+		for (Message m : messages) sketch.add(m.getKey());
+		return sketch;
+	}
+
+	/**
+	 * Retrieve the keys of the newest messages of a topic created at or after the given time, at most
+	 * {@link #FallbackKeys} of them.
+	 */
+	private static List<MessageKey> getNewestKeys(MessageStore ms, String topic, long since) {
+		if (ms instanceof CachedMessageStore) ms = ((CachedMessageStore) ms).getStore();
+		List<MessageKey> keys = new ArrayList<MessageKey>();
+		for (Message m : ms.latest(topic, FallbackKeys)) {
+			if (m.getCreationDate().getMillis() >= since) keys.add(m.getKey());
+		}
+		return keys;
+	}
+
+	/**
+	 * Retrieve the creation time from which messages are sketched, or 0 if the whole history is.
+	 */
+	private static long getWindowStart() {
+		int seconds = Configuration.getInt(CK.MessageDownloadReconcileSeconds, DefaultReconcileSeconds);
+		return (seconds <= 0) ? 0 : System.currentTimeMillis() - seconds * 1000L;
+	}
+
+	/**
+	 * Retrieve the creation time before which a store doesn't want messages of a topic.
+	 */
+	private static long getHorizon(MessageStore ms, String topic) {
+		return (ms instanceof CachedMessageStore) ? ((CachedMessageStore) ms).getHorizon(topic) : 0;
+	}
+
+
+
+	/**
+	 * The key lists are written as a count followed by the raw keys, rather than as serialized
+	 * objects, which would add several bytes of object header to every key.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		writeKeys(out, messageKeys);
+		writeKeys(out, messageCandidates);
+		out.writeInt(sketches.size());
+		for (TopicSketch s : sketches) {
+			out.writeInt(s.topic);
+			out.writeLong(s.since);
+			s.sketch.write(out);
+		}
+		out.writeInt(differences.size());
+		for (Map.Entry<Integer, Integer> e : differences.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue());
+		}
+		out.writeInt((topicIDs == null) ? -1 : topicIDs.size());
+		if (topicIDs != null) {
+			for (int id : topicIDs) out.writeInt(id);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		messageKeys = readKeys(in);
+		messageCandidates = readKeys(in);
+		int count = in.readInt();
+		sketches = new ArrayList<TopicSketch>();
+		for (int i = 0; i < count; i++) sketches.add(new TopicSketch(in.readInt(), in.readLong(), KeySketch.read(in)));
+		count = in.readInt();
+		differences = new HashMap<Integer, Integer>();
+		for (int i = 0; i < count; i++) differences.put(in.readInt(), in.readInt());
+		count = in.readInt();
+		topicIDs = (count < 0) ? null : new HashSet<Integer>(Math.max(16, count * 2));
+		for (int i = 0; i < count; i++) topicIDs.add(in.readInt());
+	}
+
+	private static void writeKeys(ObjectOutputStream out, Set<MessageKey> keys) throws IOException {
+		byte[] b = new byte[keys.size() * MessageKey.Size];
+		int offset = 0;
+		for (MessageKey key : keys) {
+			key.toBytes(b, offset);
+			offset += MessageKey.Size;
+		}
+		out.writeInt(keys.size());
+		out.write(b);
+	}
+
+	private static HashSet<MessageKey> readKeys(ObjectInputStream in) throws IOException {
+		int count = in.readInt();
+		byte[] b = new byte[count * MessageKey.Size];
+		in.readFully(b);
+		HashSet<MessageKey> keys = new HashSet<MessageKey>(Math.max(16, count * 2));
+		for (int i = 0; i < count; i++) keys.add(MessageKey.fromBytes(b, i * MessageKey.Size));
+		return keys;
+	}
+
+
+
+	/**
+	 * A sketch of the messages of one topic created at or after a given time.
+	 */
+	private static class TopicSketch {
+		private final int topic;
+		private final long since;
+		private final KeySketch sketch;
+
+		public TopicSketch(int topic, long since, KeySketch sketch) {
+			this.topic = topic;
+			this.since = since;
+			this.sketch = sketch;
+		}
 	}
 }
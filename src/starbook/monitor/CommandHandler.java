@@ -1,6 +1,7 @@
 package starbook.monitor;
 
 import java.net.InetAddress;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -43,16 +44,13 @@ public class CommandHandler extends BaseCommandHandler {
 			}
 			case ToggleEdge: {
 				Edge e = (Edge) data.get("edge");
-				monitor.edgeList.add(e);
-
-				try {
-					Thread.sleep(Monitor.EdgeDelay);
-				} catch (InterruptedException e1) {
-					e1.printStackTrace();
-				} finally {
-					monitor.edgeList.remove(e);
-				}
-
+				monitor.showEdge(e);
+				break;
+			}
+			case EdgeBatch: {
+				@SuppressWarnings("unchecked")
+				List<Edge> edges = (List<Edge>) data.get("edges");
+				for (Edge e : edges) monitor.showEdge(e);
 				break;
 			}
 		}
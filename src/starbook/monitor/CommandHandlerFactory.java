@@ -3,6 +3,8 @@ package starbook.monitor;
 import java.net.DatagramPacket;
 import java.net.Socket;
 
+import starbook.common.Command;
+
 /**
  * Creates a CommandHandler factory that creates a handler when given a TCP socket or UDP packet. 
  *
@@ -29,4 +31,11 @@ public class CommandHandlerFactory implements starbook.common.CommandHandlerFact
 		ch.setPacket(packet);
 		return ch;
 	}
+
+	@Override
+	public starbook.common.CommandHandler getHandler(Command command) {
+		CommandHandler ch = new CommandHandler(monitor);
+		ch.setCommand(command);
+		return ch;
+	}
 }
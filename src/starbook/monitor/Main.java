@@ -31,7 +31,7 @@ public class Main {
 		int port = Integer.valueOf(a.getValue("Monitor-Port"));
 		InetSocketAddress address = new InetSocketAddress(listenAddress, port);
 		CommandHandlerFactory chf = new CommandHandlerFactory(monitor);
-		UDPCommandListener ucl = new UDPCommandListener(address, chf);
+		Runnable ucl = UDPCommandListener.create(address, chf);
 		Thread t = new Thread(ucl, "UDP Command Handler");
 		t.start();
 	}
@@ -11,6 +11,9 @@ import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -82,6 +85,31 @@ public class Monitor {
 
 	
 	
+	/**
+	 * Removes edges once they have been shown for EdgeDelay milliseconds.
+	 */
+	private final ScheduledExecutorService edgeRemover = Executors.newSingleThreadScheduledExecutor();
+
+	
+	
+	/**
+	 * Show the given edge on the graph for EdgeDelay milliseconds. This returns immediately, so
+	 * command handlers don't tie up a listener thread while the edge is visible.
+	 * 
+	 * @param e The edge to show.
+	 */
+	public void showEdge(final Edge e) {
+		edgeList.add(e);
+		edgeRemover.schedule(new Runnable() {
+			@Override
+			public void run() {
+				edgeList.remove(e);
+			}
+		}, EdgeDelay, TimeUnit.MILLISECONDS);
+	}
+
+	
+	
 	/**
 	 * Transform the given edge (by name) so that its color matches others that were generated from
 	 * the same protocol.
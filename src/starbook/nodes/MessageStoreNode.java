@@ -2,6 +2,8 @@ package starbook.nodes;
 
 import java.util.Set;
 
+import starbook.common.Message;
+import starbook.common.MessageKey;
 import starbook.common.MessageStore;
 
 /**
@@ -37,4 +39,15 @@ public interface MessageStoreNode {
 	 * @return The {@link MessageStore}.
 	 */
 	public MessageStore getStoredMessageStore();
+
+
+	
+	/**
+	 * Retrieve a published message for another node that is downloading it, counting the download
+	 * if this node retires messages after a number of downloads.
+	 * 
+	 * @param key The message's key.
+	 * @return The message, or null if it isn't published (any more).
+	 */
+	public Message downloadPublishedMessage(MessageKey key);
 }
@@ -14,6 +14,7 @@ import starbook.common.Command;
 import starbook.common.Edge;
 import starbook.common.Command.Type;
 import starbook.common.Configuration;
+import starbook.common.Telemetry;
 import starbook.common.User;
 
 public class CommandHandler extends BaseCommandHandler {
@@ -47,15 +48,7 @@ public class CommandHandler extends BaseCommandHandler {
 				 */
 				String name = "ur"+node.getInetAddress()+source;
 				Edge e = new Edge(name, node.getInetAddress(), source);
-				Map<String, Object> monitorData = new HashMap<String, Object>();
-				monitorData.put("edge", e);
-				monitorData.put("source", node.getInetAddress());
-				Command monitorCommand = new Command(Command.Type.ToggleEdge, monitorData);
-				try {
-					monitorCommand.sendViaUDP(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)));
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
+				Telemetry.Instance.toggleEdge(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)), node.getInetAddress(), e);
 			}
 			case AddedUser: {
 				/*
@@ -77,9 +70,9 @@ public class CommandHandler extends BaseCommandHandler {
 					HashMap<String, Object> responseData = new HashMap<String, Object>();
 					responseData.put("source", node.getInetAddress());
 					responseData.put("user", user);
-					Command c2 = new Command(Type.UserUpload, responseData);
+					Command c2 = new Command(Type.UserUpload, responseData).inReplyTo(command);
 					try {
-						c2.sendViaUDP(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
+						c2.send(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
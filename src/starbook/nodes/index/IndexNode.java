@@ -1,14 +1,10 @@
 package starbook.nodes.index;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Driver;
 import java.sql.DriverManager;
@@ -38,7 +34,9 @@ import starbook.common.InetAddressComparator;
 import starbook.common.NodeInfo;
 import starbook.common.Operation;
 import starbook.common.PeriodicFileWriter;
+import starbook.common.SnapshotHashMap;
 import starbook.common.TCPCommandListener;
+import starbook.common.Threads;
 import starbook.common.UDPCommandListener;
 import starbook.common.User;
 import starbook.common.UserStoreNode;
@@ -57,7 +55,7 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 	/**
 	 * This is a list of users and the node(s) that are responsible for them.
 	 */
-	private final ConcurrentHashMap<User, ConcurrentSkipListSet<InetAddress>> users = new ConcurrentHashMap<User, ConcurrentSkipListSet<InetAddress>>();
+	private final SnapshotHashMap<User, ConcurrentSkipListSet<InetAddress>> users = new SnapshotHashMap<User, ConcurrentSkipListSet<InetAddress>>();
 
 
 
@@ -92,26 +90,23 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 			throw new IOException("Cannot write to data directory.");
 		if (!dataDirectory.canRead())
 			throw new IOException("Cannot read data directory.");
-		for (File f : dataDirectory.listFiles()) {
-			if (f.getName().equals(UsersFile) && f.length() > 0) {
-				FileInputStream fis = new FileInputStream(f);
-				ObjectInputStream ois = new ObjectInputStream(fis);
-				try {
-					@SuppressWarnings("unchecked")
-					ConcurrentHashMap<User, ConcurrentSkipListSet<InetAddress>> userMap = (ConcurrentHashMap<User, ConcurrentSkipListSet<InetAddress>>) ois.readObject();
-					int count = 0;
-					for (Map.Entry<User, ConcurrentSkipListSet<InetAddress>> e : userMap.entrySet()) {
-						users.put(e.getKey(), e.getValue());
-						count++;
-					}
-					log.debug(String.format("Loaded %s users: %s", count, users));
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
-				} finally {
-					ois.close();
-					fis.close();
-				}
+		long recoveryStart = System.currentTimeMillis();
+		Object userMap = null;
+		try {
+			userMap = PeriodicFileWriter.read(getUsersFilePath());
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+		if (userMap != null) {
+			@SuppressWarnings("unchecked")
+			Map<User, ConcurrentSkipListSet<InetAddress>> loaded = (Map<User, ConcurrentSkipListSet<InetAddress>>) userMap;
+			int count = 0;
+			for (Map.Entry<User, ConcurrentSkipListSet<InetAddress>> e : loaded.entrySet()) {
+				users.put(e.getKey(), e.getValue());
+				count++;
 			}
+			log.info(String.format("Recovered %s users in %sms.", count, System.currentTimeMillis() - recoveryStart));
+			log.debug(String.format("Loaded users: %s", users));
 		}
 
 		log.debug("Created " + this);
@@ -119,6 +114,17 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 
 
 
+	/**
+	 * Retrieve the path of the file in which the user list is saved.
+	 * 
+	 * @return The path.
+	 */
+	private Path getUsersFilePath() {
+		return Paths.get(Configuration.getStr(CK.DataDirectory), UsersFile);
+	}
+
+
+
 	/**
 	 * Since the IndexNode's user list is created from the node discovery results, this method
 	 * doesn't actually add users, but it does update them if the provided user is newer than the
@@ -194,7 +200,7 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 			if (userListUpdaterThread == null) {
 				log.debug("Starting user list updater thread.");
 				UserListUpdater u = new UserListUpdater(this);
-				Thread t = new Thread(u, "User list updater");
+				Thread t = Threads.newThread(u, "User list updater");
 				addThread(t);
 				userListUpdaterThread = t;
 				t.start();
@@ -272,7 +278,7 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 		data.put("source", getInetAddress());
 		data.put("user", user);
 		Command c = new Command(Command.Type.AddUser, data);
-		c.sendViaUDP(commandAddress);
+		c.send(commandAddress);
 	}
 
 
@@ -284,8 +290,8 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 		/*
 		 * Start the user database backup process.
 		 */
-		PeriodicFileWriter pfw = new PeriodicFileWriter(users, Paths.get(UsersFile));
-		Thread pfwt = new Thread(pfw, "User File Writer");
+		PeriodicFileWriter pfw = new PeriodicFileWriter(users, getUsersFilePath());
+		Thread pfwt = Threads.newThread(pfw, "User File Writer");
 		addThread(pfwt);
 		pfwt.start();
 
@@ -307,11 +313,12 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 		 * Start the command handlers.
 		 */
 		CommandHandlerFactory chf = new CommandHandlerFactory(this);
-		TCPCommandListener tcl = new TCPCommandListener(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		Runnable tcl = TCPCommandListener.create(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
 		Thread tclt = new Thread(tcl, "TCP Command Handler");
 		addThread(tclt);
 		tclt.start();
-		UDPCommandListener ucl = new UDPCommandListener(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		Runnable ucl = UDPCommandListener.create(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		setUDPCommandListener(ucl);
 		Thread uclt = new Thread(ucl, "UDP Command Handler");
 		addThread(uclt);
 		uclt.start();
@@ -321,26 +328,6 @@ public class IndexNode extends BaseDiscoverableNode implements UserStoreNode {
 
 	@Override
 	public void stopThreads() {
-		/*
-		 * Attempt to save the user list.
-		 */
-		if (users.size() > 0) {
-			String dataDirectoryName = Configuration.getStr(CK.DataDirectory);
-			File usersFile = new File(dataDirectoryName, UsersFile);
-			try {
-				FileOutputStream fos = new FileOutputStream(usersFile);
-				ObjectOutputStream oos = new ObjectOutputStream(fos);
-				synchronized (users) {
-					oos.writeObject(users);
-				}
-				log.debug(String.format("Successfully saved %s users to disk.", users.size()));
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
 		Enumeration<Driver> drivers = DriverManager.getDrivers();
 		while (drivers.hasMoreElements()) {
 			Driver driver = drivers.nextElement();
@@ -12,6 +12,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import starbook.common.CommandScheduler;
 import starbook.common.User;
 
 public class NodeServlet extends HttpServlet {
@@ -27,6 +28,8 @@ public class NodeServlet extends HttpServlet {
 		req.setAttribute("leader", node.getInetAddress().equals(node.getLeaderAddress()));
 		req.setAttribute("users", users);
 		req.setAttribute("neighbors", node.getNeighbors());
+		req.setAttribute("lanes", CommandScheduler.Instance.getLaneMetrics());
+		req.setAttribute("udp", node.getUDPCommandMetrics());
 		req.getRequestDispatcher("node.jsp").forward(req, resp);
 	}
 }
@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -19,7 +20,9 @@ import starbook.common.BaseUser;
 import starbook.common.CK;
 import starbook.common.Command;
 import starbook.common.Command.Type;
+import starbook.common.CommandFuture;
 import starbook.common.NodeInfo;
+import starbook.common.RequestTracker;
 import starbook.common.User;
 
 public class SignupServlet extends HttpServlet {
@@ -77,8 +80,9 @@ public class SignupServlet extends HttpServlet {
 				data.put("source", node.getInetAddress());
 				data.put("node", userNode.getInetAddressAddress());
 				data.put("user", user);
-				Command c = new Command(Type.CreateUser, data);
-				c.sendViaUDP(new InetSocketAddress(userNode.getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
+				Command c = new Command(Type.CreateUser, new HashMap<String, Object>(data));
+				CommandFuture added = RequestTracker.Instance.request(new Command(Type.CreateUser, data),
+						new InetSocketAddress(userNode.getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
 				node.associateUser(user, userNode.getInetAddressAddress());
 				
 				/*
@@ -88,17 +92,20 @@ public class SignupServlet extends HttpServlet {
 				while (i.hasNext()) {
 					Map.Entry<TCPAddress, NodeInfo> e = i.next();
 					if (e.getValue().getType().equals(BaseNode.Type.Index) && !e.getKey().equals(node.getInetAddress())) {
-						c.sendViaUDP(new InetSocketAddress(e.getKey().getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
+						c.send(new InetSocketAddress(e.getKey().getInetAddressAddress(), Configuration.getInt(CK.CommandPort)));
 					}
 				}
 				
 				/*
-				 * Redirect the user to the node after waiting for the above UDP command to process.
+				 * Redirect the user to the node once it has confirmed the new user. If it never
+				 * does, redirect anyway; the user replicators will catch up eventually.
 				 * 
 				 * TODO: Send them to a welcome page?
 				 */
 				try {
-					Thread.sleep(2000);
+					added.get();
+				} catch (ExecutionException e) {
+					log.warn(String.format("%s did not confirm new user %s: %s", userNode, user, e.getCause()));
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
@@ -4,18 +4,23 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import starbook.common.BaseCommandHandler;
+import starbook.common.CachedMessageStore;
 import starbook.common.CK;
 import starbook.common.Command;
+import starbook.common.Telemetry;
 import starbook.common.User;
 import starbook.common.Command.Type;
 import starbook.common.Configuration;
 import starbook.common.Edge;
 import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.MessageStore;
 
 public class CommandHandler extends BaseCommandHandler {
 	private final static Logger log = Logger.getLogger(CommandHandler.class);
@@ -35,23 +40,15 @@ public class CommandHandler extends BaseCommandHandler {
 				case AddUser: {
 					User user = (User) data.get("user");
 
-					/*
-					 * Wait a small amount of time so concurrent requests don't result in using the
-					 * "same" limit, e.g. because changes in users.size() aren't reflected yet.
-					 */
-					try {
-						Thread.sleep(Configuration.rng.nextInt(1000) + 500);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-
 					/*
 					 * Determine if it's safe to replicate a new user. If so, replicate it. If not, we
 					 * still replicate it if it's a brand new user, otherwise the user would not have
-					 * anywhere to go.
+					 * anywhere to go. The node does the check and the add together so concurrent
+					 * requests don't result in using the "same" limit, e.g. because changes in
+					 * users.size() aren't reflected yet; the reply is only sent after that.
 					 */
-					if (node.canReplicate()) {
-						addUser(data, source);
+					if (node.replicateUser(user)) {
+						userAdded(command, source);
 					} else {
 						log.debug(String.format("Can't replicate %s", user));
 					}
@@ -61,15 +58,19 @@ public class CommandHandler extends BaseCommandHandler {
 					User user = (User) data.get("user");
 
 					/*
-					 * Determine if we already track this user.
+					 * Determine if we already track this user. If so, an earlier request created it
+					 * and the reply was probably lost, so reply again.
 					 */
-					if (node.getUser(user.getName()) != null)
+					if (node.getUser(user.getName()) != null) {
+						replyAdded(command, source);
 						break;
+					}
 					
 					/*
 					 * This is a new user; they need somewhere to live, so just add them.
 					 */
-					addUser(data, source);
+					node.addUser(user);
+					userAdded(command, source);
 					break;
 				}
 				case MessageUpload: {
@@ -84,31 +85,48 @@ public class CommandHandler extends BaseCommandHandler {
 					 */
 					String name = "mr"+node.getInetAddress()+source;
 					Edge e = new Edge(name, node.getInetAddress(), source);
-					Map<String, Object> monitorData = new HashMap<String, Object>();
-					monitorData.put("edge", e);
-					monitorData.put("source", node.getInetAddress());
-					Command monitorCommand = new Command(Command.Type.ToggleEdge, monitorData);
-					try {
-						monitorCommand.sendViaUDP(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)));
-					} catch (IOException e1) {
-						e1.printStackTrace();
-					}
+					Telemetry.Instance.toggleEdge(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)), node.getInetAddress(), e);
 					break;
 				}
 				case MessageRequest: {
 					/*
 					 * Send back a MessageUpload with the message.
 					 */
-					String guid = (String) data.get("guid");
-					Message message = node.getPublishedMessageStore().downloadMessage(guid, Configuration.getInt(CK.DownloadCount));
+					MessageKey key = (MessageKey) data.get("key");
+					Message message = node.downloadPublishedMessage(key);
 					if (message != null) {
 						Map<String, Object> responseData = new HashMap<String, Object>(1);
 						responseData.put("message", message);
 						responseData.put("source", node.getInetAddress());
-						Command c = new Command(Type.MessageUpload, responseData);
-						c.sendViaTCP(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
+						Command c = new Command(Type.MessageUpload, responseData).inReplyTo(command);
+						c.send(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
 					} else {
-						log.warn("Request to download a message that doesn't exist: " + guid);
+						log.warn("Request to download a message that doesn't exist: " + key);
+					}
+					break;
+				}
+				case MessageStored: {
+					/*
+					 * A worker has stored some of our published messages.
+					 */
+					if (node.getReplicationTracker() != null) {
+						@SuppressWarnings("unchecked")
+						List<MessageKey> keys = (List<MessageKey>) data.get("keys");
+						node.getReplicationTracker().confirm(keys, source);
+					}
+					break;
+				}
+				case MessagePush: {
+					/*
+					 * Another web node's users posted these. Keep those our users follow.
+					 */
+					@SuppressWarnings("unchecked")
+					List<Message> messages = (List<Message>) data.get("messages");
+					MessageStore ms = node.getStoredMessageStore();
+					for (Message message : messages) {
+						if (!node.getSubscribedTopics().contains(message.getTopic())) continue;
+						if (ms instanceof CachedMessageStore && !((CachedMessageStore) ms).accepts(message.getKey())) continue;
+						ms.addMessage(message);
 					}
 					break;
 				}
@@ -122,18 +140,25 @@ public class CommandHandler extends BaseCommandHandler {
 		}
 	}
 
-	private void addUser(Map<String, Object> data, InetAddress source) throws IOException {
-		/*
-		 * We can replicate; begin tracking the new user.
-		 */
-		addUser(data);
+	/**
+	 * Notifies the monitor of a user added in response to a request, and replies to the request.
+	 * 
+	 * @param request The AddUser or CreateUser command.
+	 * @param source The node that sent it.
+	 */
+	private void userAdded(Command request, InetAddress source) throws IOException {
+		announceUser(source);
+		replyAdded(request, source);
+	}
 
-		/*
-		 * Send a reply packet back to the index with an updated source attribute.
-		 */
+	/**
+	 * Send a reply packet back to the index with an updated source attribute.
+	 */
+	private void replyAdded(Command request, InetAddress source) throws IOException {
+		Map<String, Object> data = request.getData();
 		data.put("source", node.getInetAddress());
-		Command c1 = new Command(Type.AddedUser, data);
-		c1.sendViaUDP(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
+		Command c1 = new Command(Type.AddedUser, data).inReplyTo(request);
+		c1.send(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
 	}
 
 
@@ -144,22 +169,15 @@ public class CommandHandler extends BaseCommandHandler {
 	 * @param data The packet data from which to get the user.
 	 */
 	private void addUser(Map<String, Object> data) {
-		InetAddress source = (InetAddress) data.get("source");
-		User user = (User) data.get("user");
-		node.addUser(user);
+		node.addUser((User) data.get("user"));
+		announceUser((InetAddress) data.get("source"));
+	}
 
-		/*
-		 * Send a command to the monitor to indicate that a user was added.
-		 */
+	/**
+	 * Send a command to the monitor to indicate that a user was added.
+	 */
+	private void announceUser(InetAddress source) {
 		Edge e = new Edge("ur", node.getInetAddress(), source);
-		Map<String, Object> monitorData = new HashMap<String, Object>();
-		monitorData.put("edge", e);
-		monitorData.put("source", node.getInetAddress());
-		Command monitorCommand = new Command(Command.Type.ToggleEdge, monitorData);
-		try {
-			monitorCommand.sendViaUDP(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)));
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		Telemetry.Instance.toggleEdge(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)), node.getInetAddress(), e);
 	}
 }
@@ -0,0 +1,177 @@
+package starbook.nodes.web;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.princehouse.mica.base.net.tcpip.TCPAddress;
+
+import starbook.common.BaseNode.Type;
+import starbook.common.CK;
+import starbook.common.Command;
+import starbook.common.Configuration;
+import starbook.common.Message;
+import starbook.common.NodeInfo;
+import starbook.common.Threads;
+
+/**
+ * <p>
+ * Pushes messages posted at a web node straight to the neighbors that subscribe to their topics,
+ * rather than leaving them in the published message store until the MessageDownloadProtocol happens
+ * to come across them, which takes a few gossip rounds and more as the cluster grows. The protocol
+ * still runs, and picks up any push that is lost or reaches a node that wasn't known yet.
+ * </p>
+ * <p>
+ * Posts are held for {@link CK#MessagePushLingerMillis} so those arriving together go to each
+ * neighbor as one MessagePush command of up to {@link #MaxBatchMessages} messages, sent over UDP
+ * if it fits in a datagram and TCP otherwise.
+ * </p>
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessagePusher {
+	private static final Logger log = Logger.getLogger(MessagePusher.class);
+	public static final int DefaultLingerMillis = 5;
+	public static final int MaxBatchMessages = 32;
+	private final InetAddress origin;
+	private final Map<TCPAddress, NodeInfo> neighbors;
+	private final Map<InetSocketAddress, List<Message>> pending = new LinkedHashMap<InetSocketAddress, List<Message>>();
+	private final AtomicLong pushed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private Thread flusherThread = null;
+
+	/**
+	 * Create a pusher.
+	 *
+	 * @param origin This node's address.
+	 * @param neighbors This node's neighbors, which are consulted for each message.
+	 */
+	public MessagePusher(InetAddress origin, Map<TCPAddress, NodeInfo> neighbors) {
+		this.origin = origin;
+		this.neighbors = neighbors;
+	}
+
+
+
+	/**
+	 * Queue a new message for every neighbor, other than index nodes, that subscribes to its topic.
+	 *
+	 * @param message The message.
+	 * @return The number of neighbors it will be pushed to.
+	 */
+	public int push(Message message) {
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		for (Map.Entry<TCPAddress, NodeInfo> e : neighbors.entrySet()) {
+			NodeInfo ni = e.getValue();
+			InetAddress address = e.getKey().getInetAddressAddress();
+			if (ni.getType() == Type.Index || address.equals(origin)) continue;
+			if (!ni.getSubscribedTopics().contains(message.getTopic())) continue;
+			InetSocketAddress target = new InetSocketAddress(address, Configuration.getInt(CK.CommandPort));
+			if (!targets.contains(target)) targets.add(target);
+		}
+		if (targets.isEmpty()) return 0;
+
+		synchronized (pending) {
+			for (InetSocketAddress target : targets) {
+				List<Message> messages = pending.get(target);
+				if (messages == null) {
+					messages = new ArrayList<Message>();
+					pending.put(target, messages);
+				}
+				messages.add(message);
+			}
+			pending.notifyAll();
+		}
+		startFlusher();
+		return targets.size();
+	}
+
+
+
+	/**
+	 * Send every queued message now.
+	 */
+	public void flush() {
+		Map<InetSocketAddress, List<Message>> queued;
+		synchronized (pending) {
+			if (pending.isEmpty()) return;
+			queued = new LinkedHashMap<InetSocketAddress, List<Message>>(pending);
+			pending.clear();
+		}
+
+		for (Map.Entry<InetSocketAddress, List<Message>> e : queued.entrySet()) {
+			Iterator<Message> i = e.getValue().iterator();
+			while (i.hasNext()) {
+				ArrayList<Message> messages = new ArrayList<Message>();
+				while (i.hasNext() && messages.size() < MaxBatchMessages) messages.add(i.next());
+				Map<String, Object> data = new HashMap<String, Object>(2);
+				data.put("messages", messages);
+				data.put("source", origin);
+				Command c = new Command(Command.Type.MessagePush, data);
+				try {
+					c.send(e.getKey());
+					pushed.addAndGet(messages.size());
+					batches.incrementAndGet();
+				} catch (IOException ex) {
+					log.debug(String.format("Unable to push %s messages to %s: %s", messages.size(), e.getKey(), ex.getMessage()));
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Start the thread that waits for queued messages, lingers briefly for more, and sends them.
+	 */
+	private synchronized void startFlusher() {
+		if (flusherThread != null) return;
+		flusherThread = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				boolean running = true;
+				while (running) {
+					try {
+						synchronized (pending) {
+							while (pending.isEmpty()) pending.wait();
+						}
+						int linger = Configuration.getInt(CK.MessagePushLingerMillis, DefaultLingerMillis);
+						if (linger > 0) Thread.sleep(linger);
+					} catch (InterruptedException e) {
+						running = false;
+					}
+					flush();
+				}
+			}
+		}, "Message Pusher");
+		flusherThread.setDaemon(true);
+		flusherThread.start();
+	}
+
+
+
+	/**
+	 * Retrieve the number of messages sent, counting each neighbor a message went to.
+	 */
+	public long getPushed() {
+		return pushed.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[pushed=%s, batches=%s]", getClass().getSimpleName(), pushed.get(), batches.get());
+	}
+}
@@ -12,6 +12,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -23,6 +24,7 @@ import starbook.common.Util;
 public class MessagesServlet extends HttpServlet {
 	private static final Logger log = Logger.getLogger(MessagesServlet.class);
 	private static final long serialVersionUID = 3816854113577854762L;
+	private static final int DefaultDays = 7;
 	private final WebNode node = (WebNode) Configuration.getParameter("node");
 
 
@@ -51,15 +53,20 @@ public class MessagesServlet extends HttpServlet {
 		/*
 		 * By default, we retrieve messages from the previous week.
 		 */
-//		DateTime startDate = DateTime.now().minusDays(7);
+		DateTime startDate = DateTime.now().minusDays(DefaultDays);
 
 		/*
 		 * Check the request to see if there is a different start date.
 		 */
-//		String s = req.getParameter("days");
-//		if (s != null) {
-//			startDate = DateTime.now().minusDays(Integer.valueOf(s));
-//		}
+		String s = req.getParameter("days");
+		if (s != null) {
+			try {
+				startDate = DateTime.now().minusDays(Integer.valueOf(s));
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Invalid number of days: %s", s));
+				return;
+			}
+		}
 
 		/*
 		 * Retrieve a list of topics in which this user is interested.
@@ -68,18 +75,17 @@ public class MessagesServlet extends HttpServlet {
 		req.setAttribute("subscriptions", subscriptions);
 
 		/*
-		 * First, create a sorted list of the messages so they are output in order by date.
+		 * First, create a sorted list of the messages so they are output in order by date. Only
+		 * the part of each topic's timeline after the start date is read.
 		 */
-		TreeSet<Message> messages = new TreeSet<Message>(Collections.reverseOrder());
+		TreeSet<Message> messages = new TreeSet<Message>(Collections.reverseOrder(new BaseMessage.timelineComparator()));
 		for (String subscription : subscriptions) {
-			messages.addAll(node.getStoredMessageStore().getMessagesByTopic(subscription));
+			messages.addAll(node.getStoredMessageStore().range(subscription, startDate, null));
 		}
 
 		/*
 		 * Create a copy of sorted the list of messages that match topics to which this user is
 		 * interested.
-		 * 
-		 * TODO: Implement the "days" feature.
 		 */
 		ArrayList<JSONObject> messageList = new ArrayList<JSONObject>();
 		for (Message m: messages) {
@@ -121,6 +127,13 @@ public class MessagesServlet extends HttpServlet {
 			log.debug(String.format("Adding new message from user %s: %s", user.getName(), message));
 			node.getStoredMessageStore().addMessage(message);
 			node.getPublishedMessageStore().addMessage(message);
+
+			/*
+			 * Send it to the neighbors that follow this user now, rather than waiting for them to
+			 * find it.
+			 */
+			MessagePusher pusher = node.getMessagePusher();
+			if (pusher != null) pusher.push(message);
 		}
 	}
 }
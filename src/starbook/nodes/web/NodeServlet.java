@@ -9,6 +9,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import starbook.common.CommandScheduler;
+
 public class NodeServlet extends HttpServlet {
 	private static final long serialVersionUID = -7873859804416584322L;
 	private static final Logger log = Logger.getLogger(NodeServlet.class);
@@ -18,11 +20,16 @@ public class NodeServlet extends HttpServlet {
 		log.debug("");
 		WebNode node = (WebNode) Configuration.getParameter("node");
 		req.setAttribute("address", node.getInetAddress());
-		req.setAttribute("publishedMessages", node.getPublishedMessageStore().getMessageGUIDs());
-		req.setAttribute("storedMessages", node.getStoredMessageStore().getMessageGUIDs());
+		req.setAttribute("publishedMessages", node.getPublishedMessageStore().getMessageKeys());
+		req.setAttribute("storedMessages", node.getStoredMessageStore().getMessageKeys());
+		req.setAttribute("cache", node.getStoredMessageStore());
+		req.setAttribute("replication", node.getReplicationTracker());
+		req.setAttribute("push", node.getMessagePusher());
 		req.setAttribute("subscribedTopics", node.getSubscribedTopics());
 		req.setAttribute("users", node.getUsers());
 		req.setAttribute("neighbors", node.getNeighbors());
+		req.setAttribute("lanes", CommandScheduler.Instance.getLaneMetrics());
+		req.setAttribute("udp", node.getUDPCommandMetrics());
 		req.getRequestDispatcher("node.jsp").forward(req, resp);
 	}
 	
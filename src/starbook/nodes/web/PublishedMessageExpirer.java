@@ -0,0 +1,76 @@
+package starbook.nodes.web;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import starbook.common.CK;
+import starbook.common.Configuration;
+import starbook.common.Message;
+import starbook.common.MessageStore;
+
+/**
+ * Periodically retires published messages older than {@link CK#PublishedMessageMaxAgeSeconds}
+ * that at least one worker has confirmed storing, but fewer than the {@link ReplicationTracker}
+ * requires. This bounds the published store for a topic fewer workers replicate than that. A
+ * message no worker has confirmed is kept however old it is, so it isn't lost; the skipped ones
+ * are logged. The expirer is off by default, and needs the tracker.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class PublishedMessageExpirer implements Runnable {
+	private final static Logger log = Logger.getLogger(PublishedMessageExpirer.class);
+	public static final int DefaultMaxAgeSeconds = 0;
+	private static final int MaxDelaySeconds = 60;
+	private final WebNode node;
+	private long expired = 0;
+
+	public PublishedMessageExpirer(WebNode node) {
+		this.node = node;
+	}
+
+	@Override
+	public void run() {
+		boolean running = true;
+		while (running) {
+			int maxAge = Configuration.getInt(CK.PublishedMessageMaxAgeSeconds, DefaultMaxAgeSeconds);
+			try {
+				Thread.sleep(((maxAge > 0) ? Math.max(1, Math.min(MaxDelaySeconds, maxAge / 10)) : MaxDelaySeconds) * 1000L);
+			} catch (InterruptedException e) {
+				running = false;
+				continue;
+			}
+			if (maxAge > 0) expire(DateTime.now().minusSeconds(maxAge));
+		}
+	}
+
+	/**
+	 * Retire the published messages created before the given time that some worker has confirmed.
+	 *
+	 * @return The number of messages retired.
+	 */
+	public int expire(DateTime cutoff) {
+		MessageStore store = node.getPublishedMessageStore();
+		ReplicationTracker tracker = node.getReplicationTracker();
+		if (tracker == null) return 0;
+		int count = 0;
+		int skipped = 0;
+		for (Message m : store.getMessages()) {
+			if (!m.getCreationDate().isBefore(cutoff)) continue;
+			if (tracker.getConfirmations(m.getKey()) == 0) {
+				log.debug(String.format("Keeping published message %s: no worker has confirmed storing it.", m.getKey()));
+				skipped++;
+				continue;
+			}
+			store.removeMessage(m);
+			tracker.forget(m.getKey());
+			count++;
+		}
+		if (count > 0) {
+			expired += count;
+			log.debug(String.format("Retired %s published messages created before %s (%s so far).", count, cutoff, expired));
+		}
+		if (skipped > 0) log.info(String.format("Kept %s published messages created before %s that no worker has confirmed.", skipped, cutoff));
+		return count;
+	}
+}
@@ -0,0 +1,123 @@
+package starbook.nodes.web;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.MessageStore;
+
+/**
+ * Tracks which worker nodes have confirmed storing each published message, and stops publishing a
+ * message once enough distinct workers have. Confirmations from the same worker are only counted
+ * once, however often it sends them.
+ * 
+ * @author Josh Endries (josh@endries.org)
+ * 
+ */
+public class ReplicationTracker {
+	private static final Logger log = Logger.getLogger(ReplicationTracker.class);
+	private final MessageStore store;
+	private final int required;
+	private final ConcurrentHashMap<MessageKey, Set<InetAddress>> confirmations = new ConcurrentHashMap<MessageKey, Set<InetAddress>>();
+	private final AtomicLong retired = new AtomicLong();
+
+	/**
+	 * Create a tracker.
+	 * 
+	 * @param store The published message store.
+	 * @param required The number of distinct workers that must confirm a message.
+	 */
+	public ReplicationTracker(MessageStore store, int required) {
+		this.store = store;
+		this.required = required;
+	}
+
+
+
+	/**
+	 * Record that a worker has stored the given messages, and retire those that are now stored by
+	 * enough workers. Keys of messages that aren't published (any more) are ignored.
+	 * 
+	 * @param keys The keys of the stored messages.
+	 * @param node The worker.
+	 * @return The number of messages retired.
+	 */
+	public int confirm(Collection<MessageKey> keys, InetAddress node) {
+		int count = 0;
+		for (MessageKey key : keys) {
+			Message m = store.getMessageByKey(key);
+			if (m == null) {
+				confirmations.remove(key);
+				continue;
+			}
+			Set<InetAddress> nodes = confirmations.get(key);
+			if (nodes == null) {
+				Set<InetAddress> created = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+				nodes = confirmations.putIfAbsent(key, created);
+				if (nodes == null) nodes = created;
+			}
+			nodes.add(node);
+
+			/*
+			 * The message may have been retired some other way meanwhile, after forget() ran.
+			 */
+			if (store.getMessageByKey(key) == null) {
+				confirmations.remove(key, nodes);
+				continue;
+			}
+			if (nodes.size() >= required && confirmations.remove(key, nodes)) {
+				log.debug(String.format("Message %s has been stored by %s workers, retiring it.", key, nodes.size()));
+				store.removeMessage(m);
+				retired.incrementAndGet();
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+
+	/**
+	 * Retrieve the number of distinct workers that have confirmed storing a published message, so
+	 * far. A message retired by the tracker isn't tracked any more, and counts as none.
+	 */
+	public int getConfirmations(MessageKey key) {
+		Set<InetAddress> nodes = confirmations.get(key);
+		return (nodes == null) ? 0 : nodes.size();
+	}
+
+
+
+	/**
+	 * Stop tracking a message that was retired some other way. Every path that removes a published
+	 * message calls this, so partly-confirmed messages don't stay here forever.
+	 */
+	public void forget(MessageKey key) {
+		confirmations.remove(key);
+	}
+
+
+
+	/**
+	 * Retrieve the number of published messages confirmed by some, but not yet enough, workers.
+	 */
+	public int getPending() {
+		return confirmations.size();
+	}
+
+	public long getRetired() {
+		return retired.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[required=%s, pending=%s, retired=%s]", getClass().getSimpleName(), required, confirmations.size(), retired.get());
+	}
+}
@@ -4,11 +4,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.log4j.Logger;
 import org.princehouse.mica.base.net.tcpip.TCPAddress;
 
 import starbook.common.BaseUser;
+import starbook.common.CommandFuture;
 import starbook.common.NodeInfo;
 import starbook.common.User;
 
@@ -144,7 +146,17 @@ public class UserReplicator implements Runnable {
 					 * version.
 					 */
 					if (userName != null) {
-						node.fetchUser(userName);
+						CommandFuture f = node.fetchUser(userName);
+						if (f != null) {
+							try {
+								f.get();
+								log.debug("Fetched user " + userName);
+							} catch (ExecutionException e) {
+								log.debug(String.format("Unable to fetch user %s: %s", userName, e.getCause()));
+							} catch (InterruptedException e) {
+								running = false;
+							}
+						}
 					}
 				}
 			}
@@ -10,6 +10,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.princehouse.mica.base.model.Runtime;
@@ -19,13 +20,19 @@ import org.princehouse.mica.base.simple.SimpleRuntime;
 import starbook.common.BaseDiscoverableNode;
 import starbook.common.BaseMessageStore;
 import starbook.common.BaseUser;
+import starbook.common.CachedMessageStore;
 import starbook.common.CK;
 import starbook.common.Command;
+import starbook.common.CommandFuture;
 import starbook.common.Configuration;
+import starbook.common.Message;
+import starbook.common.MessageKey;
 import starbook.common.MessageStore;
 import starbook.common.NodeInfo;
 import starbook.common.Operation;
+import starbook.common.RequestTracker;
 import starbook.common.TCPCommandListener;
+import starbook.common.Threads;
 import starbook.common.UDPCommandListener;
 import starbook.common.User;
 import starbook.common.UserStoreNode;
@@ -36,6 +43,8 @@ import starbook.nodes.MessageStoreNode;
 
 public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, UserStoreNode {
 	private static final Logger log = Logger.getLogger(WebNode.class);
+	public static final int DefaultReplicationConfirmations = 2;
+	public static final int TrackedDownloadFactor = 10;
 	protected Runtime<MessageDownloadProtocol> mdpRuntime;
 	protected Runtime<UserDiscoveryProtocol> udpRuntime;
 
@@ -49,9 +58,10 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 
 
 	/**
-	 * The message store that contains cached user messages.
+	 * The message store that contains cached user messages. Messages of topics nobody here
+	 * subscribes to any more are evicted, as are messages beyond the cache's limits.
 	 */
-	private final MessageStore userMessageStore = new BaseMessageStore();
+	private final CachedMessageStore userMessageStore = new CachedMessageStore(new BaseMessageStore());
 
 
 
@@ -60,6 +70,18 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 	 */
 	private final MessageStore publishedMessageStore = new BaseMessageStore();
 
+	/**
+	 * Retires published messages once enough workers have stored them, or null if they are
+	 * retired after being downloaded {@link CK#DownloadCount} times instead.
+	 */
+	private final ReplicationTracker replicationTracker;
+
+	/**
+	 * Pushes posted messages to subscribing neighbors, or null if {@link CK#MessagePush} is off and
+	 * they are only found by the MessageDownloadProtocol.
+	 */
+	private final MessagePusher messagePusher;
+
 
 
 	/**
@@ -74,6 +96,12 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 	 */
 	private final ConcurrentSkipListSet<User> users = new ConcurrentSkipListSet<User>();
 
+	/**
+	 * Held while deciding whether to replicate a user and adding it, so concurrent requests don't
+	 * all see the same number of users.
+	 */
+	private final ReentrantLock replicationLock = new ReentrantLock();
+
 
 
 	/**
@@ -84,6 +112,9 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 	 */
 	public WebNode(InetAddress address) throws UnknownHostException {
 		super(address, Type.Web);
+		int confirmations = Configuration.getInt(CK.ReplicationConfirmations, DefaultReplicationConfirmations);
+		replicationTracker = (confirmations > 0) ? new ReplicationTracker(publishedMessageStore, confirmations) : null;
+		messagePusher = Configuration.getBool(CK.MessagePush, true) ? new MessagePusher(address, getNeighbors()) : null;
 		log.debug("Created: " + this);
 	}
 
@@ -122,6 +153,26 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 
 
 
+	/**
+	 * Add a replica of a user if this node has sufficient resources for it (see
+	 * {@link #canReplicate()}).
+	 * 
+	 * @param u The user.
+	 * @return True if the user was added, false if this node can't replicate it.
+	 */
+	public boolean replicateUser(User u) {
+		replicationLock.lock();
+		try {
+			if (!canReplicate()) return false;
+			addUser(u);
+			return true;
+		} finally {
+			replicationLock.unlock();
+		}
+	}
+
+
+
 	/**
 	 * Determines if this node has sufficient resources to replicate new data.
 	 * 
@@ -194,6 +245,39 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 		return publishedMessageStore;
 	}
 
+	/**
+	 * Published messages are retired after {@link CK#DownloadCount} downloads, unless they are
+	 * retired by the {@link ReplicationTracker} instead. With the tracker, the download count is
+	 * only a safety limit, {@link #TrackedDownloadFactor} times as high, and a message it retires
+	 * is forgotten by the tracker.
+	 */
+	@Override
+	public Message downloadPublishedMessage(MessageKey key) {
+		int downloadLimit = Configuration.getInt(CK.DownloadCount);
+		if (replicationTracker == null) return publishedMessageStore.downloadMessage(key, downloadLimit);
+		Message m = publishedMessageStore.downloadMessage(key, (int) Math.min(Integer.MAX_VALUE, (long) downloadLimit * TrackedDownloadFactor));
+		if (m != null && publishedMessageStore.getMessageByKey(key) == null) replicationTracker.forget(key);
+		return m;
+	}
+
+	/**
+	 * Retrieve the tracker that retires published messages once they are replicated.
+	 * 
+	 * @return The tracker, or null if messages are retired by download count.
+	 */
+	public ReplicationTracker getReplicationTracker() {
+		return replicationTracker;
+	}
+
+	/**
+	 * Retrieve the pusher that sends posted messages to subscribing neighbors.
+	 * 
+	 * @return The pusher, or null if messages are not pushed.
+	 */
+	public MessagePusher getMessagePusher() {
+		return messagePusher;
+	}
+
 	/**
 	 * Retrieves the next consecutive message ID.
 	 * 
@@ -267,6 +351,7 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 			for (User u : users) {
 				subscribedTopics.addAll(Util.copyCCS(u.getSubscriptions()));
 			}
+			userMessageStore.retainTopics(subscribedTopics);
 		}
 	}
 
@@ -315,11 +400,19 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 		 * Start the user replicator, which attempts to download new users.
 		 */
 		UserReplicator userReplicator = new UserReplicator(this);
-		Thread userReplicatorThread = new Thread(userReplicator);
-		userReplicatorThread.setName("User Replicator");
+		Thread userReplicatorThread = Threads.newThread(userReplicator, "User Replicator");
 		addThread(userReplicatorThread);
 		userReplicatorThread.start();
 
+		/*
+		 * Start the expirer, which retires old published messages that are only partly replicated.
+		 */
+		if (replicationTracker != null && Configuration.getInt(CK.PublishedMessageMaxAgeSeconds, PublishedMessageExpirer.DefaultMaxAgeSeconds) > 0) {
+			Thread expirerThread = Threads.newThread(new PublishedMessageExpirer(this), "Published Message Expirer");
+			addThread(expirerThread);
+			expirerThread.start();
+		}
+
 		/*
 		 * Create the user discovery protocol (UDP), set it to always contain the index and ignore
 		 * worker nodes, and ignore ourself.
@@ -353,12 +446,13 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 		mdpRuntime = SimpleRuntime.launchDaemon(mdp, new TCPAddress(getInetAddress(), Configuration.getInt(CK.MessageDownloadPort)));
 
 		CommandHandlerFactory chf = new CommandHandlerFactory(this);
-		TCPCommandListener tcl = new TCPCommandListener(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		Runnable tcl = TCPCommandListener.create(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
 		Thread tclt = new Thread(tcl, "TCP Command Handler");
 		addThread(tclt);
 		tclt.start();
 
-		UDPCommandListener ucl = new UDPCommandListener(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		Runnable ucl = UDPCommandListener.create(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		setUDPCommandListener(ucl);
 		Thread uclt = new Thread(ucl, "UDP Command Handler");
 		addThread(uclt);
 		uclt.start();
@@ -377,16 +471,19 @@ public class WebNode extends BaseDiscoverableNode implements MessageStoreNode, U
 	 * Send a UserRequest command to the index for the specified user name.
 	 * 
 	 * @param userName The user name for which to request an User object.
+	 * @return The future UserUpload response, which completes once the user has been added, or
+	 *         null if the request couldn't be sent.
 	 */
-	public void fetchUser(String userName) {
+	public CommandFuture fetchUser(String userName) {
 		HashMap<String, Object> data = new HashMap<String, Object>();
 		data.put("source", getInetAddress());
 		data.put("name", userName);
 		Command c = new Command(Command.Type.UserRequest, data);
 		try {
-			c.sendViaUDP(new InetSocketAddress(getIndexAddresses().iterator().next(), Configuration.getInt(CK.CommandPort)));
+			return RequestTracker.Instance.request(c, new InetSocketAddress(getIndexAddresses().iterator().next(), Configuration.getInt(CK.CommandPort)));
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
 	}
 
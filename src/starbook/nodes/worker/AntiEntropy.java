@@ -0,0 +1,85 @@
+package starbook.nodes.worker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.princehouse.mica.base.net.tcpip.TCPAddress;
+
+import starbook.common.BaseNode.Type;
+import starbook.common.CK;
+import starbook.common.Configuration;
+import starbook.common.Message;
+import starbook.common.MessageStream;
+import starbook.common.NodeInfo;
+import starbook.common.TreeSync;
+
+/**
+ * Periodically syncs one of the worker's topics with another worker that replicates it (see
+ * {@link TopicReplicator}), using {@link TreeSync}. The MessageDownloadProtocol only samples, so the
+ * chance that it turns up a particular old message a replica lacks shrinks as the store grows;
+ * syncing finds every difference, so replicas that sync with each other now and then are sure to
+ * converge.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class AntiEntropy implements Runnable {
+	private final static Logger log = Logger.getLogger(AntiEntropy.class);
+	public static final int DefaultSeconds = 60;
+	private final WorkerNode node;
+
+	public AntiEntropy(WorkerNode node) {
+		this.node = node;
+	}
+
+	@Override
+	public void run() {
+		boolean running = true;
+		while (running) {
+			int seconds = Configuration.getInt(CK.AntiEntropySeconds, DefaultSeconds);
+			try {
+				Thread.sleep(seconds * 1000L);
+			} catch (InterruptedException e) {
+				running = false;
+				continue;
+			}
+
+			/*
+			 * Pick a topic, and one of the other workers replicating it.
+			 */
+			List<String> topics = new ArrayList<String>(node.getSubscribedTopics());
+			if (topics.isEmpty()) continue;
+			String topic = topics.get(Configuration.rng.nextInt(topics.size()));
+			List<InetAddress> replicas = new ArrayList<InetAddress>();
+			for (Map.Entry<TCPAddress, NodeInfo> e : node.getNeighbors().entrySet()) {
+				InetAddress address = e.getKey().getInetAddressAddress();
+				NodeInfo ni = e.getValue();
+				if (ni.getType() != Type.Worker || address.equals(node.getInetAddress()) || replicas.contains(address)) continue;
+				if (ni.getSubscribedTopics().contains(topic)) replicas.add(address);
+			}
+			if (replicas.isEmpty()) {
+				log.debug(String.format("No other replicas of %s to sync with.", topic));
+				continue;
+			}
+			InetAddress replica = replicas.get(Configuration.rng.nextInt(replicas.size()));
+
+			try {
+				TreeSync.Result result = TreeSync.sync(new InetSocketAddress(replica, Configuration.getInt(CK.CommandPort)), topic, node.getStoredMessageStore(),
+						new MessageStream.Receiver() {
+							@Override
+							public void receive(List<Message> messages) throws IOException {
+								for (Message m : messages) node.getStoredMessageStore().addMessage(m);
+							}
+						});
+				log.debug(String.format("Synced %s with %s: %s", topic, replica, result));
+			} catch (IOException e) {
+				log.debug(String.format("Unable to sync %s with %s: %s", topic, replica, e.getMessage()));
+			}
+		}
+	}
+}
@@ -3,18 +3,24 @@ package starbook.nodes.worker;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import starbook.common.BaseCommandHandler;
+import starbook.common.BaseNode;
 import starbook.common.CK;
 import starbook.common.Command;
 import starbook.common.Command.Type;
 import starbook.common.Configuration;
 import starbook.common.Edge;
 import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.Telemetry;
 
 public class CommandHandler extends BaseCommandHandler {
 	private final static Logger log = Logger.getLogger(CommandHandler.class);
@@ -34,20 +40,20 @@ public class CommandHandler extends BaseCommandHandler {
 				/*
 				 * Send back a MessageUpload with the message.
 				 */
-				String guid = (String) data.get("guid");
-				Message message = node.getPublishedMessageStore().getMessageByGUID(guid);
+				MessageKey key = (MessageKey) data.get("key");
+				Message message = node.downloadPublishedMessage(key);
 				if (message != null) {
 					Map<String, Object> responseData = new HashMap<String, Object>(1);
 					responseData.put("message", message);
 					responseData.put("source", node.getInetAddress());
-					Command c2 = new Command(Type.MessageUpload, responseData);
+					Command c2 = new Command(Type.MessageUpload, responseData).inReplyTo(command);
 					try {
-						c2.sendViaUDP(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
+						c2.send(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
 				} else {
-					log.warn("Request to download a message that doesn't exist: " + guid);
+					log.warn("Request to download a message that doesn't exist: " + key);
 				}
 				break;
 			}
@@ -56,22 +62,74 @@ public class CommandHandler extends BaseCommandHandler {
 				 * Add the message to our message store.
 				 */
 				Message message = (Message) data.get("message");
-				node.getStoredMessageStore().addMessage(message);
+				try {
+					node.getStoredMessageStore().addMessage(message);
+				} catch (IllegalStateException e) {
+					/*
+					 * Don't confirm a message we couldn't store.
+					 */
+					log.error(String.format("Unable to store uploaded message %s.", message.getKey()), e);
+					break;
+				}
+
+				/*
+				 * Let a web node know we have it, so it can stop publishing it once enough of us do.
+				 * Other workers don't publish what they upload, so they aren't told.
+				 */
+				if (node.getNeighborType(source) == BaseNode.Type.Web) {
+					Map<String, Object> storedData = new HashMap<String, Object>(2);
+					storedData.put("keys", new ArrayList<MessageKey>(Collections.singletonList(message.getKey())));
+					storedData.put("source", node.getInetAddress());
+					try {
+						new Command(Type.MessageStored, storedData).send(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
+					} catch (IOException e1) {
+						e1.printStackTrace();
+					}
+				}
 
 				/*
 				 * Tell the monitor.
 				 */
 				String name = "mr"+node.getInetAddress()+source;
 				Edge e = new Edge(name, node.getInetAddress(), source);
-				Map<String, Object> monitorData = new HashMap<String, Object>();
-				monitorData.put("edge", e);
-				monitorData.put("source", node.getInetAddress());
-				Command monitorCommand = new Command(Command.Type.ToggleEdge, monitorData);
+				Telemetry.Instance.toggleEdge(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)), node.getInetAddress(), e);
+				break;
+			}
+			case MessagePush: {
+				/*
+				 * A web node pushed messages just posted there. Store those in topics we replicate
+				 * and confirm them, as for a MessageUpload.
+				 */
+				@SuppressWarnings("unchecked")
+				List<Message> messages = (List<Message>) data.get("messages");
+				ArrayList<MessageKey> stored = new ArrayList<MessageKey>(messages.size());
+				for (Message message : messages) {
+					if (!node.getSubscribedTopics().contains(message.getTopic())) continue;
+					try {
+						node.getStoredMessageStore().addMessage(message);
+					} catch (IllegalStateException e) {
+						log.error(String.format("Unable to store pushed message %s.", message.getKey()), e);
+						continue;
+					}
+					stored.add(message.getKey());
+				}
+				if (stored.isEmpty()) break;
+
+				Map<String, Object> storedData = new HashMap<String, Object>(2);
+				storedData.put("keys", stored);
+				storedData.put("source", node.getInetAddress());
 				try {
-					monitorCommand.sendViaUDP(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)));
+					new Command(Type.MessageStored, storedData).send(new InetSocketAddress(source, Configuration.getInt(CK.CommandPort)));
 				} catch (IOException e1) {
 					e1.printStackTrace();
 				}
+
+				/*
+				 * Tell the monitor.
+				 */
+				String name = "mp"+node.getInetAddress()+source;
+				Edge e = new Edge(name, node.getInetAddress(), source);
+				Telemetry.Instance.toggleEdge(new InetSocketAddress(node.getMonitorAddress(), Configuration.getInt(CK.CommandPort)), node.getInetAddress(), e);
 				break;
 			}
 		}
@@ -3,6 +3,8 @@ package starbook.nodes.worker;
 import java.net.DatagramPacket;
 import java.net.Socket;
 
+import starbook.common.Command;
+
 public class CommandHandlerFactory implements starbook.common.CommandHandlerFactory {
 	private final WorkerNode node;
 	
@@ -23,4 +25,11 @@ public class CommandHandlerFactory implements starbook.common.CommandHandlerFact
 		ch.setPacket(packet);
 		return ch;
 	}
+
+	@Override
+	public starbook.common.CommandHandler getHandler(Command command) {
+		CommandHandler ch = new CommandHandler(node);
+		ch.setCommand(command);
+		return ch;
+	}
 }
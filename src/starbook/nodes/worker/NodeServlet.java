@@ -9,6 +9,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import starbook.common.CommandScheduler;
+
 public class NodeServlet extends HttpServlet {
 	private static final long serialVersionUID = -7873859804416584322L;
 	private static final Logger log = Logger.getLogger(NodeServlet.class);
@@ -18,9 +20,11 @@ public class NodeServlet extends HttpServlet {
 		log.debug("");
 		WorkerNode workerNode = (WorkerNode) Configuration.getParameter("node");
 		req.setAttribute("address", workerNode.getInetAddress());
-		req.setAttribute("messages", workerNode.getStoredMessageStore().getMessageGUIDs());
+		req.setAttribute("messages", workerNode.getStoredMessageStore().getMessageKeys());
 		req.setAttribute("subscribedTopics", workerNode.getSubscribedTopics());
 		req.setAttribute("neighbors", workerNode.getNeighbors());
+		req.setAttribute("lanes", CommandScheduler.Instance.getLaneMetrics());
+		req.setAttribute("udp", workerNode.getUDPCommandMetrics());
 		req.getRequestDispatcher("node.jsp").forward(req, resp);
 	}
 	
@@ -1,7 +1,6 @@
 package starbook.nodes.worker;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
@@ -22,10 +21,17 @@ import starbook.common.BaseDiscoverableNode;
 import starbook.common.BaseMessageStore;
 import starbook.common.CK;
 import starbook.common.Configuration;
+import starbook.common.LoggedMessageStore;
+import starbook.common.MappedMessageStore;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.MessageLog;
 import starbook.common.MessageStore;
 import starbook.common.NodeInfo;
 import starbook.common.PeriodicFileWriter;
+import starbook.common.SnapshotSkipListSet;
 import starbook.common.TCPCommandListener;
+import starbook.common.Threads;
 import starbook.common.UDPCommandListener;
 import starbook.common.Util;
 import starbook.common.protocols.MessageDownloadProtocol;
@@ -54,49 +60,78 @@ public class WorkerNode extends BaseDiscoverableNode implements MessageStoreNode
 		Path dataDirectoryPath = Paths.get(Configuration.getStr(CK.DataDirectory));
 		MessageFilePath = dataDirectoryPath.resolve(String.format("%s-messages", address.getHostAddress()));
 		TopicsFilePath = dataDirectoryPath.resolve(String.format("%s-topics", address.getHostAddress()));
+		long recoveryStart = System.currentTimeMillis();
 
 		/*
-		 * Load the message store;
+		 * Load the message store. A mapped store keeps itself on disk and only has to be opened; a
+		 * logged store is rebuilt by replaying its log. The first time the log is used, the messages
+		 * in the serialized store are copied into it.
 		 */
-		if (Files.exists(MessageFilePath)) {
-			if (!Files.isReadable(MessageFilePath))
-				throw new IOException("Message store file is not readable.");
-			ObjectInputStream ois = null;
-			try {
-				ois = new ObjectInputStream(Files.newInputStream(MessageFilePath));
-				log.debug("Loading message store from disk.");
-				messageStore = (MessageStore) ois.readObject();
-				log.debug(String.format("%s messages loaded from disk.", messageStore.getMessages().size()));
-				log.debug(String.format("%s message GUIDs loaded from disk.", messageStore.getMessageGUIDs().size()));
-			} finally {
-				if (ois != null)
-					ois.close();
+		if (isMapped()) {
+			messageStore = new MappedMessageStore(dataDirectoryPath, MessageFilePath.getFileName().toString());
+		} else if (isLogged()) {
+			MessageLog messageLog = new MessageLog(dataDirectoryPath, MessageFilePath.getFileName().toString());
+			MessageStore legacy = messageLog.exists() ? null : readMessageStore();
+			MessageStore store = new BaseMessageStore();
+			long start = System.currentTimeMillis();
+			long records = messageLog.open(store);
+			log.debug(String.format("Replayed %s message log records into %s messages in %sms.", records, store.size(), System.currentTimeMillis() - start));
+			if (legacy != null) {
+				Set<Message> messages = legacy.getMessages();
+				for (Message m : messages) store.addMessage(m);
+				messageLog.appendAll(messages);
+				log.info(String.format("Copied %s messages from the message store file into the message log.", messages.size()));
 			}
+			messageStore = new LoggedMessageStore(store, messageLog);
 		} else {
-			log.info("Message store file does not exist, creating an empty message store.");
-			messageStore = new BaseMessageStore();
+			MessageStore store = readMessageStore();
+			messageStore = (store == null) ? new BaseMessageStore() : store;
 		}
 
 		/*
-		 * Load the topic list.
+		 * Load the topic list. Lists saved before topic changes were tracked are copied into a
+		 * tracking set.
 		 */
-		if (Files.exists(TopicsFilePath)) {
-			if (!Files.isReadable(TopicsFilePath))
-				throw new IOException("Topics list file is not readable.");
-			ObjectInputStream ois = null;
-			try {
-				ois = new ObjectInputStream(Files.newInputStream(TopicsFilePath));
-				log.debug("Loading topics list from disk.");
-				subscribedTopics = (ConcurrentSkipListSet<String>) ois.readObject();
-				log.debug(String.format("%s topics loaded from disk.", subscribedTopics.size()));
-			} finally {
-				if (ois != null)
-					ois.close();
-			}
+		if (Files.exists(TopicsFilePath) && !Files.isReadable(TopicsFilePath))
+			throw new IOException("Topics list file is not readable.");
+		Object topics = PeriodicFileWriter.read(TopicsFilePath);
+		if (topics instanceof SnapshotSkipListSet) {
+			subscribedTopics = (SnapshotSkipListSet<String>) topics;
+			log.debug(String.format("%s topics loaded from disk.", subscribedTopics.size()));
+		} else if (topics != null) {
+			subscribedTopics = new SnapshotSkipListSet<String>((ConcurrentSkipListSet<String>) topics);
+			log.debug(String.format("%s topics loaded from disk.", subscribedTopics.size()));
 		} else {
 			log.info("Topics list file does not exist, creating an empty topic list.");
-			subscribedTopics = new ConcurrentSkipListSet<String>();
+			subscribedTopics = new SnapshotSkipListSet<String>();
 		}
+
+		/*
+		 * The message store may still be building its topic lists and sampling index; it does that
+		 * in the background while we start.
+		 */
+		log.info(String.format("Recovered %s messages and %s topics in %sms.", messageStore.size(), subscribedTopics.size(),
+				System.currentTimeMillis() - recoveryStart));
+	}
+
+
+
+	/**
+	 * Read the serialized message store.
+	 * 
+	 * @return The message store, or null if there is no message store file.
+	 */
+	private MessageStore readMessageStore() throws IOException, ClassNotFoundException {
+		if (!Files.exists(MessageFilePath)) {
+			log.info("Message store file does not exist, creating an empty message store.");
+			return null;
+		}
+		if (!Files.isReadable(MessageFilePath))
+			throw new IOException("Message store file is not readable.");
+		log.debug("Loading message store from disk.");
+		MessageStore store = (MessageStore) PeriodicFileWriter.read(MessageFilePath);
+		log.debug(String.format("%s messages loaded from disk.", store.size()));
+		return store;
 	}
 
 
@@ -130,16 +165,6 @@ public class WorkerNode extends BaseDiscoverableNode implements MessageStoreNode
 	 * @return True if this node can replicate new data, false otherwise.
 	 */
 	public boolean canReplicate() {
-		/*
-		 * Wait a small amount of time so concurrent requests don't result in using the "same" limit,
-		 * e.g. because changes in users.size() aren't reflected yet.
-		 */
-		try {
-			Thread.sleep(Configuration.rng.nextInt(1000) + 500);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
 		/*
 		 * Create a percentage-like limit. The smaller this number, the less likely we will be to
 		 * replicate new data. One could think of this as "the percent chance this node has to
@@ -151,7 +176,7 @@ public class WorkerNode extends BaseDiscoverableNode implements MessageStoreNode
 		 * Alter the limit based on the number of messages we already track, reducing the limit as the
 		 * number of messages grows.
 		 */
-		int numMessages = messageStore.getMessageGUIDs().size();
+		int numMessages = messageStore.size();
 		limit *= (numMessages == 0) ? 1.0 : (1.0 / numMessages);
 
 		/*
@@ -185,31 +210,39 @@ public class WorkerNode extends BaseDiscoverableNode implements MessageStoreNode
 		 * Start the topic database backup process.
 		 */
 		PeriodicFileWriter tpfw = new PeriodicFileWriter(subscribedTopics, TopicsFilePath);
-		Thread tpfwt = new Thread(tpfw, "Topic File Writer");
+		Thread tpfwt = Threads.newThread(tpfw, "Topic File Writer");
 		addThread(tpfwt);
 		tpfwt.start();
 
 		/*
 		 * Start the message database backup process.
 		 */
-		PeriodicFileWriter mpfw = new PeriodicFileWriter(messageStore, MessageFilePath);
-		Thread mpfwt = new Thread(mpfw, "Message File Writer");
-		addThread(mpfwt);
-		mpfwt.start();
+		if (!isMapped() && !isLogged()) {
+			PeriodicFileWriter mpfw = new PeriodicFileWriter(messageStore, MessageFilePath);
+			Thread mpfwt = Threads.newThread(mpfw, "Message File Writer");
+			addThread(mpfwt);
+			mpfwt.start();
+		}
 
 		TopicReplicator topicReplicator = new TopicReplicator(this);
-		Thread topicReplicatorThread = new Thread(topicReplicator);
-		topicReplicatorThread.setName("Topic Replicator");
+		Thread topicReplicatorThread = Threads.newThread(topicReplicator, "Topic Replicator");
 		addThread(topicReplicatorThread);
 		topicReplicatorThread.start();
 
+		if (Configuration.getInt(CK.AntiEntropySeconds, AntiEntropy.DefaultSeconds) > 0) {
+			Thread antiEntropyThread = Threads.newThread(new AntiEntropy(this), "Anti-Entropy");
+			addThread(antiEntropyThread);
+			antiEntropyThread.start();
+		}
+
 		CommandHandlerFactory chf = new CommandHandlerFactory(this);
-		TCPCommandListener tcl = new TCPCommandListener(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		Runnable tcl = TCPCommandListener.create(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
 		Thread tclt = new Thread(tcl, "TCP Command Handler");
 		addThread(tclt);
 		tclt.start();
 
-		UDPCommandListener ucl = new UDPCommandListener(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		Runnable ucl = UDPCommandListener.create(new InetSocketAddress(getInetAddress(), Configuration.getInt(CK.CommandPort)), chf);
+		setUDPCommandListener(ucl);
 		Thread uclt = new Thread(ucl, "UDP Command Handler");
 		addThread(uclt);
 		uclt.start();
@@ -245,6 +278,33 @@ public class WorkerNode extends BaseDiscoverableNode implements MessageStoreNode
 		if (mdpRuntime != null)
 			mdpRuntime.stop();
 		super.stopThreads();
+		if (messageStore instanceof MappedMessageStore)
+			((MappedMessageStore) messageStore).flush();
+		if (messageStore instanceof LoggedMessageStore)
+			((LoggedMessageStore) messageStore).getMessageLog().close();
+	}
+
+
+
+	/**
+	 * Determine if messages should be kept in a {@link MappedMessageStore} rather than on the heap.
+	 * This is set by {@link CK#MessageStore}.
+	 * 
+	 * @return True if the message store is memory-mapped.
+	 */
+	private static boolean isMapped() {
+		String s = Configuration.getStr(CK.MessageStore, "memory");
+		return s.equalsIgnoreCase("mapped");
+	}
+
+	/**
+	 * Determine if changes to the message store should be written to a {@link MessageLog} rather
+	 * than the whole store being written out periodically. This is set by {@link CK#MessageLog}.
+	 * 
+	 * @return True if the message store is logged.
+	 */
+	private static boolean isLogged() {
+		return Configuration.getBool(CK.MessageLog, false);
 	}
 
 
@@ -288,4 +348,14 @@ public class WorkerNode extends BaseDiscoverableNode implements MessageStoreNode
 	public MessageStore getStoredMessageStore() {
 		return messageStore;
 	}
+
+
+
+	/**
+	 * Workers keep every message they publish, so downloads aren't counted.
+	 */
+	@Override
+	public Message downloadPublishedMessage(MessageKey key) {
+		return messageStore.getMessageByKey(key);
+	}
 }
@@ -0,0 +1,146 @@
+package starbook.tests;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import starbook.common.BaseMessage;
+import starbook.common.BaseNode;
+import starbook.common.BaseUser;
+import starbook.common.Command;
+import starbook.common.Command.Type;
+import starbook.common.CommandCodec;
+import starbook.common.CommandCodec.Encoding;
+import starbook.common.Edge;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.User;
+
+/**
+ * Compares the size and encode/decode throughput of the Java serialization and binary command
+ * encodings for a sample command of every type, and checks that each binary command decodes back
+ * to the same data and that malformed ones are rejected.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class CommandCodecTest extends Test {
+	private static final int Iterations = 20000;
+
+	public static void main(String[] args) throws Exception {
+		InetAddress source = InetAddress.getByName("10.0.0.12");
+		InetAddress other = InetAddress.getByName("10.0.0.34");
+		User user = new BaseUser("alice");
+		user.getSubscriptions().add("bob");
+		user.getSubscriptions().add("carol");
+		Message message = new BaseMessage("Hello, world! This is a typical short post.", DateTime.now(), source, 42, "alice");
+
+		List<Command> commands = new ArrayList<Command>();
+		for (Type t : Type.values()) {
+			Map<String, Object> data = new HashMap<String, Object>();
+			data.put("source", source);
+			switch (t) {
+				case UserRequest: data.put("name", "alice"); break;
+				case MessageRequest: data.put("key", message.getKey()); break;
+				case Ping: data.put("type", BaseNode.Type.Web); data.put("leader", false); break;
+				case ToggleEdge: data.put("edge", new Edge("mdp" + source + other, source, other)); break;
+				case MessageUpload: data.put("message", message); break;
+				case EdgeBatch: {
+					ArrayList<Edge> edges = new ArrayList<Edge>();
+					for (int i = 0; i < 8; i++) edges.add(new Edge("mdp" + i + source + other, source, other));
+					data.put("edges", edges);
+					break;
+				}
+				case CreateUser: data.put("node", other); data.put("user", user); break;
+				case MessageStored:
+				case MessageBatchRequest: {
+					ArrayList<MessageKey> keys = new ArrayList<MessageKey>();
+					for (int i = 0; i < 8; i++) keys.add(new BaseMessage("", DateTime.now(), source, i, "alice").getKey());
+					data.put("keys", keys);
+					break;
+				}
+				case MessagePush: {
+					ArrayList<Message> messages = new ArrayList<Message>();
+					for (int i = 0; i < 4; i++) messages.add(new BaseMessage("A typical short post, number " + i + ".", DateTime.now(), source, i, "alice"));
+					data.put("messages", messages);
+					break;
+				}
+				default: data.put("user", user);
+			}
+			commands.add(new Command(t, data));
+		}
+
+		System.out.println(String.format("%-15s %8s %8s %7s %12s %12s", "type", "java", "binary", "ratio", "java ops/s", "binary ops/s"));
+		for (Command c : commands) {
+			byte[] j = CommandCodec.encode(c, Encoding.Java);
+			byte[] b = CommandCodec.encode(c, Encoding.Binary);
+
+			Command decoded = CommandCodec.decode(b, 0, b.length);
+			if (!decoded.getType().equals(c.getType()) || !decoded.getData().equals(c.getData())) {
+				throw new AssertionError(String.format("Round trip failed for %s: %s != %s", c, decoded.getData(), c.getData()));
+			}
+
+			System.out.println(String.format("%-15s %8d %8d %6.1fx %12.0f %12.0f", c.getType(), j.length, b.length, (double) j.length / b.length,
+					throughput(c, Encoding.Java), throughput(c, Encoding.Binary)));
+		}
+
+		/*
+		 * Any kind of list is encoded in binary.
+		 */
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("source", source);
+		data.put("keys", Collections.unmodifiableList(Arrays.asList(message.getKey())));
+		if (!CommandCodec.isEncodable(new Command(Type.MessageStored, data))) throw new AssertionError("An unmodifiable key list isn't encodable.");
+
+		/*
+		 * Malformed frames are rejected with an IOException: a negative command type, and a message
+		 * without a source.
+		 */
+		int magic = CommandCodec.Magic;
+		int version = CommandCodec.Version;
+		int upload = Type.MessageUpload.ordinal();
+		byte[][] malformed = {
+				bytes(magic, version, 10, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01),
+				bytes(magic, version, 10, upload, (5 << 3) | 2, 7, (6 << 3) | 2, 5, 'a', 'l', 'i', 'c', 'e') };
+		for (byte[] b : malformed) {
+			try {
+				CommandCodec.decode(b, 0, b.length);
+				throw new AssertionError("A malformed command was decoded.");
+			} catch (IOException e) {
+				/*
+				 * Expected.
+				 */
+			}
+		}
+		System.out.println("Malformed commands are rejected.");
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++) b[i] = (byte) values[i];
+		return b;
+	}
+
+	/**
+	 * Measure how many encode/decode round trips per second the given encoding manages.
+	 */
+	private static double throughput(Command c, Encoding e) throws Exception {
+		for (int i = 0; i < Iterations / 10; i++) {
+			byte[] b = CommandCodec.encode(c, e);
+			CommandCodec.decode(b, 0, b.length);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < Iterations; i++) {
+			byte[] b = CommandCodec.encode(c, e);
+			CommandCodec.decode(b, 0, b.length);
+		}
+		return Iterations / ((System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,105 @@
+package starbook.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import starbook.common.KeySketch;
+import starbook.common.MessageKey;
+
+/**
+ * Checks that two sketches of overlapping key sets list exactly the keys only one side has, for
+ * differences of various sizes, and compares the bytes sent with the raw keys a full exchange of
+ * the sets would take. Also checks that a sketch too small for its difference says so, and that
+ * one larger than {@link KeySketch#MaxCells} isn't read.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class KeySketchTest extends Test {
+	private static final int Shared = 100000;
+	private static final int Trials = 50;
+
+	public static void main(String[] args) throws Exception {
+		Random rng = new Random(42);
+		int topic = MessageKey.getTopicID("alice");
+		List<MessageKey> shared = new ArrayList<MessageKey>();
+		for (int i = 0; i < Shared; i++) shared.add(newKey(rng, topic));
+
+		System.out.println(String.format("%10s %8s %12s %12s %9s", "difference", "cells", "sketch bytes", "raw bytes", "decoded"));
+		for (int difference : new int[] { 0, 1, 10, 100, 1000, 10000 }) {
+			int decoded = 0;
+			int bytes = 0;
+			for (int trial = 0; trial < Trials; trial++) {
+				Set<MessageKey> onlyA = new HashSet<MessageKey>();
+				Set<MessageKey> onlyB = new HashSet<MessageKey>();
+				for (int i = 0; i < difference; i++) ((i % 2 == 0) ? onlyA : onlyB).add(newKey(rng, topic));
+
+				int cells = Math.max(KeySketch.Hashes, KeySketch.getCells(difference));
+				KeySketch a = new KeySketch(cells);
+				KeySketch b = new KeySketch(cells);
+				for (MessageKey k : shared) {
+					a.add(k);
+					b.add(k);
+				}
+				for (MessageKey k : onlyA) a.add(k);
+				for (MessageKey k : onlyB) b.add(k);
+				if (a.matches(b) != (difference == 0)) throw new AssertionError("Digest mismatch for a difference of " + difference);
+
+				/*
+				 * Send B's sketch over the wire, as the protocol would.
+				 */
+				ByteArrayOutputStream wire = new ByteArrayOutputStream();
+				b.write(new DataOutputStream(wire));
+				bytes = wire.size();
+				KeySketch received = KeySketch.read(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())));
+
+				a.subtract(received);
+				Set<MessageKey> mine = new HashSet<MessageKey>();
+				Set<MessageKey> theirs = new HashSet<MessageKey>();
+				if (a.decode(mine, theirs)) {
+					if (!mine.equals(onlyA) || !theirs.equals(onlyB)) throw new AssertionError("Wrong keys listed for a difference of " + difference);
+					decoded++;
+				}
+			}
+			System.out.println(String.format("%10d %8d %12d %12d %8d%%", difference, Math.max(KeySketch.Hashes, KeySketch.getCells(difference)), bytes, (Shared + difference / 2) * MessageKey.Size,
+					decoded * 100 / Trials));
+		}
+
+		/*
+		 * A sketch far too small for its difference must not claim to have listed it.
+		 */
+		KeySketch a = new KeySketch(KeySketch.getCells(10));
+		KeySketch b = new KeySketch(KeySketch.getCells(10));
+		for (int i = 0; i < 1000; i++) a.add(newKey(rng, topic));
+		a.subtract(b);
+		if (a.decode(new ArrayList<MessageKey>(), new ArrayList<MessageKey>())) throw new AssertionError("An overloaded sketch claimed to decode.");
+		System.out.println("An overloaded sketch reports failure.");
+
+		/*
+		 * A peer can't make us allocate a sketch larger than the limit.
+		 */
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(wire);
+		out.writeInt(0);
+		out.writeLong(0);
+		out.writeInt(KeySketch.MaxCells + KeySketch.Hashes);
+		try {
+			KeySketch.read(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())));
+			throw new AssertionError("An oversized sketch was read.");
+		} catch (IOException e) {
+			System.out.println("An oversized sketch is rejected.");
+		}
+	}
+
+	private static MessageKey newKey(Random rng, int topic) {
+		return new MessageKey(rng.nextInt() & 0xFFFFFFFFL, 1336003200000L + rng.nextInt(1000000000), rng.nextInt(), topic);
+	}
+}
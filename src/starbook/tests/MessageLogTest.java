@@ -0,0 +1,140 @@
+package starbook.tests;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+
+import starbook.common.BaseMessage;
+import starbook.common.BaseMessageStore;
+import starbook.common.CK;
+import starbook.common.Configuration;
+import starbook.common.LoggedMessageStore;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.MessageLog;
+import starbook.common.MessageStore;
+
+/**
+ * Exercises the {@link MessageLog}: compacting and replaying adds and removals, including after a
+ * crash once the compacted segment has replaced the newest one but before any of the others were
+ * deleted, and cutting off a torn record at the end of the last segment.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessageLogTest extends Test {
+	private static final String Prefix = "test-messages";
+	private static final int SegmentBytes = 64 * 1024;
+	private static final int Messages = 5000;
+
+	public static void main(String[] args) throws Exception {
+		Configuration.setParameter(CK.MessageLogSync, "false");
+		Path directory = Files.createTempDirectory("starbook-log");
+		Random rng = new Random(42);
+		InetAddress source = InetAddress.getByName("10.0.0.12");
+		DateTime now = DateTime.now();
+
+		/*
+		 * Add messages over several segments and then remove some of them, so the removals are in
+		 * the newest segment and the adds in older ones.
+		 */
+		MessageLog messageLog = new MessageLog(directory, Prefix, SegmentBytes);
+		BaseMessageStore underlying = new BaseMessageStore();
+		messageLog.open(underlying);
+		MessageStore store = new LoggedMessageStore(underlying, messageLog);
+		List<Message> added = new ArrayList<Message>();
+		for (int i = 0; i < Messages; i++) {
+			Message m = new BaseMessage("A typical short post, number " + i + ".", now.minusSeconds(rng.nextInt(1000000)), source, i, "alice");
+			store.addMessage(m);
+			added.add(m);
+		}
+		for (int i = 0; i < Messages / 5; i++) store.removeMessage(added.get(rng.nextInt(added.size())));
+		Set<MessageKey> expected = store.getMessageKeys();
+		messageLog.close();
+
+		/*
+		 * Compact, keeping copies of the segments, then put back every one of them but the one the
+		 * compacted segment replaced, as if the node died before deleting them.
+		 */
+		Path backup = Files.createTempDirectory("starbook-log-backup");
+		for (Path p : getSegments(directory).values()) Files.copy(p, backup.resolve(p.getFileName()));
+		messageLog = new MessageLog(directory, Prefix, SegmentBytes);
+		messageLog.open(new BaseMessageStore());
+		TreeMap<Integer, Path> before = getSegments(directory);
+		messageLog.compact();
+		TreeMap<Integer, Path> after = getSegments(directory);
+		messageLog.close();
+		System.out.println(String.format("Compaction: %s segments became %s.", before.size(), after.size()));
+		if (after.size() != 2) throw new AssertionError(String.format("Expected a compacted and an active segment, found %s.", after.size()));
+		check("Compaction", directory, expected);
+
+		Path target = after.firstEntry().getValue();
+		for (Path p : before.values()) {
+			if (!p.getFileName().equals(target.getFileName()) && !Files.exists(p)) Files.copy(backup.resolve(p.getFileName()), p);
+		}
+		check("Crash during compaction", directory, expected);
+
+		/*
+		 * Tear the last record of the newest segment: its length says there's more than was written.
+		 */
+		Path newest = getSegments(directory).lastEntry().getValue();
+		long size = Files.size(newest);
+		ByteBuffer torn = ByteBuffer.allocate(40);
+		torn.putInt(120).put((byte) 1).flip();
+		torn.limit(torn.capacity());
+		FileChannel fc = FileChannel.open(newest, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		try {
+			fc.write(torn);
+		} finally {
+			fc.close();
+		}
+		check("Torn tail", directory, expected);
+		if (Files.size(newest) != size) throw new AssertionError(String.format("The torn record wasn't cut off: %s bytes, expected %s.", Files.size(newest), size));
+	}
+
+	/**
+	 * Replay the log into a new store and compare its keys with the expected ones.
+	 */
+	private static void check(String name, Path directory, Set<MessageKey> expected) throws IOException {
+		MessageLog messageLog = new MessageLog(directory, Prefix, SegmentBytes);
+		BaseMessageStore store = new BaseMessageStore();
+		long records = messageLog.open(store);
+		messageLog.close();
+		Set<MessageKey> keys = new HashSet<MessageKey>(store.getMessageKeys());
+		if (!keys.equals(expected)) {
+			Set<MessageKey> extra = new HashSet<MessageKey>(keys);
+			extra.removeAll(expected);
+			Set<MessageKey> missing = new HashSet<MessageKey>(expected);
+			missing.removeAll(keys);
+			throw new AssertionError(String.format("%s: %s messages that shouldn't be there, %s missing.", name, extra.size(), missing.size()));
+		}
+		System.out.println(String.format("%s: replayed %s records into %s messages.", name, records, keys.size()));
+	}
+
+	private static TreeMap<Integer, Path> getSegments(Path directory) throws IOException {
+		TreeMap<Integer, Path> segments = new TreeMap<Integer, Path>();
+		DirectoryStream<Path> ds = Files.newDirectoryStream(directory, Prefix + "-*.wal");
+		try {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				segments.put(Integer.valueOf(name.substring(Prefix.length() + 1, name.length() - 4)), p);
+			}
+		} finally {
+			ds.close();
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,235 @@
+package starbook.tests;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.princehouse.mica.base.net.tcpip.TCPAddress;
+
+import starbook.common.BaseCommandHandler;
+import starbook.common.BaseMessage;
+import starbook.common.BaseNode;
+import starbook.common.CK;
+import starbook.common.Command;
+import starbook.common.CommandHandler;
+import starbook.common.CommandHandlerFactory;
+import starbook.common.Configuration;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.NodeInfo;
+import starbook.common.TCPCommandListener;
+import starbook.common.UDPCommandListener;
+import starbook.nodes.web.MessagePusher;
+
+/**
+ * Compares the time from a post to its visibility at the web nodes whose users follow the poster,
+ * with and without the {@link MessagePusher}. Pushes are measured for real, from a pusher to
+ * command listeners on the loopback interface. Without pushing, a post only spreads through the
+ * MessageDownloadProtocol: a worker replicating the topic has to gossip with the posting web node,
+ * and then each following web node with a worker that has the post. That is simulated, with the
+ * protocol's half-second rounds and gossip rates that drop from 1.0 after a download to 0.1.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessagePushBenchmark extends Test {
+	private static final int Posts = 2000;
+	private static final int Followers = 3;
+	private static final int WebNodes = 10;
+	private static final int Workers = 20;
+	private static final int Replicas = 3;
+	private static final int RoundMillis = 500;
+	private static final double MinimumRate = 0.1;
+	private static final int Trials = 2000;
+
+	public static void main(String[] args) throws Exception {
+		long[] push = measurePush();
+		long[] gossip = simulateGossip(new Random(42));
+		System.out.println(String.format("Post to visibility at all %s following web nodes:", Followers));
+		System.out.println(String.format("%-9s %10s %10s %10s", "", "median ms", "p90 ms", "p99 ms"));
+		System.out.println(String.format("%-9s %10.1f %10.1f %10.1f", "push", percentile(push, 50) / 1e6, percentile(push, 90) / 1e6, percentile(push, 99) / 1e6));
+		System.out.println(String.format("%-9s %10.1f %10.1f %10.1f", "mdp only", percentile(gossip, 50) / 1e6, percentile(gossip, 90) / 1e6, percentile(gossip, 99) / 1e6));
+	}
+
+
+
+	/**
+	 * Post messages at one every millisecond, with a burst now and then, and time each from the
+	 * post until every follower has received it. Each follower listens on its own loopback address.
+	 */
+	private static long[] measurePush() throws Exception {
+		int port = 17500;
+		Configuration.setParameter(CK.CommandPort, String.valueOf(port));
+		Followers followers = new Followers();
+		Map<TCPAddress, NodeInfo> neighbors = new ConcurrentHashMap<TCPAddress, NodeInfo>();
+		for (int i = 0; i < WebNodes - 1; i++) {
+			InetAddress address = InetAddress.getByName("127.0.0." + (i + 1));
+			NodeInfo ni = new NodeInfo(BaseNode.Type.Web);
+			ni.setSubscribedTopics(Arrays.asList(i < Followers ? "alice" : "bob"));
+			neighbors.put(new TCPAddress(address, port), ni);
+			if (i >= Followers) continue;
+			/*
+			 * Batches too large for a datagram arrive over TCP.
+			 */
+			Thread t = new Thread(new UDPCommandListener(new InetSocketAddress(address, port), followers), "Follower " + i + " (UDP)");
+			t.setDaemon(true);
+			t.start();
+			t = new Thread(new TCPCommandListener(new InetSocketAddress(address, port), followers), "Follower " + i + " (TCP)");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		MessagePusher pusher = new MessagePusher(InetAddress.getByName("10.0.0.12"), neighbors);
+		InetAddress source = InetAddress.getByName("10.0.0.12");
+		DateTime now = DateTime.now();
+		int targets = 0;
+		for (int i = 0; i < Posts; i++) {
+			Message m = new BaseMessage("A typical short post, number " + i + ".", now.plusMillis(i), source, i, "alice");
+			followers.posted.put(m.getKey(), System.nanoTime());
+			targets = pusher.push(m);
+			if (i % 100 != 0) Thread.sleep(1);
+		}
+		followers.done.await();
+		System.out.println(String.format("Pushed %s posts to %s followers in %s batches.", Posts, targets, pusher.getBatches()));
+		return followers.latencies;
+	}
+
+	/**
+	 * Records when each post has reached every follower.
+	 */
+	private static class Followers implements CommandHandlerFactory {
+		private final ConcurrentHashMap<MessageKey, Long> posted = new ConcurrentHashMap<MessageKey, Long>();
+		private final ConcurrentHashMap<MessageKey, AtomicInteger> received = new ConcurrentHashMap<MessageKey, AtomicInteger>();
+		private final long[] latencies = new long[Posts];
+		private final CountDownLatch done = new CountDownLatch(Posts);
+
+		@Override
+		public CommandHandler getHandler(Socket socket) {
+			CommandHandler ch = newHandler();
+			ch.setSocket(socket);
+			return ch;
+		}
+
+		@Override
+		public CommandHandler getHandler(DatagramPacket packet) {
+			CommandHandler ch = newHandler();
+			ch.setPacket(packet);
+			return ch;
+		}
+
+		@Override
+		public CommandHandler getHandler(Command command) {
+			CommandHandler ch = newHandler();
+			ch.setCommand(command);
+			return ch;
+		}
+
+		private CommandHandler newHandler() {
+			return new BaseCommandHandler() {
+				@Override
+				public void processCommand(Command command) {
+					long now = System.nanoTime();
+					@SuppressWarnings("unchecked")
+					List<Message> messages = (List<Message>) command.getData().get("messages");
+					for (Message m : messages) {
+						AtomicInteger count = received.get(m.getKey());
+						if (count == null) {
+							AtomicInteger created = new AtomicInteger();
+							count = received.putIfAbsent(m.getKey(), created);
+							if (count == null) count = created;
+						}
+						if (count.incrementAndGet() == Followers) {
+							latencies[m.getID()] = now - posted.get(m.getKey());
+							done.countDown();
+						}
+					}
+				}
+			};
+		}
+	}
+
+
+
+	/**
+	 * Simulate the spread of posts through the MessageDownloadProtocol alone.
+	 */
+	private static long[] simulateGossip(Random rng) {
+		/*
+		 * Web node 0 posts, web nodes 1 to Followers follow, and workers 0 to Replicas replicate
+		 * the poster's topic. Web nodes only gossip with workers; workers gossip with anyone.
+		 */
+		long[] latencies = new long[Trials];
+		for (int trial = 0; trial < Trials; trial++) {
+			boolean[] webHas = new boolean[WebNodes];
+			boolean[] workerHas = new boolean[Workers];
+			double[] webRate = new double[WebNodes];
+			double[] workerRate = new double[Workers];
+			Arrays.fill(webRate, MinimumRate);
+			Arrays.fill(workerRate, MinimumRate);
+			webHas[0] = true;
+			double start = rng.nextDouble() * RoundMillis;
+			int round = 1;
+			while (true) {
+				for (int w = 0; w < WebNodes; w++) {
+					if (rng.nextDouble() >= webRate[w]) continue;
+					webRate[w] = Math.max(MinimumRate, webRate[w] - 0.1);
+					exchange(w, rng.nextInt(Workers), webHas, workerHas, webRate, workerRate);
+				}
+				for (int k = 0; k < Workers; k++) {
+					if (rng.nextDouble() >= workerRate[k]) continue;
+					workerRate[k] = Math.max(MinimumRate, workerRate[k] - 0.1);
+					int peer = rng.nextInt(WebNodes + Workers - 1);
+					if (peer < WebNodes) {
+						exchange(peer, k, webHas, workerHas, webRate, workerRate);
+					} else {
+						int other = peer - WebNodes;
+						if (other >= k) other++;
+						if (workerHas[k] != workerHas[other] && k < Replicas && other < Replicas) {
+							workerHas[k] = workerHas[other] = true;
+							workerRate[k] = workerRate[other] = 1.0;
+						}
+					}
+				}
+				boolean all = true;
+				for (int f = 1; f <= Followers; f++) all &= webHas[f];
+				if (all) break;
+				round++;
+			}
+			latencies[trial] = (long) ((round * RoundMillis - start) * 1e6);
+		}
+		return latencies;
+	}
+
+	/**
+	 * Gossip between a web node and a worker: the worker takes the post if it replicates the topic
+	 * and the web node publishes it, and a following web node takes it from a worker that has it.
+	 * Whoever downloads something bursts.
+	 */
+	private static void exchange(int web, int worker, boolean[] webHas, boolean[] workerHas, double[] webRate, double[] workerRate) {
+		if (web == 0 && worker < Replicas && !workerHas[worker]) {
+			workerHas[worker] = true;
+			workerRate[worker] = 1.0;
+		} else if (web >= 1 && web <= Followers && workerHas[worker] && !webHas[web]) {
+			webHas[web] = true;
+			webRate[web] = 1.0;
+		}
+	}
+
+	private static double percentile(long[] values, int p) {
+		List<Long> sorted = new ArrayList<Long>(values.length);
+		for (long v : values) sorted.add(v);
+		Collections.sort(sorted);
+		return sorted.get(Math.min(values.length - 1, values.length * p / 100));
+	}
+}
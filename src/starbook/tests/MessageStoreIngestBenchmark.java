@@ -0,0 +1,187 @@
+package starbook.tests;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+
+import starbook.common.BaseMessage;
+import starbook.common.BaseMessageStore;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.SamplingIndex;
+
+/**
+ * Measures how BaseMessageStore's add and remove throughput scales with the number of producer
+ * threads, next to a store that takes one lock around every topic list update the way
+ * BaseMessageStore used to. Each producer adds its share of the messages, spread over a number of
+ * topics, then removes every other one. The stores are checked for consistency afterwards.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessageStoreIngestBenchmark extends Test {
+	private static final int Messages = 400000;
+	private static final int Topics = 200;
+	private static final int Rounds = 3;
+
+	public static void main(String[] args) throws Exception {
+		int cores = java.lang.Runtime.getRuntime().availableProcessors();
+		List<Integer> producerCounts = new ArrayList<Integer>();
+		for (int p = 1; p <= Math.max(8, cores * 2); p *= 2) producerCounts.add(p);
+
+		InetAddress source = InetAddress.getByName("10.0.0.12");
+		final Message[] messages = new Message[Messages];
+		DateTime now = DateTime.now();
+		for (int i = 0; i < Messages; i++) {
+			messages[i] = new BaseMessage("A typical short post, number " + i + ".", now.plusMillis(i), source, i, "topic" + (i % Topics));
+		}
+
+		System.out.println(String.format("%s messages over %s topics on %s cores, best of %s rounds.", Messages, Topics, cores, Rounds));
+		System.out.println(String.format("%-9s %14s %14s %8s", "producers", "global ops/ms", "striped ops/ms", "speedup"));
+		for (int producers : producerCounts) {
+			double global = 0;
+			double striped = 0;
+			for (int round = 0; round < Rounds; round++) {
+				global = Math.max(global, run(new GlobalLockStore(), messages, producers));
+				striped = Math.max(striped, run(new StripedStore(), messages, producers));
+			}
+			System.out.println(String.format("%-9d %14.0f %14.0f %7.2fx", producers, global, striped, striped / global));
+		}
+	}
+
+	/**
+	 * Add and then remove half of the messages with the given number of producers.
+	 *
+	 * @return The throughput in adds and removes per millisecond.
+	 */
+	private static double run(final Store store, final Message[] messages, int producers) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final int share = messages.length / producers;
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int from = p * share;
+			final int to = (p == producers - 1) ? messages.length : from + share;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = from; i < to; i++) store.add(messages[i]);
+					for (int i = from; i < to; i += 2) store.remove(messages[i]);
+				}
+			}, "Producer " + p);
+			threads[p].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread t : threads) t.join();
+		double millis = (System.nanoTime() - begin) / 1e6;
+
+		int expected = messages.length / 2;
+		if (store.size() != expected || store.topicSize() != expected) {
+			throw new AssertionError(String.format("%s holds %s messages and %s in topics, expected %s.", store.getClass().getSimpleName(), store.size(),
+					store.topicSize(), expected));
+		}
+		return (messages.length + expected) / millis;
+	}
+
+
+
+	private static interface Store {
+		public void add(Message m);
+		public void remove(Message m);
+		public int size();
+		public int topicSize();
+	}
+
+	private static class StripedStore implements Store {
+		private final BaseMessageStore store = new BaseMessageStore();
+
+		@Override
+		public void add(Message m) {
+			store.addMessage(m);
+		}
+
+		@Override
+		public void remove(Message m) {
+			store.removeMessage(m);
+		}
+
+		@Override
+		public int size() {
+			return store.size();
+		}
+
+		@Override
+		public int topicSize() {
+			int size = 0;
+			for (int t = 0; t < Topics; t++) size += store.getMessagesByTopic("topic" + t).size();
+			return size;
+		}
+	}
+
+	/**
+	 * The lists BaseMessageStore keeps, updated the way it used to: every add copies the message
+	 * and takes a single lock to update the topic lists.
+	 */
+	private static class GlobalLockStore implements Store {
+		private final ConcurrentSkipListSet<Message> messages = new ConcurrentSkipListSet<Message>(new BaseMessage.timelineComparator());
+		private final ConcurrentHashMap<MessageKey, AtomicInteger> downloadCounts = new ConcurrentHashMap<MessageKey, AtomicInteger>();
+		private final ConcurrentHashMap<MessageKey, Message> messagesByKey = new ConcurrentHashMap<MessageKey, Message>();
+		private final ConcurrentHashMap<String, ConcurrentSkipListSet<Message>> messagesByTopic = new ConcurrentHashMap<String, ConcurrentSkipListSet<Message>>();
+		private final SamplingIndex samplingIndex = new SamplingIndex();
+
+		@Override
+		public void add(Message m) {
+			Message message = new BaseMessage(m);
+			downloadCounts.putIfAbsent(message.getKey(), new AtomicInteger());
+			messages.add(message);
+			messagesByKey.put(message.getKey(), message);
+			samplingIndex.add(message);
+			synchronized (messagesByTopic) {
+				if (messagesByTopic.containsKey(message.getTopic())) {
+					messagesByTopic.get(message.getTopic()).add(message);
+				} else {
+					ConcurrentSkipListSet<Message> list = new ConcurrentSkipListSet<Message>(new BaseMessage.timelineComparator());
+					list.add(message);
+					messagesByTopic.put(message.getTopic(), list);
+				}
+			}
+		}
+
+		@Override
+		public void remove(Message m) {
+			messages.remove(m);
+			messagesByKey.remove(m.getKey());
+			samplingIndex.remove(m.getKey());
+			ConcurrentSkipListSet<Message> timeline = messagesByTopic.get(m.getTopic());
+			if (timeline != null) timeline.remove(m);
+			downloadCounts.remove(m.getKey());
+			if (messagesByTopic.containsKey(m.getTopic()) && messagesByTopic.get(m.getTopic()).size() < 1) {
+				messagesByTopic.remove(m.getTopic());
+			}
+		}
+
+		@Override
+		public int size() {
+			return messagesByKey.size();
+		}
+
+		@Override
+		public int topicSize() {
+			int size = 0;
+			for (ConcurrentSkipListSet<Message> timeline : messagesByTopic.values()) size += timeline.size();
+			return size;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package starbook.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+
+import starbook.common.BaseMessage;
+import starbook.common.BaseMessageStore;
+import starbook.common.KeyTree;
+import starbook.common.Message;
+import starbook.common.MessageStore;
+
+/**
+ * Reads a large store back and, while its indexes are still being built in the background, adds
+ * new messages and removes and re-adds some of the ones read, the way deltas are applied on a
+ * restart. Checks that the store's key tree then matches one built from scratch from what the store
+ * holds, so no key is counted twice or subtracted before it was counted.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessageStoreRecoveryTest extends Test {
+	private static final int Stored = 200000;
+	private static final int Added = 20000;
+	private static final int Removed = 5000;
+	private static final String[] Topics = { "alice", "bob", "carol" };
+
+	public static void main(String[] args) throws Exception {
+		Random rng = new Random(42);
+		InetAddress source = InetAddress.getByName("10.0.0.12");
+		long end = DateTime.now().getMillis();
+		List<Message> stored = new ArrayList<Message>();
+		BaseMessageStore original = new BaseMessageStore();
+		for (int i = 0; i < Stored; i++) {
+			Message m = newMessage(rng, source, end, i);
+			stored.add(m);
+			original.addMessage(m);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(original);
+		out.close();
+
+		for (int trial = 0; trial < 3; trial++) {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			MessageStore store = (MessageStore) in.readObject();
+			in.close();
+
+			/*
+			 * Everything here races the index builder.
+			 */
+			for (int i = 0; i < Added; i++) store.addMessage(newMessage(rng, source, end, Stored + trial * Added + i));
+			for (int i = 0; i < Removed; i++) store.removeMessage(stored.get(rng.nextInt(Stored)));
+			for (int i = 0; i < Removed; i++) store.addMessage(stored.get(rng.nextInt(Stored)));
+
+			KeyTree tree = store.getKeyTree();
+			MessageStore rebuilt = new BaseMessageStore();
+			for (Message m : store.getMessages()) rebuilt.addMessage(m);
+			int total = 0;
+			for (String topic : Topics) {
+				total += tree.size(topic);
+				if (tree.size(topic) != store.getMessagesByTopic(topic).size()) {
+					throw new AssertionError(String.format("The key tree counts %s messages in %s where the store holds %s.", tree.size(topic), topic, store
+							.getMessagesByTopic(topic).size()));
+				}
+				if (tree.getHash(topic, KeyTree.Root, 0) != rebuilt.getKeyTree().getHash(topic, KeyTree.Root, 0)) {
+					throw new AssertionError(String.format("The key tree of %s differs from one built from scratch.", topic));
+				}
+			}
+			System.out.println(String.format("Trial %s: the key tree counts %s messages and the store holds %s.", trial, total, store.size()));
+		}
+	}
+
+	private static Message newMessage(Random rng, InetAddress source, long end, int id) {
+		return new BaseMessage("A typical short post, number " + id + ".", new DateTime(end - (long) (rng.nextDouble() * 365L * 24 * 60 * 60 * 1000)), source, id,
+				Topics[id % Topics.length]);
+	}
+}
@@ -0,0 +1,137 @@
+package starbook.tests;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+import starbook.common.BaseMessage;
+import starbook.common.BaseMessageStore;
+import starbook.common.Command;
+import starbook.common.CommandHandler;
+import starbook.common.CommandHandlerFactory;
+import starbook.common.Configuration;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.MessageStore;
+import starbook.common.MessageStream;
+import starbook.common.NIOTCPCommandListener;
+import starbook.common.Stoppable;
+import starbook.common.TCPCommandListener;
+import starbook.nodes.MessageStoreNode;
+
+/**
+ * Measures how fast a new replica catches up over a {@link MessageStream} from each kind of TCP
+ * listener on the loopback interface, and checks that every requested message arrives intact and
+ * that unknown keys are skipped.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class MessageStreamBenchmark extends Test {
+	private static final int Messages = 10000;
+	private static final int Rounds = 3;
+
+	public static void main(String[] args) throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final ServingNode node = new ServingNode();
+		Configuration.setParameter("node", node);
+		List<MessageKey> keys = new ArrayList<MessageKey>();
+		DateTime now = DateTime.now();
+		for (int i = 0; i < Messages; i++) {
+			Message m = new BaseMessage("A typical short post, number " + i + ".", now.plusMillis(i), loopback, i, "topic" + (i % 20));
+			node.store.addMessage(m);
+			keys.add(m.getKey());
+		}
+		keys.add(new MessageKey(0, 0, 0, 0));
+
+		System.out.println(String.format("%s messages over loopback, best of %s rounds.", Messages, Rounds));
+		System.out.println(String.format("%-9s %10s %12s", "listener", "millis", "messages/s"));
+		int port = 17400;
+		for (String kind : new String[] { "blocking", "nio" }) {
+			InetSocketAddress address = new InetSocketAddress(loopback, ++port);
+			Runnable listener = kind.equals("nio") ? new NIOTCPCommandListener(address, new NoHandlers()) : new TCPCommandListener(address, new NoHandlers());
+			Thread t = new Thread(listener, kind + " listener");
+			t.setDaemon(true);
+			t.start();
+
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < Rounds; round++) {
+				final Set<MessageKey> received = new HashSet<MessageKey>();
+				long start = System.nanoTime();
+				int count = MessageStream.download(address, keys, loopback, new MessageStream.Receiver() {
+					@Override
+					public void receive(List<Message> messages) throws IOException {
+						for (Message m : messages) {
+							if (!m.equals(node.store.getMessageByKey(m.getKey()))) throw new AssertionError("Received a different message for " + m.getKey());
+							received.add(m.getKey());
+						}
+					}
+				});
+				best = Math.min(best, System.nanoTime() - start);
+				if (count != Messages || received.size() != Messages) {
+					throw new AssertionError(String.format("The %s listener streamed %s distinct messages of %s.", kind, received.size(), Messages));
+				}
+			}
+			System.out.println(String.format("%-9s %10.1f %12.0f", kind, best / 1e6, Messages / (best / 1e9)));
+			if (listener instanceof Stoppable) {
+				((Stoppable) listener).stopThreads();
+			} else {
+				((TCPCommandListener) listener).stopThreads();
+			}
+		}
+	}
+
+
+
+	private static class ServingNode implements MessageStoreNode {
+		private final BaseMessageStore store = new BaseMessageStore();
+
+		@Override
+		public Set<String> getSubscribedTopics() {
+			return new HashSet<String>();
+		}
+
+		@Override
+		public MessageStore getPublishedMessageStore() {
+			return store;
+		}
+
+		@Override
+		public MessageStore getStoredMessageStore() {
+			return store;
+		}
+
+		@Override
+		public Message downloadPublishedMessage(MessageKey key) {
+			return store.getMessageByKey(key);
+		}
+	}
+
+	/**
+	 * Message streams never reach a command handler.
+	 */
+	private static class NoHandlers implements CommandHandlerFactory {
+		@Override
+		public CommandHandler getHandler(Socket socket) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public CommandHandler getHandler(DatagramPacket packet) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public CommandHandler getHandler(Command command) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package starbook.tests;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+import starbook.common.BaseMessage;
+import starbook.common.BaseMessageStore;
+import starbook.common.CK;
+import starbook.common.Command;
+import starbook.common.CommandHandler;
+import starbook.common.CommandHandlerFactory;
+import starbook.common.Configuration;
+import starbook.common.KeyTree;
+import starbook.common.Message;
+import starbook.common.MessageKey;
+import starbook.common.MessageStore;
+import starbook.common.MessageStream;
+import starbook.common.TCPCommandListener;
+import starbook.common.TreeSync;
+import starbook.nodes.MessageStoreNode;
+
+/**
+ * Syncs two replicas of a large topic that differ by various numbers of old messages, each side
+ * missing some of the other's, and checks that they end up with the same messages. Reports the
+ * round trips and bytes the comparison took next to sending every key. Also checks that the key
+ * tree kept up through adds and removes matches one built from scratch, and that a topic with more
+ * messages in one hour than fit in one request still converges.
+ *
+ * @author Josh Endries (josh@endries.org)
+ *
+ */
+public class TreeSyncTest extends Test {
+	private static final int Shared = 200000;
+	private static final long Span = 2L * 365 * 24 * 60 * 60 * 1000;
+	private static final String Topic = "alice";
+	private static final int DenseHour = 150000;
+
+	public static void main(String[] args) throws Exception {
+		Random rng = new Random(42);
+		InetAddress source = InetAddress.getByName("10.0.0.12");
+		long end = DateTime.now().getMillis();
+		List<Message> shared = new ArrayList<Message>();
+		for (int i = 0; i < Shared; i++) shared.add(newMessage(rng, source, end, i, Topic));
+
+		/*
+		 * One listener answers the sync for replica A, the other the download of the messages A
+		 * lacks from replica B, which always connects from 127.0.0.1. Only one node runs in a VM,
+		 * so the node here serves each side from its own store.
+		 */
+		int port = 17600;
+		Configuration.setParameter(CK.CommandPort, String.valueOf(port));
+		Replicas replicas = new Replicas();
+		Configuration.setParameter("node", replicas);
+		InetSocketAddress a = new InetSocketAddress(InetAddress.getByName("127.0.0.2"), port);
+		for (InetSocketAddress address : new InetSocketAddress[] { a, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port) }) {
+			Thread t = new Thread(new TCPCommandListener(address, new NoHandlers()), "Listener " + address);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		System.out.println(String.format("%s shared messages over two years; sending every key would take %s bytes.", Shared, Shared * MessageKey.Size));
+		System.out.println(String.format("%10s %6s %7s %7s %8s %9s %9s", "difference", "syncs", "rounds", "nodes", "buckets", "received", "bytes"));
+		int id = Shared;
+		for (int difference : new int[] { 0, 1, 10, 100, 1000 }) {
+			replicas.a = new BaseMessageStore();
+			replicas.b = new BaseMessageStore();
+			for (Message m : shared) {
+				replicas.a.addMessage(m);
+				replicas.b.addMessage(m);
+			}
+			for (int i = 0; i < difference; i++) ((i % 2 == 0) ? replicas.a : replicas.b).addMessage(newMessage(rng, source, end, id++, Topic));
+			replicas.b.addMessage(newMessage(rng, source, end, id++, "bob"));
+
+			/*
+			 * A round compares at most TreeSync.MaxNodes nodes, so a large difference takes more
+			 * than one sync.
+			 */
+			final MessageStore b = replicas.b;
+			int syncs = 0;
+			int rounds = 0;
+			int nodes = 0;
+			int buckets = 0;
+			int received = 0;
+			long bytes = 0;
+			while (syncs == 0 || !getKeys(replicas.a, Topic).equals(getKeys(replicas.b, Topic))) {
+				if (syncs == 10) throw new AssertionError(String.format("The replicas still differ after syncing a difference of %s.", difference));
+				int size = replicas.a.size();
+				TreeSync.Result result = TreeSync.sync(a, Topic, b, new MessageStream.Receiver() {
+					@Override
+					public void receive(List<Message> messages) throws IOException {
+						for (Message m : messages) b.addMessage(m);
+					}
+				});
+				syncs++;
+				rounds += result.getRounds();
+				nodes += result.getNodes();
+				buckets += result.getBuckets();
+				received += result.getReceived();
+				bytes += result.getBytes();
+
+				/*
+				 * A downloads what it lacks after answering, so give it a moment.
+				 */
+				for (int i = 0; i < 100 && replicas.a.size() == size && difference > 0; i++) Thread.sleep(10);
+				Thread.sleep(10);
+			}
+			if (getKeys(replicas.a, "bob").size() != 0) throw new AssertionError("A topic that wasn't synced was copied.");
+			System.out.println(String.format("%10d %6d %7d %7d %8d %9d %9d", difference, syncs, rounds, nodes, buckets, received, bytes));
+		}
+
+		/*
+		 * Remove half of a store's messages and compare its tree with one built from what's left.
+		 */
+		MessageStore store = replicas.a;
+		List<Message> all = new ArrayList<Message>(store.getMessagesByTopic(Topic));
+		for (int i = 0; i < all.size(); i += 2) store.removeMessage(all.get(i));
+		MessageStore rebuilt = new BaseMessageStore();
+		for (Message m : store.getMessagesByTopic(Topic)) rebuilt.addMessage(m);
+		KeyTree kept = store.getKeyTree();
+		KeyTree built = rebuilt.getKeyTree();
+		if (kept.getHash(Topic, KeyTree.Root, 0) != built.getHash(Topic, KeyTree.Root, 0) || kept.size(Topic) != built.size(Topic)) {
+			throw new AssertionError("The key tree kept through removals differs from one built from scratch.");
+		}
+		for (Message m : rebuilt.getMessagesByTopic(Topic)) store.removeMessage(m);
+		if (kept.size(Topic) != 0 || kept.getHash(Topic, KeyTree.Root, 0) != 0) throw new AssertionError("An emptied topic still has a tree.");
+		System.out.println("The key tree kept through removals matches one built from scratch.");
+
+		/*
+		 * Sync a topic with more messages in one hour than fit in one request, each side missing a
+		 * few of the other's.
+		 */
+		replicas.a = new BaseMessageStore();
+		replicas.b = new BaseMessageStore();
+		long hour = (end / KeyTree.BucketMillis - 1) * KeyTree.BucketMillis;
+		for (int i = 0; i < DenseHour; i++) {
+			Message m = new BaseMessage("A typical short post, number " + id + ".", new DateTime(hour + rng.nextInt((int) KeyTree.BucketMillis)), source, id++, Topic);
+			if (i % 1000 != 0) replicas.a.addMessage(m);
+			if (i % 1000 != 500) replicas.b.addMessage(m);
+		}
+		final MessageStore dense = replicas.b;
+		int syncs = 0;
+		while (!getKeys(replicas.a, Topic).equals(getKeys(dense, Topic))) {
+			if (syncs++ == 3) throw new AssertionError(String.format("A topic with %s messages in one hour didn't converge.", DenseHour));
+			TreeSync.sync(a, Topic, dense, new MessageStream.Receiver() {
+				@Override
+				public void receive(List<Message> messages) throws IOException {
+					for (Message m : messages) dense.addMessage(m);
+				}
+			});
+			for (int i = 0; i < 100 && replicas.a.size() < DenseHour; i++) Thread.sleep(10);
+		}
+		System.out.println(String.format("A topic with %s messages in one hour converged in %s syncs.", DenseHour, syncs));
+	}
+
+	private static Message newMessage(Random rng, InetAddress source, long end, int id, String topic) {
+		return new BaseMessage("A typical short post, number " + id + ".", new DateTime(end - (long) (rng.nextDouble() * Span)), source, id, topic);
+	}
+
+	private static Set<MessageKey> getKeys(MessageStore store, String topic) {
+		Set<MessageKey> keys = new HashSet<MessageKey>();
+		for (Message m : store.getMessagesByTopic(topic)) keys.add(m.getKey());
+		return keys;
+	}
+
+
+
+	/**
+	 * Answers syncs from replica A's store and message downloads from replica B's.
+	 */
+	private static class Replicas implements MessageStoreNode {
+		private volatile MessageStore a;
+		private volatile MessageStore b;
+
+		@Override
+		public Set<String> getSubscribedTopics() {
+			Set<String> topics = new HashSet<String>();
+			topics.add(Topic);
+			return topics;
+		}
+
+		@Override
+		public MessageStore getPublishedMessageStore() {
+			return a;
+		}
+
+		@Override
+		public MessageStore getStoredMessageStore() {
+			return a;
+		}
+
+		@Override
+		public Message downloadPublishedMessage(MessageKey key) {
+			return b.getMessageByKey(key);
+		}
+	}
+
+	/**
+	 * Syncs and downloads never reach a command handler.
+	 */
+	private static class NoHandlers implements CommandHandlerFactory {
+		@Override
+		public CommandHandler getHandler(Socket socket) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public CommandHandler getHandler(DatagramPacket packet) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public CommandHandler getHandler(Command command) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
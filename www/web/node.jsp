@@ -48,6 +48,16 @@
 				</td>
 			</tr>
 		</table>
+		<div>Cache: <c:out value="${cache}"/></div>
+		<div>Replication: <c:out value="${replication}"/></div>
+		<div>Push: <c:out value="${push}"/></div>
+		<c:if test="${not empty udp}"><div>UDP: <c:out value="${udp}"/></div></c:if>
+		<c:if test="${not empty lanes}">
+		<div>Command lanes:</div>
+		<c:forEach var="lane" items="${lanes}">
+			<div><c:out value="${lane}"/></div>
+		</c:forEach>
+		</c:if>
 		<div>Neighbors:</div>
 		<table>
 			<c:forEach var="entry" items="${neighbors}">
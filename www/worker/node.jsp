@@ -28,6 +28,13 @@
 				</td>
 			</tr>
 		</table>
+		<c:if test="${not empty udp}"><div>UDP: <c:out value="${udp}"/></div></c:if>
+		<c:if test="${not empty lanes}">
+		<div>Command lanes:</div>
+		<c:forEach var="lane" items="${lanes}">
+			<div><c:out value="${lane}"/></div>
+		</c:forEach>
+		</c:if>
 		<div>Neighbors:</div>
 		<table>
 			<c:forEach var="entry" items="${neighbors}">